@@ -0,0 +1,264 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class AdminLog {
+    /* Everything the admin is shown goes through here, so no thread serving a client ever writes to the console itself..-
+     * -.. and waits for the terminal (or for another thread holding System.out's lock).
+     * Messages are put in a ring buffer of a fixed size, which never locks: each message claims a slot with a single..-
+     * -.. compare-and-set, and each slot has a sequence number which tells the writer when the message in it is ready.
+     * A single writer thread takes the messages out in order and writes them in batches, once to the console and once..-
+     * -.. to the log file, if there is one, so a busy server makes a write per batch rather than per message.
+     * If the writer falls behind by a whole ring buffer, new messages are dropped rather than holding up their senders,..-
+     * -.. and the writer reports how many were dropped once it has caught up.
+     * The log file is rotated once it reaches its size, keeping the last ROTATED_FILES files as <file>.1, <file>.2, etc.
+     */
+
+    // How much the admin is shown, from everything to the least. Chat is usually what floods the console under load.
+    public enum Level {
+        // Chat and private messages, as they are sent (default).
+        CHAT,
+        // Users connecting, disconnecting and moving between rooms.
+        EVENT,
+        // Everything else, such as the replies to the admin's commands, warnings and errors.
+        INFO
+    }
+
+    private static final int ROTATED_FILES = 5;
+    // Most messages written in a single batch.
+    private static final int MAX_BATCH = 1024;
+    // Longest time, in milliseconds, the writer sleeps when there is nothing to write, in case a wake-up is missed.
+    private static final long IDLE_WAIT = 100;
+
+    private final AtomicReferenceArray<String> messages;
+    private final AtomicReferenceArray<Level> levels;
+    // Holds, for each slot, the position it can next be written at, or that position plus 1 once a message is in it.
+    private final AtomicLongArray sequences;
+    private final int mask;
+    // Holds the position the next message will be put at. Only the writer thread reads from readPosition.
+    private final AtomicLong writePosition;
+    private long readPosition;
+    private final LongAdder droppedMessages;
+    private long reportedDroppedMessages;
+    private final Level consoleLevel;
+    private final PrintStream console;
+    private final Path logFile;
+    private final long logFileSize;
+    // Only used by the writer thread. Null if there is no log file, or it could not be written.
+    private BufferedWriter logWriter;
+    private long logWritten;
+    private final Thread writerThread;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+
+    public AdminLog(int capacity, Level consoleLevel, Path logFile, long logFileSize) {
+        // The capacity is rounded up to a power of 2, so a position is turned into a slot with a mask.
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.messages = new AtomicReferenceArray<>(slots);
+        this.levels = new AtomicReferenceArray<>(slots);
+        this.sequences = new AtomicLongArray(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            this.sequences.set(slot, slot);
+        }
+        this.mask = slots - 1;
+        this.writePosition = new AtomicLong(0);
+        this.readPosition = 0;
+        this.droppedMessages = new LongAdder();
+        this.consoleLevel = consoleLevel;
+        this.console = System.out;
+        this.logFile = logFile;
+        this.logFileSize = logFileSize;
+        this.writerThread = new Thread(this::write, "s_adminLog");
+        this.writerThread.setDaemon(true);
+    }
+
+    public String start() {
+        // Opens the log file, if any, and starts the writer. Returns a line for the admin describing where messages go.
+        String description = "Console shows " + this.consoleLevel.name().toLowerCase() + " messages and above";
+        if (this.logFile != null) {
+            try {
+                openLogFile();
+                description += ". Logging everything to " + this.logFile;
+            } catch (IOException exception) {
+                description += ". \033[0;31mUnable to open the log file (" + exception.getMessage() + "), so nothing is logged\033[0m";
+            }
+        }
+        this.writerThread.start();
+        return description + ".";
+    }
+
+    public void log(Level level, String message) {
+        // Never waits for the writer. If the ring buffer is full, the message is dropped and counted instead.
+        if (!offer(level, message)) {
+            this.droppedMessages.increment();
+            return;
+        }
+        if (this.writerWaiting) {
+            LockSupport.unpark(this.writerThread);
+        }
+    }
+
+    private boolean offer(Level level, String message) {
+        while (true) {
+            long position = this.writePosition.get();
+            int slot = (int) position & this.mask;
+            long difference = this.sequences.get(slot) - position;
+            if (difference < 0) {
+                // The writer has not yet taken the message a whole ring buffer ago out of this slot.
+                return false;
+            }
+            if (difference == 0 && this.writePosition.compareAndSet(position, position + 1)) {
+                this.messages.set(slot, message);
+                this.levels.set(slot, level);
+                this.sequences.set(slot, position + 1);
+                return true;
+            }
+        }
+    }
+
+    public long getDroppedMessages() {
+        return this.droppedMessages.sum();
+    }
+
+    public void close() {
+        // Writes whatever is left and closes the log file. Waits up to a second for the writer, so nothing is lost on exit.
+        this.closed = true;
+        LockSupport.unpark(this.writerThread);
+        try {
+            this.writerThread.join(1000);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        // This runs on the writer thread, until the log is closed and everything in it has been written.
+        StringBuilder consoleBatch = new StringBuilder();
+        StringBuilder fileBatch = new StringBuilder();
+        while (true) {
+            int written = takeBatch(consoleBatch, fileBatch);
+            if (written == 0) {
+                if (this.closed) {
+                    break;
+                }
+                this.writerWaiting = true;
+                if (isEmpty() && !this.closed) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT));
+                }
+                this.writerWaiting = false;
+                continue;
+            }
+            flush(consoleBatch, fileBatch);
+        }
+        flush(consoleBatch, fileBatch);
+        closeLogFile();
+    }
+
+    private boolean isEmpty() {
+        int slot = (int) this.readPosition & this.mask;
+        return this.sequences.get(slot) != this.readPosition + 1;
+    }
+
+    private int takeBatch(StringBuilder consoleBatch, StringBuilder fileBatch) {
+        // Takes up to MAX_BATCH messages out of the ring buffer, freeing each slot for a message a whole ring buffer later.
+        int taken = 0;
+        while (taken < MAX_BATCH && !isEmpty()) {
+            int slot = (int) this.readPosition & this.mask;
+            String message = this.messages.get(slot);
+            Level level = this.levels.get(slot);
+            this.messages.set(slot, null);
+            this.sequences.set(slot, this.readPosition + this.mask + 1);
+            this.readPosition++;
+            append(level, message, consoleBatch, fileBatch);
+            taken++;
+        }
+        long dropped = this.droppedMessages.sum();
+        if (dropped != this.reportedDroppedMessages) {
+            append(Level.INFO, "\033[0;31m" + (dropped - this.reportedDroppedMessages) +
+                    " admin message(s) dropped as the console could not keep up.\033[0m", consoleBatch, fileBatch);
+            this.reportedDroppedMessages = dropped;
+            taken++;
+        }
+        return taken;
+    }
+
+    private void append(Level level, String message, StringBuilder consoleBatch, StringBuilder fileBatch) {
+        if (level.compareTo(this.consoleLevel) >= 0) {
+            consoleBatch.append(message).append(System.lineSeparator());
+        }
+        if (this.logWriter != null) {
+            fileBatch.append(message).append(System.lineSeparator());
+        }
+    }
+
+    private void flush(StringBuilder consoleBatch, StringBuilder fileBatch) {
+        // The log file is written first, so a slow console never leaves it behind.
+        if (fileBatch.length() > 0) {
+            try {
+                this.logWriter.append(fileBatch);
+                this.logWriter.flush();
+                this.logWritten += fileBatch.length();
+                if (this.logWritten >= this.logFileSize) {
+                    rotateLogFile();
+                }
+            } catch (IOException exception) {
+                closeLogFile();
+                consoleBatch.append("\033[0;31mUnable to write to the log file (").append(exception.getMessage())
+                        .append("). Nothing more is logged.\033[0m").append(System.lineSeparator());
+            }
+            fileBatch.setLength(0);
+        }
+        if (consoleBatch.length() > 0) {
+            this.console.print(consoleBatch);
+            this.console.flush();
+            consoleBatch.setLength(0);
+        }
+    }
+
+    private void openLogFile() throws IOException {
+        if (this.logFile.getParent() != null) {
+            Files.createDirectories(this.logFile.getParent());
+        }
+        this.logWriter = Files.newBufferedWriter(this.logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        this.logWritten = Files.size(this.logFile);
+    }
+
+    private void rotateLogFile() throws IOException {
+        // Moves <file> to <file>.1, <file>.1 to <file>.2 and so on, deleting the oldest, then starts a new <file>.
+        this.logWriter.close();
+        this.logWriter = null;
+        Files.deleteIfExists(rotatedFile(ROTATED_FILES));
+        for (int index = ROTATED_FILES - 1; index >= 1; index--) {
+            if (Files.exists(rotatedFile(index))) {
+                Files.move(rotatedFile(index), rotatedFile(index + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(this.logFile, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+        openLogFile();
+    }
+
+    private Path rotatedFile(int index) {
+        return this.logFile.resolveSibling(this.logFile.getFileName() + "." + index);
+    }
+
+    private void closeLogFile() {
+        if (this.logWriter != null) {
+            ResourceCloser.closeCloseables(List.of(this.logWriter));
+            this.logWriter = null;
+        }
+    }
+
+}
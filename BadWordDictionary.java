@@ -0,0 +1,130 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+public class BadWordDictionary {
+    /* Loads the list of bad words and phrases from its text file, and compiles it into a BadWordMatcher.
+     * The text file has an inappropriate word or phrase on each line, between two lines starting with MARKER.
+     * The compiled matcher is cached in a file next to the text file, so the server does not parse and compile the list..-
+     * -.. every time it starts. The cache is only used if the text file has the same size and modification time as when..-
+     * -.. the cache was written, and its contents pass their checksum. Otherwise it is rebuilt from the text file.
+     * The cache holds CACHE_MAGIC, the text file's size and modification time, a CRC32C checksum, then the encoded matcher.
+     */
+
+    private static final String MARKER = "-----------";
+    private static final int CACHE_MAGIC = 0x42574443;
+    private static final int CACHE_HEADER_LENGTH = 4 + 8 + 8 + 4;
+    // Shortest word kept from the list, as shorter ones match far too many messages.
+    private static final int MIN_WORD_LENGTH = 3;
+
+    private final Path textFile;
+    private final Path cacheFile;
+    // Set by the last load, so the admin can be told where the words came from.
+    private boolean loadedFromCache;
+
+    public BadWordDictionary(Path textFile) {
+        this.textFile = textFile;
+        String name = textFile.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        this.cacheFile = textFile.resolveSibling(((extension > 0) ? name.substring(0, extension) : name) + ".cache");
+    }
+
+    public Path getTextFile() {
+        return this.textFile;
+    }
+
+    public boolean isLoadedFromCache() {
+        return this.loadedFromCache;
+    }
+
+    public BadWordMatcher load(boolean useCache) throws IOException {
+        /* Returns the matcher from the cache if it is up to date and useCache is true, otherwise compiles it from the..-
+         * -.. text file and caches it. Throws an IOException if the text file can not be read.
+         * A cache which can not be read or written is only rebuilt or skipped, as it only saves time.
+         */
+        long size = Files.size(this.textFile);
+        long modified = Files.getLastModifiedTime(this.textFile).toMillis();
+        if (useCache) {
+            BadWordMatcher cached = readCache(size, modified);
+            if (cached != null) {
+                this.loadedFromCache = true;
+                return cached;
+            }
+        }
+        BadWordMatcher matcher = BadWordMatcher.compile(parse());
+        this.loadedFromCache = false;
+        try {
+            writeCache(matcher, size, modified);
+        } catch (IOException ignored) {
+            // The matcher is still used. It is compiled again at the next start.
+        }
+        return matcher;
+    }
+
+    private List<String> parse() throws IOException {
+        // Returns the words and phrases between the two markers, skipping entries shorter than MIN_WORD_LENGTH.
+        List<String> words = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(this.textFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && !line.startsWith(MARKER)) {
+                // Skips the header.
+            }
+            if (line == null) {
+                throw new IOException("No list of words found between lines starting with " + MARKER + ".");
+            }
+            while ((line = reader.readLine()) != null && !line.startsWith(MARKER)) {
+                String word = line.trim();
+                if (word.length() >= MIN_WORD_LENGTH) {
+                    words.add(word.toLowerCase());
+                }
+            }
+        }
+        return words;
+    }
+
+    private BadWordMatcher readCache(long size, long modified) {
+        // Returns null if there is no cache, or it is out of date or corrupt.
+        try {
+            if (!Files.exists(this.cacheFile)) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.cacheFile));
+            if (buffer.remaining() < CACHE_HEADER_LENGTH || buffer.getInt() != CACHE_MAGIC || buffer.getLong() != size
+                    || buffer.getLong() != modified) {
+                return null;
+            }
+            int expectedChecksum = buffer.getInt();
+            CRC32C checksum = new CRC32C();
+            checksum.update(buffer.duplicate());
+            if ((int) checksum.getValue() != expectedChecksum) {
+                return null;
+            }
+            return BadWordMatcher.decode(buffer);
+        } catch (IOException | IllegalArgumentException exception) {
+            return null;
+        }
+    }
+
+    private void writeCache(BadWordMatcher matcher, long size, long modified) throws IOException {
+        // The cache is written to a temporary file first and then moved over the old one, so it is never left half written.
+        ByteBuffer encoded = matcher.encode();
+        CRC32C checksum = new CRC32C();
+        checksum.update(encoded.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_LENGTH);
+        header.putInt(CACHE_MAGIC).putLong(size).putLong(modified).putInt((int) checksum.getValue()).flip();
+        byte[] contents = new byte[header.remaining() + encoded.remaining()];
+        header.get(contents, 0, CACHE_HEADER_LENGTH);
+        encoded.get(contents, CACHE_HEADER_LENGTH, contents.length - CACHE_HEADER_LENGTH);
+        Path temporaryFile = this.cacheFile.resolveSibling(this.cacheFile.getFileName() + ".tmp");
+        Files.write(temporaryFile, contents);
+        Files.move(temporaryFile, this.cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,284 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+public class BadWordMatcher {
+    /* Finds every inappropriate word in a message in a single pass, however many words there are (Aho-Corasick).
+     * The words are compiled once into a table of states, where each state is the longest part of a word matched so far.
+     * Every character of the message moves the matcher to its next state with a single lookup, and each state knows..-
+     * -.. which words end at it. Matching is case insensitive, and instances are immutable, so they can be shared freely.
+     * Entries with spaces in them are phrases (e.g "two words"), which match however much white space is between their..-
+     * -.. words, and only as whole words. Runs of white space in a message are read as a single space, so phrases..-
+     * -.. are matched in the same single pass as everything else.
+     * A compiled matcher can be encoded and decoded again as it is (see BadWordDictionary), so it need not be rebuilt..-
+     * -.. every time the server starts.
+     */
+
+    // Version of the encoded form. Changed whenever encode() changes, so older encodings are rebuilt rather than misread.
+    private static final int ENCODING_VERSION = 1;
+
+    // Holds the words and phrases the matcher was compiled from, in lowercase, with single spaces in phrases.
+    private final String[] words;
+    // Maps ASCII characters to their column in the transition table. 0 means the character is not part of any word.
+    private final int[] asciiColumns;
+    // Maps any other characters found in the words to their column in the transition table.
+    private final Map<Character, Integer> otherColumns;
+    // Number of columns in the transition table - one for each distinct character in the words, plus column 0.
+    private final int columns;
+    // transitions[state * columns + column] holds the state reached from the given state with the given character.
+    private final int[] transitions;
+    // Holds the indexes of the words which end at each state.
+    private final int[][] matches;
+
+    private BadWordMatcher(String[] words, int[] asciiColumns, Map<Character, Integer> otherColumns, int columns,
+                           int[] transitions, int[][] matches) {
+        this.words = words;
+        this.asciiColumns = asciiColumns;
+        this.otherColumns = otherColumns;
+        this.columns = columns;
+        this.transitions = transitions;
+        this.matches = matches;
+    }
+
+    public static BadWordMatcher compile(List<String> wordList) {
+        /* Builds the matcher in three steps:
+         * 1. Each distinct character in the words is given a column in the transition table.
+         * 2. The words are added to a trie, where each state is a prefix of at least one word.
+         * 3. The trie is walked breadth first, filling in the transitions for characters which do not continue any word..-
+         *    -.. (by following the longest suffix which is also a prefix), and collecting the words ending at each state.
+         */
+        String[] words = wordList.stream().map(word -> String.join(" ", word.trim().toLowerCase().split("\\s+")))
+                .filter(word -> !word.isEmpty()).distinct().toArray(String[]::new);
+        int[] asciiColumns = new int[128];
+        Map<Character, Integer> otherColumns = new HashMap<>();
+        int columns = 1;
+        int states = 1;
+        for (String word : words) {
+            states += word.length();
+            for (char character : word.toCharArray()) {
+                if (character < 128 && asciiColumns[character] == 0) {
+                    asciiColumns[character] = columns++;
+                } else if (character >= 128 && !otherColumns.containsKey(character)) {
+                    otherColumns.put(character, columns++);
+                }
+            }
+        }
+
+        // Step 2 - the trie. State 0 is the root. -1 marks a transition which has not been filled in yet.
+        int[] transitions = new int[states * columns];
+        Arrays.fill(transitions, -1);
+        List<List<Integer>> wordsEndingAt = new ArrayList<>();
+        wordsEndingAt.add(new ArrayList<>());
+        int usedStates = 1;
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            int state = 0;
+            for (char character : words[wordIndex].toCharArray()) {
+                int column = (character < 128) ? asciiColumns[character] : otherColumns.get(character);
+                if (transitions[state * columns + column] == -1) {
+                    transitions[state * columns + column] = usedStates++;
+                    wordsEndingAt.add(new ArrayList<>());
+                }
+                state = transitions[state * columns + column];
+            }
+            wordsEndingAt.get(state).add(wordIndex);
+        }
+
+        // Step 3 - the fallback transitions, filled in level by level so that each state's fallback is already complete.
+        int[] fallback = new int[usedStates];
+        int[][] matches = new int[usedStates][];
+        Queue<Integer> toVisit = new ArrayDeque<>();
+        matches[0] = new int[0];
+        for (int column = 0; column < columns; column++) {
+            int next = transitions[column];
+            if (next == -1) {
+                transitions[column] = 0;
+            } else {
+                fallback[next] = 0;
+                toVisit.add(next);
+            }
+        }
+        while (!toVisit.isEmpty()) {
+            int state = toVisit.poll();
+            List<Integer> ending = wordsEndingAt.get(state);
+            int[] inherited = matches[fallback[state]];
+            int[] stateMatches = Arrays.copyOf(inherited, inherited.length + ending.size());
+            for (int i = 0; i < ending.size(); i++) {
+                stateMatches[inherited.length + i] = ending.get(i);
+            }
+            matches[state] = stateMatches;
+            for (int column = 0; column < columns; column++) {
+                int next = transitions[state * columns + column];
+                if (next == -1) {
+                    transitions[state * columns + column] = transitions[fallback[state] * columns + column];
+                } else {
+                    fallback[next] = transitions[fallback[state] * columns + column];
+                    toVisit.add(next);
+                }
+            }
+        }
+        return new BadWordMatcher(words, asciiColumns, otherColumns, columns,
+                Arrays.copyOf(transitions, usedStates * columns), matches);
+    }
+
+    public int size() {
+        // Returns the number of distinct words and phrases the matcher looks for.
+        return this.words.length;
+    }
+
+    public int countPhrases() {
+        return (int) Arrays.stream(this.words).filter(BadWordMatcher::isPhrase).count();
+    }
+
+    public List<String> getWords() {
+        return List.of(this.words);
+    }
+
+    public static boolean isPhrase(String word) {
+        // Returns true if a word found by findMatches() is a phrase.
+        return word.indexOf(' ') >= 0;
+    }
+
+    private int getColumn(char character) {
+        character = Character.toLowerCase(character);
+        if (character < 128) {
+            return this.asciiColumns[character];
+        }
+        Integer column = this.otherColumns.get(character);
+        return (column == null) ? 0 : column;
+    }
+
+    public List<String> findMatches(String text, boolean wholeWordsOnly) {
+        /* Returns the distinct words found in the text, in the order they were found. Returns an empty list if there are none.
+         * If wholeWordsOnly is true, a word only counts if it is not part of a longer word - e.g "wad" is not found in "waddup".
+         */
+        Set<String> found = null;
+        int state = 0;
+        for (int position = 0; position < text.length(); position++) {
+            char character = text.charAt(position);
+            if (Character.isWhitespace(character)) {
+                // A run of white space is read as a single space.
+                if (position > 0 && Character.isWhitespace(text.charAt(position - 1))) {
+                    continue;
+                }
+                character = ' ';
+            }
+            state = this.transitions[state * this.columns + getColumn(character)];
+            for (int wordIndex : this.matches[state]) {
+                String word = this.words[wordIndex];
+                boolean phrase = isPhrase(word);
+                if ((wholeWordsOnly || phrase) && !isWholeWord(text, findStart(text, position + 1, word.length()), position + 1)) {
+                    continue;
+                }
+                if (found == null) {
+                    found = new LinkedHashSet<>();
+                }
+                found.add(word);
+            }
+        }
+        return (found == null) ? Collections.emptyList() : new ArrayList<>(found);
+    }
+
+    private static int findStart(String text, int end, int length) {
+        // Returns where a match of the given length ending at end starts, counting each run of white space as one character.
+        // Only called once something has been found, so clean messages never pay for it.
+        int start = end;
+        for (int remaining = length; remaining > 0; remaining--) {
+            start--;
+            while (start > 0 && Character.isWhitespace(text.charAt(start)) && Character.isWhitespace(text.charAt(start - 1))) {
+                start--;
+            }
+        }
+        return start;
+    }
+
+    private static boolean isWholeWord(String text, int start, int end) {
+        // A word is whole if it is not directly preceded or followed by a letter or a digit.
+        return (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+                && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+    }
+
+    public ByteBuffer encode() {
+        // Encodes the compiled matcher, so decode() can restore it without compiling it again.
+        byte[][] encodedWords = new byte[this.words.length][];
+        int size = 4 * 6 + 4 * this.asciiColumns.length + 8 * this.otherColumns.size() + 4 * this.transitions.length;
+        for (int i = 0; i < this.words.length; i++) {
+            encodedWords[i] = this.words[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + encodedWords[i].length;
+        }
+        for (int[] stateMatches : this.matches) {
+            size += 4 + 4 * stateMatches.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(ENCODING_VERSION);
+        buffer.putInt(this.words.length);
+        for (byte[] word : encodedWords) {
+            buffer.putInt(word.length).put(word);
+        }
+        buffer.asIntBuffer().put(this.asciiColumns);
+        buffer.position(buffer.position() + 4 * this.asciiColumns.length);
+        buffer.putInt(this.otherColumns.size());
+        this.otherColumns.forEach((character, column) -> buffer.putInt(character).putInt(column));
+        buffer.putInt(this.columns);
+        buffer.putInt(this.transitions.length);
+        buffer.asIntBuffer().put(this.transitions);
+        buffer.position(buffer.position() + 4 * this.transitions.length);
+        buffer.putInt(this.matches.length);
+        for (int[] stateMatches : this.matches) {
+            buffer.putInt(stateMatches.length);
+            for (int wordIndex : stateMatches) {
+                buffer.putInt(wordIndex);
+            }
+        }
+        return buffer.flip();
+    }
+
+    public static BadWordMatcher decode(ByteBuffer buffer) {
+        // Throws an IllegalArgumentException if the buffer does not hold a matcher encoded by this version of encode().
+        try {
+            if (buffer.getInt() != ENCODING_VERSION) {
+                throw new IllegalArgumentException("Unknown encoding version.");
+            }
+            String[] words = new String[buffer.getInt()];
+            for (int i = 0; i < words.length; i++) {
+                byte[] word = new byte[buffer.getInt()];
+                buffer.get(word);
+                words[i] = new String(word, StandardCharsets.UTF_8);
+            }
+            int[] asciiColumns = new int[128];
+            buffer.asIntBuffer().get(asciiColumns);
+            buffer.position(buffer.position() + 4 * asciiColumns.length);
+            Map<Character, Integer> otherColumns = new HashMap<>();
+            for (int remaining = buffer.getInt(); remaining > 0; remaining--) {
+                otherColumns.put((char) buffer.getInt(), buffer.getInt());
+            }
+            int columns = buffer.getInt();
+            int[] transitions = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(transitions);
+            buffer.position(buffer.position() + 4 * transitions.length);
+            int[][] matches = new int[buffer.getInt()][];
+            if (columns < 1 || transitions.length != matches.length * columns) {
+                throw new IllegalArgumentException("Inconsistent transition table.");
+            }
+            for (int state = 0; state < matches.length; state++) {
+                matches[state] = new int[buffer.getInt()];
+                for (int i = 0; i < matches[state].length; i++) {
+                    matches[state][i] = buffer.getInt();
+                }
+            }
+            return new BadWordMatcher(words, asciiColumns, otherColumns, columns, transitions, matches);
+        } catch (BufferUnderflowException | NegativeArraySizeException exception) {
+            throw new IllegalArgumentException("Truncated encoding.", exception);
+        }
+    }
+
+}
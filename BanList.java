@@ -0,0 +1,128 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BanList {
+    /* Holds the addresses banned from the server, each until the time its ban expires.
+     * Checking an address is a single lookup which never locks, so the server can check every connection as soon as it is..-
+     * -.. accepted, and a banned client costs no more than closing its socket. Expired bans are removed as they are found.
+     * If a file is given, the bans are kept in it, so they survive a restart. After a marker, each ban is written as the length of its..-
+     * -.. address (4 or 16 bytes), the address, then the time it expires in milliseconds since the epoch.
+     * The file is written to a temporary file first and then moved over the old one, so it is never left half written.
+     */
+
+    // Expiry of a ban which lasts until it is lifted.
+    public static final long PERMANENT = Long.MAX_VALUE;
+    private static final int FILE_MAGIC = 0x42414e53;
+
+    private final ConcurrentHashMap<InetAddress, Long> bans;
+    // Holds the file the bans are kept in, otherwise null.
+    private final Path file;
+
+    public BanList(Path file) {
+        this.bans = new ConcurrentHashMap<>();
+        this.file = file;
+    }
+
+    public boolean isBanned(InetAddress address) {
+        Long expiresAt = this.bans.get(address);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt > System.currentTimeMillis()) {
+            return true;
+        }
+        this.bans.remove(address, expiresAt);
+        return false;
+    }
+
+    public void ban(InetAddress address, long durationMillis) {
+        // A duration of 0 or less bans the address until it is lifted. A ban never shortens one already in place.
+        long expiresAt = (durationMillis <= 0) ? PERMANENT : System.currentTimeMillis() + durationMillis;
+        this.bans.merge(address, expiresAt, Math::max);
+    }
+
+    public boolean unban(InetAddress address) {
+        // Returns true if the address was banned.
+        return this.bans.remove(address) != null;
+    }
+
+    public List<Map.Entry<InetAddress, Long>> getBans() {
+        // Returns the bans in place, the soonest to expire first.
+        long now = System.currentTimeMillis();
+        this.bans.entrySet().removeIf(ban -> ban.getValue() <= now);
+        List<Map.Entry<InetAddress, Long>> bans = new ArrayList<>(this.bans.entrySet());
+        bans.sort(Map.Entry.comparingByValue(Comparator.naturalOrder()));
+        return bans;
+    }
+
+    public int load() throws IOException {
+        // Reads the bans kept in the file, and returns how many are still in place. Nothing is read if there is no file yet.
+        if (this.file == null || !Files.exists(this.file)) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        try (InputStream fileStream = Files.newInputStream(this.file);
+             DataInputStream input = new DataInputStream(fileStream)) {
+            if (input.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a ban list: " + this.file);
+            }
+            while (true) {
+                int length;
+                try {
+                    length = input.readUnsignedByte();
+                } catch (EOFException endOfFile) {
+                    break;
+                }
+                if (length != 4 && length != 16) {
+                    throw new IOException("Corrupt ban list: " + this.file);
+                }
+                byte[] address = new byte[length];
+                input.readFully(address);
+                long expiresAt = input.readLong();
+                if (expiresAt > now) {
+                    this.bans.merge(InetAddress.getByAddress(address), expiresAt, Math::max);
+                }
+            }
+        }
+        return this.bans.size();
+    }
+
+    public synchronized void save() throws IOException {
+        /* Writes the bans in place to the file. Synchronised so that saves from different threads never overlap,..-
+         * -.. and as the bans are read once the lock is held, the last save always writes the latest bans.
+         */
+        if (this.file == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(FILE_MAGIC);
+        for (Map.Entry<InetAddress, Long> ban : getBans()) {
+            byte[] address = ban.getKey().getAddress();
+            output.writeByte(address.length);
+            output.write(address);
+            output.writeLong(ban.getValue());
+        }
+        output.flush();
+        if (this.file.getParent() != null) {
+            Files.createDirectories(this.file.getParent());
+        }
+        Path temporaryFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        Files.write(temporaryFile, bytes.toByteArray());
+        Files.move(temporaryFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,83 @@
+public class BotCommands {
+    /* The commands a bot answers, typed by users in chat as "bot <command>" (e.g "bot help").
+     * Every chat message a bot receives comes through here, and nearly none of them are meant for it, so each is first..-
+     * -.. checked for "bot" where the message's text starts, without splitting it or running a regular expression.
+     * Only messages which pass are parsed, and the command is then found in a CommandRegistry, to which further commands..-
+     * -.. can be added without touching how messages are read.
+     */
+
+    // What a command is run for - a single bot, connected to a single server.
+    public interface Bot {
+        // Sends a reply to everyone in the bot's room, with the "[BOT] " prefix.
+        void broadcast(String message);
+
+        // Returns the details of the server the bot is connected to, worked out once rather than on every request.
+        String getServerDetails();
+    }
+
+    // Word a chat message must start with for a bot to answer it.
+    public static final String PREFIX = "bot";
+    private static final String HELP = "Hey! You can get responses from me by typing \"bot <msg>\" (without the <> and speech marks).\n" +
+            "Commands available:\n" +
+            "\"bot help\" - I will send this message.\n" +
+            "\"bot hello\" - I will say hello back!\n" +
+            "\"bot server_details\" - I will give you information about the server.";
+    private static final String INVALID_COMMAND =
+            "Invalid command. Type in \"bot help\" without the speech marks to see a list of available commands.";
+
+    // Holds the commands every bot answers. Anything after the command is ignored, as it always has been.
+    public static final CommandRegistry<Bot> COMMANDS = createCommands();
+
+    public static CommandRegistry<Bot> createCommands() {
+        // Returns a new registry of the commands above, to which more can be registered before it is given to a BotHost.
+        return new CommandRegistry<Bot>((bot, command) -> bot.broadcast(INVALID_COMMAND))
+                .register("help", 0, CommandRegistry.Command.ANY, "bot help", (bot, commandLine) -> bot.broadcast(HELP))
+                .register("hello", 0, CommandRegistry.Command.ANY, "bot hello",
+                        (bot, commandLine) -> bot.broadcast("Hello! How's your day been so far? :)"))
+                .register("server_details", 0, CommandRegistry.Command.ANY, "bot server_details",
+                        (bot, commandLine) -> bot.broadcast(bot.getServerDetails()));
+    }
+
+    public static String describeServer(String hostName, String hostAddress, int port) {
+        // The reply to "bot server_details".
+        return "Name of the host: " + hostName + "\n" +
+                "IP address of the server: " + hostAddress + "\n" +
+                "The port you are connected to: " + port;
+    }
+
+    public static void handle(Bot bot, String serverMessage) {
+        // Answers the message if it is a command for the bot, and replies to an unknown command with how to get help.
+        handle(bot, serverMessage, COMMANDS);
+    }
+
+    public static void handle(Bot bot, String serverMessage, CommandRegistry<Bot> commands) {
+        int commandStart = findCommand(serverMessage);
+        if (commandStart < 0) {
+            return;
+        }
+        CommandLine commandLine = CommandLine.parse(serverMessage, commandStart);
+        if (commandLine != null && !commands.dispatch(bot, commandLine)) {
+            bot.broadcast(INVALID_COMMAND);
+        }
+    }
+
+    private static int findCommand(String serverMessage) {
+        /* Returns where the command starts in a chat message of the form "[ID] name: bot <command>", or -1 if the message..-
+         * -.. is not for the bot. The third word must be PREFIX, in any case, followed by whitespace.
+         */
+        if (serverMessage.isEmpty() || serverMessage.charAt(0) != '[') {
+            return -1;
+        }
+        int nameStart = serverMessage.indexOf(' ') + 1;
+        int textStart = (nameStart == 0) ? 0 : serverMessage.indexOf(' ', nameStart) + 1;
+        if (textStart == 0 || !serverMessage.regionMatches(true, textStart, PREFIX, 0, PREFIX.length())) {
+            return -1;
+        }
+        int commandStart = textStart + PREFIX.length();
+        if (commandStart >= serverMessage.length() || !Character.isWhitespace(serverMessage.charAt(commandStart))) {
+            return -1;
+        }
+        return commandStart;
+    }
+
+}
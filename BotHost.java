@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class BotHost {
+    /* Runs a bot on each of many servers from a single process, rather than a ChatBot process for each.
+     * Every bot (see BotSession) is served by a single thread with a selector, which only ever reads and answers whatever..-
+     * -.. has arrived, so a bot costs a socket and a couple of buffers rather than a process and a thread.
+     * Connecting, the handshake and looking up a server's details all block, so they are done on a separate connector..-
+     * -.. thread, which hands each bot to the selector thread once it is connected. Servers which are not running yet,..-
+     * -.. or which shut down, are tried again every RETRY_INTERVAL, so the host can be started before or after them.
+     * Commands are answered from a CommandRegistry (BotCommands.COMMANDS, unless the host is made with..-
+     * -.. one from BotCommands.createCommands() with more registered), so commands can be added..-
+     * -.. without touching how messages are read.
+     */
+
+    // Ports tried for "local", the same as the servers' default ports.
+    private static final int FIRST_DEFAULT_PORT = 14001;
+    private static final int DEFAULT_PORTS = 10;
+    // Time, in milliseconds, between attempts to connect to servers without a bot.
+    private static final long RETRY_INTERVAL = 5000;
+    private static final int CONNECT_TIMEOUT = 2000;
+
+    private final CommandRegistry<BotCommands.Bot> commands;
+    private final Selector selector;
+    // Holds the servers a bot is run on. "local" stands for every default port on this machine.
+    private List<InetSocketAddress> servers;
+    // Holds the servers with a connected bot, so the connector thread only tries the others.
+    private final Set<InetSocketAddress> connectedServers;
+    // Holds the bots connected by the connector thread which the selector thread has not registered yet.
+    private final Queue<BotSession> connectedSessions;
+    private String name;
+    private boolean binaryFraming;
+
+    public BotHost(CommandRegistry<BotCommands.Bot> commands) throws IOException {
+        this.commands = commands;
+        this.selector = Selector.open();
+        this.servers = localServers();
+        this.connectedServers = ConcurrentHashMap.newKeySet();
+        this.connectedSessions = new ConcurrentLinkedQueue<>();
+        this.name = "ChatBot";
+        this.binaryFraming = true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Runs until the process is stopped, e.g with Ctrl+C.
+        BotHost host = new BotHost(BotCommands.COMMANDS);
+        host.checkArgs(args, 0);
+        host.start();
+    }
+
+    public CommandRegistry<BotCommands.Bot> getCommands() {
+        return this.commands;
+    }
+
+    private void checkArgs(String[] args, int index) {
+        /* Checks the element at the given index against the known commands, and if it matches, attempts to apply the next..-
+         * -.. element as its value ("-servers <local|host:port,...>", "-name <name>", "-framing <binary|text>").
+         * If there is no element found after the command or if it is not a legal value, the user is notified..-
+         * -.. and hence the value remains unchanged from the default value.
+         * The following elements are then checked, as the commands are in the format of (-command1 value1 -command2 value2).
+         */
+        if (index >= args.length) {
+            return;
+        }
+        String command = args[index];
+        try {
+            switch (command) {
+                case "-servers":
+                    setServers(args[index + 1]);
+                    break;
+                case "-name":
+                    this.name = args[index + 1];
+                    break;
+                case "-framing":
+                    setFraming(args[index + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown argument: " + command);
+                    checkArgs(args, index + 1);
+                    return;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | UnknownHostException exception) {
+            System.out.println("Illegal arguments for " + command + ". Default value has been set.");
+        }
+        checkArgs(args, index + 2);
+    }
+
+    private void setServers(String servers) throws UnknownHostException {
+        // Throws an IllegalArgumentException if a server, separated by commas, is neither "local" nor "<host>:<port>".
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String server : servers.split(",")) {
+            if (server.equalsIgnoreCase("local")) {
+                addresses.addAll(localServers());
+                continue;
+            }
+            int separator = server.lastIndexOf(':');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Unknown server: " + server);
+            }
+            addresses.add(new InetSocketAddress(InetAddress.getByName(server.substring(0, separator)),
+                    Integer.parseInt(server.substring(separator + 1))));
+        }
+        this.servers = addresses;
+    }
+
+    private static List<InetSocketAddress> localServers() throws UnknownHostException {
+        // Every default port on this machine, on the same address Client connects to by default.
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        InetAddress localHost = InetAddress.getLocalHost();
+        for (int port = FIRST_DEFAULT_PORT; port < FIRST_DEFAULT_PORT + DEFAULT_PORTS; port++) {
+            addresses.add(new InetSocketAddress(localHost, port));
+        }
+        return addresses;
+    }
+
+    private void setFraming(String framing) {
+        // Throws an IllegalArgumentException if the framing is neither "text" nor "binary".
+        switch (framing.toLowerCase()) {
+            case "text":
+                this.binaryFraming = false;
+                break;
+            case "binary":
+                this.binaryFraming = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown framing: " + framing);
+        }
+    }
+
+    public void start() {
+        // Starts the connector thread, then serves every bot on this thread, which never returns unless the selector fails.
+        System.out.println("Running a bot named " + this.name + " on " + this.servers.size() + " server(s).");
+        Thread connector = new Thread(this::connectServers, "c_botConnector");
+        connector.setDaemon(true);
+        connector.start();
+        Thread.currentThread().setName("c_botHost");
+        serveSessions();
+    }
+
+    private void connectServers() {
+        // This runs on the connector thread, connecting a bot to each server without one, every RETRY_INTERVAL.
+        try {
+            while (true) {
+                for (InetSocketAddress server : this.servers) {
+                    if (!this.connectedServers.contains(server)) {
+                        connect(server);
+                    }
+                }
+                Thread.sleep(RETRY_INTERVAL);
+            }
+        } catch (InterruptedException ignored) {
+            // The host is shutting down.
+        }
+    }
+
+    private void connect(InetSocketAddress server) {
+        // A server which is not running is simply tried again later, without telling the user every time.
+        BotSession session = new BotSession(this, server);
+        try {
+            session.connect(this.name, this.binaryFraming, CONNECT_TIMEOUT);
+        } catch (IOException exception) {
+            return;
+        }
+        this.connectedServers.add(server);
+        this.connectedSessions.add(session);
+        this.selector.wakeup();
+        System.out.println("\033[0;32m" + session.getName() + " connected to " + describe(server) + ".\033[0m");
+    }
+
+    private void serveSessions() {
+        /* This runs on the selector thread. Registers the bots handed over by the connector thread, then reads and..-
+         * -.. answers whatever each bot has received, and finishes writing replies its socket could not take at once.
+         */
+        while (true) {
+            try {
+                this.selector.select();
+            } catch (IOException exception) {
+                System.out.println("\033[0;31mUnable to wait for the servers: " + exception.getMessage() + "\033[0m");
+                return;
+            }
+            BotSession connected;
+            while ((connected = this.connectedSessions.poll()) != null) {
+                try {
+                    connected.register(this.selector);
+                } catch (IOException exception) {
+                    connected.close();
+                }
+            }
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                BotSession session = (BotSession) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    session.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    session.write();
+                }
+            }
+        }
+    }
+
+    protected void sessionClosed(BotSession session) {
+        // Called once a bot's connection is closed, so the connector thread connects it again once the server is back.
+        this.connectedServers.remove(session.getServer());
+        System.out.println("\033[0;31m" + session.getName() + " lost its connection to " + describe(session.getServer()) +
+                ". Trying again every " + RETRY_INTERVAL / 1000 + " seconds.\033[0m");
+    }
+
+    private static String describe(InetSocketAddress server) {
+        return server.getAddress().getHostAddress() + ":" + server.getPort();
+    }
+
+}
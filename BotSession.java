@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+public class BotSession implements BotCommands.Bot {
+    /* A single bot run by a BotHost, connected to one server.
+     * The handshake is made on a blocking channel by the host's connector thread, reading each line with..-
+     * -.. MessageFrame.readHandshakeLine() as Client does, so nothing sent after it is read ahead. The channel is then made..-
+     * -.. non-blocking and everything else is done on the host's selector thread, which never waits for a single server.
+     * Replies the socket can not take at once are kept, in order, and written once the socket is writable again.
+     */
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // Most names tried during the handshake, as the name followed by 2, 3, etc. if it is taken.
+    private static final int MAX_NAME_ATTEMPTS = 10;
+
+    private final BotHost host;
+    private final InetSocketAddress server;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean binaryFraming;
+    private String name;
+    // Holds the reply to "bot server_details", worked out while connecting so the selector thread never looks up a host.
+    private String serverDetails;
+    // Holds what has been read but not yet handled. Grows to fit a whole frame if needed.
+    private ByteBuffer readBuffer;
+    // Holds the replies the socket has not taken yet. Only used by the selector thread.
+    private final Queue<ByteBuffer> pendingOutput;
+
+    public BotSession(BotHost host, InetSocketAddress server) {
+        this.host = host;
+        this.server = server;
+        this.binaryFraming = false;
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.pendingOutput = new ArrayDeque<>();
+    }
+
+    public InetSocketAddress getServer() {
+        return this.server;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String getServerDetails() {
+        return this.serverDetails;
+    }
+
+    public void connect(String name, boolean binaryFramingRequested, int timeoutMillis) throws IOException {
+        /* Connects and makes the name handshake, throwing an IOException if either fails or takes longer than the timeout.
+         * Binary framing is asked for in place of the first name, as Client does. If the name is taken, the name..-
+         * -.. followed by a number is tried instead, so that several hosts can run bots on the same server.
+         */
+        this.channel = SocketChannel.open();
+        try {
+            Socket socket = this.channel.socket();
+            socket.connect(this.server, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
+            MessageFrame.readHandshakeLine(inputStream);
+            if (binaryFramingRequested) {
+                writeHandshakeLine(outputStream, MessageFrame.BINARY_REQUEST);
+                this.binaryFraming = MessageFrame.readHandshakeLine(inputStream).equals(MessageFrame.BINARY_ACCEPTED);
+            }
+            for (int attempt = 1; this.name == null; attempt++) {
+                if (attempt > MAX_NAME_ATTEMPTS) {
+                    throw new ProtocolException("No name could be chosen for the bot.");
+                }
+                String candidate = (attempt == 1) ? name : name + attempt;
+                writeHandshakeLine(outputStream, candidate);
+                if (MessageFrame.readHandshakeLine(inputStream).equals(ChatServer.NAME_ACCEPTED)) {
+                    this.name = candidate;
+                }
+            }
+            this.serverDetails = BotCommands.describeServer(this.server.getAddress().getHostName(),
+                    this.server.getAddress().getHostAddress(), this.server.getPort());
+            this.channel.configureBlocking(false);
+        } catch (IOException exception) {
+            this.channel.close();
+            throw exception;
+        }
+    }
+
+    private static void writeHandshakeLine(OutputStream outputStream, String line) throws IOException {
+        outputStream.write((line + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+        outputStream.flush();
+    }
+
+    public void register(Selector selector) throws IOException {
+        // This runs on the selector thread, once the handshake is complete.
+        this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    public void read() {
+        // Reads whatever has arrived and answers each whole message meant for the bot. Closes the session if the server has gone.
+        try {
+            if (!this.readBuffer.hasRemaining()) {
+                this.readBuffer = ByteBuffer.allocate(this.readBuffer.capacity() * 2).put(this.readBuffer.flip());
+            }
+            if (this.channel.read(this.readBuffer) < 0) {
+                close();
+                return;
+            }
+            this.readBuffer.flip();
+            String message;
+            while (this.channel.isOpen() && (message = nextMessage()) != null) {
+                BotCommands.handle(this, message, this.host.getCommands());
+            }
+            this.readBuffer.compact();
+        } catch (IOException exception) {
+            close();
+        }
+    }
+
+    private String nextMessage() throws ProtocolException {
+        // Takes the next whole frame, or line of text, from the read buffer. Returns null if it has not all arrived yet.
+        if (this.binaryFraming) {
+            MessageFrame frame = MessageFrame.decode(this.readBuffer);
+            return (frame == null) ? null : frame.getPayload();
+        }
+        int start = this.readBuffer.position();
+        for (int i = start; i < this.readBuffer.limit(); i++) {
+            if (this.readBuffer.get(i) == '\n') {
+                int end = (i > start && this.readBuffer.get(i - 1) == '\r') ? i - 1 : i;
+                byte[] line = new byte[end - start];
+                this.readBuffer.get(line).position(i + 1);
+                return new String(line, Charset.defaultCharset());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void broadcast(String message) {
+        // This runs on the selector thread. Sends the reply as ChatBot does, with the "[BOT] " prefix.
+        String reply = "[BOT] " + message;
+        MessageFrame frame = this.binaryFraming ? MessageFrame.fromTypedLine(reply) : new MessageFrame(MessageFrame.Type.CHAT, reply);
+        this.pendingOutput.add(ByteBuffer.wrap(frame.encode(this.binaryFraming)));
+        write();
+    }
+
+    public void write() {
+        // Writes as many of the replies as the socket takes, and waits for it to be writable if any are left.
+        try {
+            ByteBuffer output;
+            while ((output = this.pendingOutput.peek()) != null) {
+                this.channel.write(output);
+                if (output.hasRemaining()) {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.pendingOutput.poll();
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException exception) {
+            close();
+        }
+    }
+
+    public void close() {
+        // Only the first call has any effect. The host is told, so that it connects to the server again once it can.
+        if (!this.channel.isOpen()) {
+            return;
+        }
+        ResourceCloser.closeCloseables(List.of(this.channel));
+        this.pendingOutput.clear();
+        this.host.sessionClosed(this);
+    }
+
+}
@@ -0,0 +1,404 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ChannelSession {
+    // The state of a single client served by an event loop. Everything apart from writing is done on the event loop's thread.
+
+    // Lines longer than this are treated as abuse and the client is disconnected.
+    private static final int MAX_LINE_LENGTH = 65536;
+    // Maximum number of messages handed to the channel in a single gathering write.
+    private static final int MAX_GATHERED_WRITES = 64;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ServerEventLoop eventLoop;
+    private final ChatServer chatServer;
+    // Holds the bytes of a line which has not been fully received yet. Only created once a partial line arrives.
+    private ByteArrayOutputStream lineBuffer;
+    // Holds the encoded output which has not been written to the channel yet.
+    // Once connected, messages are only taken from the connection's bounded outbound queue when this is empty.
+    private final Queue<ByteBuffer> outputQueue;
+    // Set while the session is waiting for the event loop to write its output.
+    private final AtomicBoolean writeRequested;
+    // Reused for every gathering write, so that writing does not allocate. Only used by the event loop's thread.
+    private final ByteBuffer[] gatheredBuffers;
+    // Holds the broadcaster to the client, which queues its output rather than writing it.
+    private final PrintWriter broadcaster;
+    // Holds the client's connection and input handler once the name handshake is complete, otherwise null.
+    private Connection clientConnection;
+    private ClientInputHandler inputHandler;
+    // Set once the client has closed their side of the connection, so the channel is no longer read.
+    private boolean readClosed;
+    // Set once the client has asked for binary framing. Input is then read as frames once the handshake is complete.
+    private boolean binaryFraming;
+    // Holds how the client asked for compression during the handshake, or null if they did not.
+    private String compressionRequest;
+    // Holds the System.nanoTime() at which the client was accepted, so the handshake can be timed.
+    private final long acceptedAt;
+    // Set once the client has only been answered, as they probed the server for its population or the server is full.
+    // Nothing more is read, and the channel is closed once the answer is written.
+    private boolean answeredOnly;
+    // Set while a message is held back by the client's rate limit. Nothing more is read or handled until it has been handled.
+    private boolean paused;
+    // Hold the message held back by the rate limit, otherwise null. Anything read after it is kept in the line buffer.
+    private String heldLine;
+    private MessageFrame heldFrame;
+
+    public ChannelSession(SocketChannel channel, SelectionKey key, ServerEventLoop eventLoop, ChatServer chatServer) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.chatServer = chatServer;
+        this.lineBuffer = null;
+        this.outputQueue = new ConcurrentLinkedQueue<>();
+        this.writeRequested = new AtomicBoolean(false);
+        this.gatheredBuffers = new ByteBuffer[MAX_GATHERED_WRITES];
+        this.broadcaster = new PrintWriter(new ChannelOutputStream(), true);
+        this.clientConnection = null;
+        this.inputHandler = null;
+        this.readClosed = false;
+        this.binaryFraming = false;
+        this.compressionRequest = null;
+        this.acceptedAt = System.nanoTime();
+        this.answeredOnly = false;
+        this.paused = false;
+        this.heldLine = null;
+        this.heldFrame = null;
+    }
+
+    private SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    private ChatServer getChatServer() {
+        return this.chatServer;
+    }
+
+    private PrintWriter getBroadcaster() {
+        return this.broadcaster;
+    }
+
+    private Connection getClientConnection() {
+        return this.clientConnection;
+    }
+
+    protected void start() {
+        // Starts the name handshake, exactly as ChatServer.ConnectionHandler does for a threaded connection.
+        if (getChatServer().isFull()) {
+            answerOnly(getChatServer().describeFull(getChannel().socket().getLocalAddress()));
+            return;
+        }
+        getBroadcaster().println(ChatServer.NAME_PROMPT);
+    }
+
+    protected void read(ByteBuffer readBuffer) {
+        /* Reads whatever the client has sent into the event loop's shared buffer and splits it into lines.
+         * Each complete line is handled straight away, and an incomplete line is kept until the rest of it arrives.
+         * If the client has closed their connection or there is an IO exception, the session is closed.
+         */
+        int bytesRead;
+        readBuffer.clear();
+        try {
+            bytesRead = getChannel().read(readBuffer);
+        } catch (IOException exception) {
+            bytesRead = -1;
+        }
+        if (bytesRead < 0) {
+            this.readClosed = true;
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            closeAfterFailure();
+            return;
+        }
+        readBuffer.flip();
+        handleInput(readBuffer);
+    }
+
+    private void handleInput(ByteBuffer readBuffer) {
+        // Handles what has been read as frames or as lines. If a message is held back, the rest is kept in the line buffer.
+        if (this.binaryFraming && getClientConnection() != null) {
+            readFrames(readBuffer);
+            return;
+        }
+        int lineStart = readBuffer.position();
+        while (readBuffer.hasRemaining() && getChannel().isOpen() && !this.paused) {
+            if (readBuffer.get() != '\n') {
+                continue;
+            }
+            int lineEnd = readBuffer.position() - 1;
+            appendToLine(readBuffer, lineStart, lineEnd);
+            handleLine(new String(this.lineBuffer.toByteArray(), Charset.defaultCharset()).trim());
+            this.lineBuffer = null;
+            lineStart = readBuffer.position();
+        }
+        if (getChannel().isOpen() && lineStart < readBuffer.limit()) {
+            appendToLine(readBuffer, lineStart, readBuffer.limit());
+            if (this.lineBuffer.size() > MAX_LINE_LENGTH) {
+                closeAfterFailure();
+            }
+        }
+    }
+
+    private void readFrames(ByteBuffer readBuffer) {
+        /* Handles every complete frame received, and keeps an incomplete frame until the rest of it arrives.
+         * Frames are decoded straight from the shared buffer, unless part of a frame was kept from an earlier read.
+         * A frame which is not valid (see MessageFrame) is treated as abuse and the client is disconnected.
+         */
+        ByteBuffer input = readBuffer;
+        if (this.lineBuffer != null) {
+            appendToLine(readBuffer, readBuffer.position(), readBuffer.limit());
+            input = ByteBuffer.wrap(this.lineBuffer.toByteArray());
+            this.lineBuffer = null;
+        }
+        try {
+            MessageFrame frame;
+            while (getChannel().isOpen() && !this.paused && (frame = MessageFrame.decode(input)) != null) {
+                long delay = this.inputHandler.checkRateLimit(frame);
+                if (delay > 0) {
+                    this.heldFrame = frame;
+                    pauseReading(delay);
+                } else if (delay == 0 && !this.inputHandler.handleFrame(frame)) {
+                    return;
+                }
+            }
+        } catch (ProtocolException exception) {
+            closeAfterFailure();
+            return;
+        }
+        if (getChannel().isOpen() && input.hasRemaining()) {
+            appendToLine(input, input.position(), input.limit());
+        }
+    }
+
+    private void appendToLine(ByteBuffer readBuffer, int from, int to) {
+        if (this.lineBuffer == null) {
+            this.lineBuffer = new ByteArrayOutputStream(Math.max(32, to - from));
+        }
+        for (int i = from; i < to; i++) {
+            this.lineBuffer.write(readBuffer.get(i));
+        }
+    }
+
+    private void handleLine(String line) {
+        // Until the client has chosen a name, every line is treated as a name. Afterwards, lines are handled as chat input..-
+        // -.. once the client's rate limit allows.
+        if (this.answeredOnly) {
+            return;
+        }
+        if (getClientConnection() == null) {
+            handleName(line);
+            return;
+        }
+        long delay = this.inputHandler.checkRateLimit(line);
+        if (delay > 0) {
+            this.heldLine = line;
+            pauseReading(delay);
+        } else if (delay == 0 && !this.inputHandler.handleLine(line)) {
+            getClientConnection().disconnectConnection();
+        }
+    }
+
+    private void pauseReading(long delay) {
+        /* Stops reading from the client until the event loop resumes the session, once the delay has passed.
+         * The event loop never waits for a single client, and anything further the client sends is left in the socket..-
+         * -.. meanwhile, so a client sending too quickly is slowed down by TCP rather than kept in the server's memory.
+         */
+        this.paused = true;
+        if (this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        this.eventLoop.resumeLater(this, delay);
+    }
+
+    protected void resumeReading() {
+        /* This runs on the event loop's thread. Handles the message which was held back, then whatever was read after it,..-
+         * -.. and reads from the client again unless another message has been held back in the meantime.
+         */
+        if (!this.paused || !getChannel().isOpen()) {
+            return;
+        }
+        this.paused = false;
+        String line = this.heldLine;
+        MessageFrame frame = this.heldFrame;
+        this.heldLine = null;
+        this.heldFrame = null;
+        if (line != null && !this.inputHandler.handleLine(line)) {
+            getClientConnection().disconnectConnection();
+            return;
+        }
+        if (frame != null && !this.inputHandler.handleFrame(frame)) {
+            return;
+        }
+        if (this.lineBuffer != null) {
+            ByteBuffer rest = ByteBuffer.wrap(this.lineBuffer.toByteArray());
+            this.lineBuffer = null;
+            handleInput(rest);
+        }
+        if (!this.paused && !this.readClosed && this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void handleName(String name) {
+        ChatServer server = getChatServer();
+        if (!server.reserveName(name)) {
+            // A client asking for binary framing does so in place of its first name. See MessageFrame.
+            if (name.equals(MessageFrame.BINARY_REQUEST)) {
+                this.binaryFraming = true;
+                getBroadcaster().println(MessageFrame.BINARY_ACCEPTED);
+            } else if (server.acceptsCompression(name)) {
+                this.compressionRequest = name;
+                getBroadcaster().println(MessageCompressor.ACCEPTED);
+            } else if (name.equals(ServerDiscovery.REQUEST)) {
+                // A client only probing the server is answered and closed without being admitted.
+                answerOnly(server.describePopulation());
+            } else {
+                getBroadcaster().println(ChatServer.NAME_RETRY_PROMPT);
+            }
+            return;
+        }
+        getBroadcaster().println(ChatServer.NAME_ACCEPTED);
+        this.clientConnection = new Connection(getChannel().socket(), getChannel().socket().getInetAddress(),
+                server.resolveName(name), getBroadcaster(), null, server);
+        this.inputHandler = new ClientInputHandler(getClientConnection());
+        getClientConnection().setBinaryFraming(this.binaryFraming);
+        getClientConnection().setCompressor(server.createCompressor(this.compressionRequest));
+        getClientConnection().setOutputScheduler(() -> this.eventLoop.requestWrite(this));
+        server.admitConnection(getClientConnection(), this.acceptedAt);
+    }
+
+    private void answerOnly(String answer) {
+        // Sends the answer and closes the channel once it is written, without reading anything more from the client.
+        this.answeredOnly = true;
+        this.readClosed = true;
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+        getBroadcaster().println(answer);
+    }
+
+    private void closeAfterFailure() {
+        // Mirrors ClientInputHandler: a connected client is told that their connection is being closed and then disconnected.
+        Connection connection = getClientConnection();
+        if (connection != null && !connection.isDisconnected()) {
+            getChatServer().getServerOutputHandler().serverBroadcast(connection, "Failed to continue process. Closing connection.");
+            connection.disconnectConnection();
+        } else {
+            ResourceCloser.closeCloseables(List.of(getChannel()));
+        }
+    }
+
+    protected void flushOutput() {
+        /* This runs on the event loop's thread. Acts as the writer for the connection's outbound queue.
+         * Writes as much of the queued output as the channel accepts without blocking, taking further messages from the..-
+         * -.. connection's outbound queue as the channel keeps up. Up to MAX_GATHERED_WRITES messages are written at once..-
+         * -.. with a single gathering write. The messages are already encoded, so they are only wrapped, never copied.
+         * If the channel can not take all of it, the event loop carries on once the channel becomes writable, and the..-
+         * -.. connection's queue fills up meanwhile rather than this one.
+         * Once a disconnecting connection's output, or an answer only, has all been written, it is closed.
+         */
+        this.writeRequested.set(false);
+        Connection connection = getClientConnection();
+        int readInterest = (this.readClosed || this.paused) ? 0 : SelectionKey.OP_READ;
+        try {
+            while (true) {
+                int gathered = gatherOutput(connection);
+                if (gathered > 0) {
+                    getChatServer().getMetrics().recordOutboundBytes(getChannel().write(this.gatheredBuffers, 0, gathered));
+                    boolean writtenFully = !this.gatheredBuffers[gathered - 1].hasRemaining();
+                    for (int i = 0; i < gathered && !this.gatheredBuffers[i].hasRemaining(); i++) {
+                        this.outputQueue.poll();
+                    }
+                    Arrays.fill(this.gatheredBuffers, 0, gathered, null);
+                    if (!writtenFully) {
+                        this.key.interestOps(readInterest | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } else if (connection == null || !connection.getOutboundQueue().finishDraining()) {
+                    if (this.answeredOnly) {
+                        ResourceCloser.closeCloseables(List.of(getChannel()));
+                        return;
+                    }
+                    if (connection != null && connection.isDisconnected()) {
+                        connection.closeResources();
+                        return;
+                    }
+                    break;
+                }
+            }
+            this.key.interestOps(readInterest);
+        } catch (IOException | CancelledKeyException exception) {
+            this.outputQueue.clear();
+        }
+    }
+
+    private int gatherOutput(Connection connection) {
+        /* Tops up the output waiting to be written with messages from the connection's outbound queue, then fills the..-
+         * -.. gathered buffers from the front of it. Returns the number of buffers to be written.
+         */
+        int waiting = 0;
+        for (ByteBuffer buffer : this.outputQueue) {
+            this.gatheredBuffers[waiting++] = buffer;
+            if (waiting == MAX_GATHERED_WRITES) {
+                return waiting;
+            }
+        }
+        MessageFrame message;
+        MessageCompressor compressor = (connection == null) ? null : connection.getCompressor();
+        if (compressor != null) {
+            // Every message taken is compressed into a single buffer, which holds the whole batch once sync flushed.
+            while (!compressor.isBatchFull() && (message = connection.getOutboundQueue().poll()) != null) {
+                compressor.add(message.encode(connection.usesBinaryFraming()));
+            }
+            byte[] batch = compressor.finishBatch();
+            if (batch.length > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                this.outputQueue.add(buffer);
+                this.gatheredBuffers[waiting++] = buffer;
+            }
+            return waiting;
+        }
+        while (connection != null && waiting < MAX_GATHERED_WRITES && (message = connection.getOutboundQueue().poll()) != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(message.encode(connection.usesBinaryFraming()));
+            this.outputQueue.add(buffer);
+            this.gatheredBuffers[waiting++] = buffer;
+        }
+        return waiting;
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+        // Queues everything written to it for the event loop rather than writing to the channel from the caller's thread.
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (length == 0 || !getChannel().isOpen()) {
+                return;
+            }
+            ChannelSession.this.outputQueue.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length)));
+            if (ChannelSession.this.writeRequested.compareAndSet(false, true)) {
+                ChannelSession.this.eventLoop.requestWrite(ChannelSession.this);
+            }
+        }
+
+        @Override
+        public void close() {
+            // Nothing to do - the channel itself is closed along with the connection's socket.
+        }
+    }
+
+}
@@ -1,4 +1,3 @@
-import java.io.BufferedReader;
 import java.io.IOException;
 
 public class ChatClient extends Client {
@@ -39,7 +38,7 @@ public class ChatClient extends Client {
         String userInput;
         try {
             while (!(userInput = super.getUserInputReader().readLine()).equalsIgnoreCase("exit")) {
-                super.getBroadcaster().println(userInput);
+                super.sendMessage(userInput);
             }
         } catch (IOException exception) {
             System.out.println("Error occurred with processing input. Please try again.");
@@ -53,12 +52,11 @@ public class ChatClient extends Client {
         // This runs on a separate thread.
 
         private void processServerInput() {
-            BufferedReader serverInputStream = ChatClient.super.getServerInputReader();
             // In an infinite while loop, the server's messages are constantly being received and printed.
             try {
                 String serverInput;
                 while (true) {
-                    serverInput = serverInputStream.readLine();
+                    serverInput = ChatClient.super.readServerMessage();
                     if (!serverInput.isBlank()) {
                         System.out.println(serverInput);
                     }
@@ -0,0 +1,53 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ChatRoom {
+    /* A named room, holding the connections currently in it.
+     * Chat messages are only sent to the members of the sender's room, so the cost of a message depends on the size..-
+     * -.. of the room rather than the number of users on the server.
+     * Members are only ever added and removed through the RoomRegistry.
+     * The last messages sent in the room are kept, so they can be shown to users joining it.
+     */
+
+    private final String name;
+    private final Set<Connection> members;
+    private final RecentMessages recentMessages;
+
+    protected ChatRoom(String name, int recentMessagesCapacity) {
+        this.name = name;
+        this.members = ConcurrentHashMap.newKeySet();
+        this.recentMessages = new RecentMessages(recentMessagesCapacity);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public Collection<Connection> getMembers() {
+        // Returns a live, read-only view of the members, which can be iterated while members join and leave.
+        return Collections.unmodifiableCollection(this.members);
+    }
+
+    public RecentMessages getRecentMessages() {
+        return this.recentMessages;
+    }
+
+    public int size() {
+        return this.members.size();
+    }
+
+    protected void add(Connection connection) {
+        this.members.add(connection);
+    }
+
+    protected void remove(Connection connection) {
+        this.members.remove(connection);
+    }
+
+    protected boolean isEmpty() {
+        return this.members.isEmpty();
+    }
+
+}
@@ -1,34 +1,109 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 public class ChatServer {
 
+    // Messages sent to the client during the name handshake. The client relies on NAME_ACCEPTED to end the handshake..-
+    // -.. and sends nothing else until it arrives, so the server never reads past the handshake before switching to frames.
+    protected static final String NAME_PROMPT = "Please enter a name to proceed with (min 2 characters, max 20):";
+    protected static final String NAME_RETRY_PROMPT = "Name is illegal/already taken. Please choose another name (min 2 characters, max 20):";
+    protected static final String NAME_ACCEPTED = "Name successfully chosen!";
+    // Sent in place of NAME_PROMPT once the server is full, followed by "<address>:<port>" if another server has room..-
+    // -.. (see describeFull()), and the connection is then closed. Client follows the redirect by itself.
+    protected static final String SERVER_FULL = "Server full.";
+    protected static final String REDIRECT = "Server full. Redirecting to ";
+    // Sent to every user as the server shuts down, followed by RECONNECT and "<address>:<port>" if a linked server has room.
+    protected static final String SHUTDOWN_NOTICE = "Server is shutting down.";
+    protected static final String RECONNECT = " Reconnect to ";
+
+    // Number of messages to the admin which can wait to be written before new ones are dropped
+    private static final int ADMIN_LOG_CAPACITY = 65536;
+    // Time, in milliseconds, the text file of bad words must go unchanged before it is reloaded
+    private static final long WATCH_SETTLE_TIME = 500;
+
     // List of all available ports
     private final List<Integer> portsList = new ArrayList<>(Arrays.asList(14001, 14002, 14003, 14004, 14005, 14006, 14007, 14008, 14009, 14010));
-    // List of all sockets connected to the server
-    private final Map<Integer, Connection> connectionsMap = new HashMap<>();
-    // List of all bad words from a text file - singleton instance
-    private static List<String> badWordsList = null;
-    // Number of anonymous users
-    private int anonymousUsers = 0;
+    // Registry of all connections to the server and the names in use
+    private final ConnectionRegistry connectionRegistry = new ConnectionRegistry();
+    // Holds the rooms connections chat in. Every connection starts in the lobby. Made once the settings are known
+    private RoomRegistry roomRegistry;
+    // Matcher compiled from the list of bad words, which checks a message for all of them in a single pass.
+    // Replaced as a whole when the list is reloaded, never changed in place
+    private static volatile BadWordMatcher badWordMatcher = null;
+    // Holds where the list of bad words is loaded from, and the cache of its compiled form
+    private final BadWordDictionary badWordDictionary = new BadWordDictionary(Path.of("bad_words.txt"));
+    // Set while the list of bad words is being reloaded, so only one reload runs at a time
+    private final AtomicBoolean reloadingBadWords = new AtomicBoolean(false);
+    // Set once the server starts shutting down, so it only shuts down once and stops accepting connections
+    private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
     // Holds the port number of the server
     private int portNumber;
     // Holds the server socket
     private ServerSocket serverSocket;
     // Holds an instance of the server output Handler.
     private final ServerOutputHandler serverOutputHandler;
+    // Holds the settings chosen through the command line args
+    private final ServerSettings settings;
+    // Holds the event loops serving connections in NIO mode
+    private final List<ServerEventLoop> eventLoops = new ArrayList<>();
+    // Index of the event loop the next accepted connection is handed to
+    private int nextEventLoop = 0;
+    // Holds the executor running connection and input handlers in VIRTUAL mode, otherwise null
+    private ExecutorService connectionExecutor = null;
+    // Holds the executor running the writers which drain each connection's outbound queue
+    private ExecutorService outputExecutor = null;
+    // Holds the log every chat and private message is kept in, unless the server was started with -history off
+    private HistoryLog historyLog = null;
+    // Holds the links to other servers, if the server was started with -federate, otherwise null
+    private Federation federation = null;
+    // Holds the timer which starts the writers of connections whose output is held back to be written together, otherwise null
+    private ScheduledExecutorService flushTimer = null;
+    // Holds the metrics counted on the hot paths, shown with /stats
+    private final ServerMetrics metrics;
+    // Holds the timer which works out the rates in the metrics once a second
+    private ScheduledExecutorService metricsTimer = null;
+    // Holds the server the metrics are scraped from, if the server was started with -metrics, otherwise null
+    private HttpServer metricsServer = null;
+    // Holds the addresses banned from the server, checked as soon as each connection is accepted. Made once the port is known
+    private BanList banList;
+    // Holds the log every message to the admin goes through once the server has started, otherwise null
+    private AdminLog adminLog = null;
 
     private ChatServer() {
         // Initialise the fields to their default values
         this.portNumber = 14001;
         this.serverOutputHandler = new ServerOutputHandler();
+        this.settings = new ServerSettings();
+        this.metrics = new ServerMetrics();
+        this.serverOutputHandler.setMetrics(this.metrics);
     }
 
     public static void main(String[] args) {
@@ -37,9 +112,34 @@ public class ChatServer {
         server.startProcess(args);
     }
 
-    // Getter method for the list of connections, which returns a list of all sockets connected to the server.
-    public Map<Integer, Connection> getConnectionsMap() {
-        return this.connectionsMap;
+    // Getter method for the registry of connections, which holds all sockets connected to the server.
+    public ConnectionRegistry getConnectionRegistry() {
+        return this.connectionRegistry;
+    }
+
+    // Getter method for the registry of rooms, which holds the members of every room on the server.
+    public RoomRegistry getRoomRegistry() {
+        return this.roomRegistry;
+    }
+
+    // Getter method for the history log. Null if no history is kept.
+    public HistoryLog getHistoryLog() {
+        return this.historyLog;
+    }
+
+    // Getter method for the federation linking the server to other servers. Null if the server is not federated.
+    public Federation getFederation() {
+        return this.federation;
+    }
+
+    // Getter method for the addresses banned from the server.
+    public BanList getBanList() {
+        return this.banList;
+    }
+
+    // Getter method for the metrics counted on the hot paths.
+    public ServerMetrics getMetrics() {
+        return this.metrics;
     }
 
     // Getter method for the list of default server ports
@@ -52,6 +152,11 @@ public class ChatServer {
         return this.serverOutputHandler;
     }
 
+    // Getter method for the server settings.
+    protected ServerSettings getSettings() {
+        return this.settings;
+    }
+
     private void setServerSocket(int head) {
         /* Creates a new server socket and assigns it to the serverSocket field.
          * This method also allows the socket to be bound even if a previous connection is in the timeout state.
@@ -64,8 +169,16 @@ public class ChatServer {
             System.exit(0);
         }
         try {
-            this.serverSocket = new ServerSocket(getPortNumber());
-            this.serverSocket.setReuseAddress(true);
+            if (getSettings().getServerMode() == ServerSettings.ServerMode.NIO) {
+                // The channel's socket is kept so that the rest of the server can treat both modes alike.
+                ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+                serverSocketChannel.socket().setReuseAddress(true);
+                serverSocketChannel.bind(new InetSocketAddress(getPortNumber()));
+                this.serverSocket = serverSocketChannel.socket();
+            } else {
+                this.serverSocket = new ServerSocket(getPortNumber());
+                this.serverSocket.setReuseAddress(true);
+            }
             System.out.println("Socket setup successful! Port: " + getPortNumber());
         } catch (IOException exception) {
             setPortNumber(getPortsList().get(head));
@@ -92,87 +205,476 @@ public class ChatServer {
         return this.serverSocket;
     }
 
-    // Getter method for the number of anonymous users
-    private int getAnonymousUsers() {
-        return this.anonymousUsers;
-    }
-
-    // Getter method for the list of bad words.
-    public static List<String> getBadWordsList() {
-        return ChatServer.badWordsList;
+    // Getter method for the matcher compiled from the list of bad words.
+    // Read once per message, so a check always uses a single, complete list, even while the list is being reloaded.
+    public static BadWordMatcher getBadWordMatcher() {
+        return ChatServer.badWordMatcher;
     }
 
-    // Setter method for the list of bad words.
-    private void setListOfBadWords(String startDeclaration, String endDeclaration) {
+    private void loadBadWords() {
+        /* Loads the list of bad words, from its cache if it is up to date. The server shuts down if the list can not be read.
+         * Text file containing an inappropriate word or phrase on each line - should be located in the same file as the application.
+         */
+        /* Text file downloaded from:
+         * https://www.freewebheaders.com/full-list-of-bad-words-banned-by-google/
+         * "Full List of Bad Words in English (Text File – One word per line)"
+         * By James Parker
+         * Edited slightly to fit the standards of this program.
+         */
+        long start = System.nanoTime();
         try {
-            // Text file containing an inappropriate word on each line - should be located in the same file as the application.
-            /* Text file downloaded from:
-             * https://www.freewebheaders.com/full-list-of-bad-words-banned-by-google/
-             * "Full List of Bad Words in English (Text File – One word per line)"
-             * By James Parker
-             * Edited slightly to fit the standards of this program.
-             */
-            BufferedReader bufferedReader = new BufferedReader(new FileReader("bad_words.txt"));
-            createListOfBadWords(bufferedReader, ChatServer.badWordsList, startDeclaration, endDeclaration);
-        } catch (FileNotFoundException e) {
-            getServerOutputHandler().broadcastToAdmin("\033[0;31mbad_words text file not found. Shutting down.\033[0m");
+            ChatServer.badWordMatcher = this.badWordDictionary.load(true);
+            getServerOutputHandler().broadcastToAdmin(describeBadWords("Loaded", start) +
+                    (this.badWordDictionary.isLoadedFromCache() ? " from the cache." : "."));
+        } catch (IOException exception) {
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to load bad_words text file (" + exception.getMessage() +
+                    "). Shutting down.\033[0m");
             exit();
         }
     }
 
-    private void createListOfBadWords(BufferedReader bufferedReader, List<String> list, String startDeclaration, String endDeclaration) {
-        String word;
-        try {
-            while (true) {
-                if (bufferedReader.readLine().startsWith(startDeclaration)) {
-                    break;
-                }
+    protected void reloadBadWords() {
+        /* Rebuilds the matcher from the text file on a thread of its own, then swaps it in at once, so messages are never..-
+         * -.. held up and are always checked against either the whole old list or the whole new one.
+         * If the list can not be read, the admin is notified and the old list is kept.
+         */
+        if (!this.reloadingBadWords.compareAndSet(false, true)) {
+            getServerOutputHandler().broadcastToAdmin("The bad words are already being reloaded.");
+            return;
+        }
+        Thread reloader = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                ChatServer.badWordMatcher = this.badWordDictionary.load(false);
+                getServerOutputHandler().broadcastToAdmin(describeBadWords("Reloaded", start) + ".");
+            } catch (IOException exception) {
+                getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to reload the bad words (" + exception.getMessage() +
+                        "). Still using the previous list.\033[0m");
+            } finally {
+                this.reloadingBadWords.set(false);
             }
-            while ((word = bufferedReader.readLine()) != null && !(word.startsWith(endDeclaration))) {
-                if (word.length() < 3) {
-                    continue;
+        }, "s_badWordReloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    private String describeBadWords(String action, long start) {
+        BadWordMatcher matcher = getBadWordMatcher();
+        int phrases = matcher.countPhrases();
+        return action + " " + (matcher.size() - phrases) + " bad words and " + phrases + " phrases in " +
+                (System.nanoTime() - start) / 1_000_000 + " ms";
+    }
+
+    private void startBadWordWatcher() {
+        /* If the server was started with -watchwords on, reloads the bad words whenever their text file changes.
+         * Editors often write a file in several steps, so changes are only acted on once the file has been quiet for..-
+         * -.. WATCH_SETTLE_TIME milliseconds.
+         */
+        if (!getSettings().isWatchingBadWords()) {
+            return;
+        }
+        Path textFile = this.badWordDictionary.getTextFile().toAbsolutePath();
+        WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            textFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException exception) {
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to watch " + textFile.getFileName() + " (" +
+                    exception.getMessage() + "). Type /reloadwords after changing it.\033[0m");
+            return;
+        }
+        Thread watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = key.pollEvents().stream().anyMatch(event -> textFile.getFileName().equals(event.context()));
+                    key.reset();
+                    if (!changed) {
+                        continue;
+                    }
+                    // Waits until nothing else has changed in the folder for a while.
+                    while ((key = watchService.poll(WATCH_SETTLE_TIME, TimeUnit.MILLISECONDS)) != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                    getServerOutputHandler().broadcastToAdmin(textFile.getFileName() + " changed. Reloading the bad words.");
+                    reloadBadWords();
                 }
-                list.add(word.toLowerCase());
+            } catch (InterruptedException | ClosedWatchServiceException ignored) {
             }
-        } catch (IOException exception) {
-            getServerOutputHandler().broadcastToAdmin("\033[0;31mCouldn't complete setting list of all inappropriate words. Shutting down.\033[0m");
-            exit();
+        }, "s_badWordWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        getServerOutputHandler().broadcastToAdmin("Watching " + textFile.getFileName() + " for changes.");
+    }
+
+    protected boolean reserveName(String name) {
+        /* Returns true if the name is legal and not taken, in which case it is reserved for the client until they disconnect.
+         * An empty name is always legal, as the client is then given an anonymous name.
+         */
+        if (name.equals("")) return true;
+        else if (name.length() > 20 || name.length() < 2) return false;
+        else if (name.contains("admin") || name.contains("server")) return false;
+        return getConnectionRegistry().reserveName(name);
+    }
+
+    protected String resolveName(String name) {
+        /* If not empty, return name. Otherwise, return anonymous format.
+         * The format of the anonymous name ensures users can't maliciously/unintentionally impersonate other anonymous users.
+         */
+        if (name.equals("")) {
+            return getConnectionRegistry().reserveAnonymousName();
+        }
+        return name;
+    }
+
+    protected boolean acceptsCompression(String request) {
+        // A client asks for compression in place of a name, as for binary framing. Refused if started with -compression off.
+        return MessageCompressor.isRequest(request) && getSettings().getCompressionLevel() > 0;
+    }
+
+    protected boolean isFull() {
+        // Checked as each client connects. Clients still choosing a name are not counted, so a burst may go slightly over.
+        int maxPopulation = getSettings().getMaxPopulation();
+        return maxPopulation > 0 && getConnectionRegistry().size() >= maxPopulation;
+    }
+
+    protected String describeFull(InetAddress reachedAt) {
+        /* The answer to a client connecting while the server is full, naming the linked server with the most room if any.
+         * reachedAt is the address the client connected to this server on (the socket's local address).
+         */
+        getMetrics().recordTurnedAway();
+        InetSocketAddress target = (getFederation() == null) ? null : getFederation().findServerWithRoom();
+        return (target == null) ? SERVER_FULL : REDIRECT + describeServer(target, reachedAt);
+    }
+
+    private static String describeServer(InetSocketAddress server, InetAddress reachedAt) {
+        /* Returns "<address>:<port>" of a linked server, as a client of this server is to reach it.
+         * A server linked on the loopback (or wildcard) address is on this machine, so a client is sent to the address it..-
+         * -.. reached this server on instead, which is only the loopback address if the client is on this machine too.
+         */
+        InetAddress address = server.getAddress();
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+            address = reachedAt;
         }
+        return address.getHostAddress() + ":" + server.getPort();
     }
 
-    private void increaseAnonCount() {
-        // Increments the anonymousUsers field when an anonymous user joins
-        this.anonymousUsers++;
+    protected String describePopulation() {
+        // The answer to a client probing the server for its population in place of a name (see ServerDiscovery).
+        return ServerDiscovery.describePopulation(getConnectionRegistry().size());
+    }
+
+    protected MessageCompressor createCompressor(String request) {
+        // Returns the compressor for a client who asked for compression with the request, or null if they did not ask.
+        if (request == null) {
+            return null;
+        }
+        return new MessageCompressor(getSettings().getCompressionLevel(), request, getMetrics());
+    }
+
+    protected void admitConnection(Connection connection, long acceptedAt) {
+        // The client's connection is added to the list of connections accepted by the server, and to the lobby.
+        // Everyone is notified that the client has joined, and the client is sent the informational messages..-
+        // -.. followed by the latest messages in the lobby.
+        // acceptedAt is the System.nanoTime() at which the client was accepted, so the handshake can be timed.
+        getMetrics().recordHandshake(System.nanoTime() - acceptedAt);
+        ConnectionRegistry registry = getConnectionRegistry();
+        ServerOutputHandler serverOutputHandler = getServerOutputHandler();
+        registry.add(connection);
+        ChatRoom lobby = getRoomRegistry().join(connection, RoomRegistry.LOBBY);
+        serverOutputHandler.globalServerBroadcast(registry.getConnections(),
+                connection.getPublicIdentity() + " has connected! Online users: " + registry.size());
+        getInformationalMessages().forEach(message -> serverOutputHandler.serverBroadcast(connection, message));
+        if (lobby != null) {
+            serverOutputHandler.recentMessagesBroadcast(connection, lobby, lobby.getRecentMessages().getCapacity());
+        }
+        if (getFederation() != null) {
+            getFederation().publishJoin(connection);
+        }
+    }
+
+    private List<String> getInformationalMessages() {
+        // Returns a list containing informational messages printed to the user upon joining the server.
+        List<String> messages = new ArrayList<>();
+        messages.add("Welcome to the server!");
+        messages.add("Type \"/serverpop\" without the speech marks to view the population of the server!");
+        messages.add("Type \"/pm <ID>\" without the speech marks and <> to PM another user!");
+        messages.add("You are in the " + RoomRegistry.LOBBY + ". Type \"/join <room>\" without the speech marks and <> to chat in another room, " +
+                "\"/leave\" to return to the " + RoomRegistry.LOBBY + " and \"/rooms\" to see every room!");
+        messages.add("Type \"/history <n>\" without the speech marks and <> to see the last n messages in your room!");
+        messages.add("Type \"exit\" without the speech marks to exit the program.");
+        return messages;
     }
 
     private void startProcess(String[] args) {
         // Run a set of methods in order.
-        checkArgs(args);
+        checkArgs(args, 0);
+        this.roomRegistry = new RoomRegistry(getSettings().getRecentMessages());
+        setExecutors();
         setServerSocket(0);
-        if (getBadWordsList() == null) {
-            ChatServer.badWordsList = new ArrayList<>();
-            setListOfBadWords("-----------", "-----------");
+        openAdminLog();
+        if (getBadWordMatcher() == null) {
+            loadBadWords();
         }
+        startBadWordWatcher();
+        openHistoryLog();
+        openBanList();
+        startMetrics();
+        startFederation();
         issueConnections();
     }
 
-    private void checkArgs(String[] args) {
+    private void openAdminLog() {
+        /* From here on, messages to the admin are written by the admin log's own thread, to the console and to the log..-
+         * -.. file given with -log, if any. Until then, they are printed straight away.
+         */
+        ServerSettings settings = getSettings();
+        this.adminLog = new AdminLog(ADMIN_LOG_CAPACITY, settings.getConsoleLevel(),
+                (settings.getLogFile() == null) ? null : Path.of(settings.getLogFile()), settings.getLogFileSize() * 1024L * 1024L);
+        String description = this.adminLog.start();
+        getServerOutputHandler().setAdminLog(this.adminLog);
+        getServerOutputHandler().broadcastToAdmin(description);
+    }
+
+    private void openHistoryLog() {
+        /* Opens the history log in a folder for this server's port, recovering the messages already kept there.
+         * If it can not be opened, the admin is notified and the server runs without keeping any history.
+         */
+        ServerSettings settings = getSettings();
+        if (settings.getHistoryDirectory() == null) {
+            return;
+        }
+        try {
+            this.historyLog = HistoryLog.open(Path.of(settings.getHistoryDirectory(), String.valueOf(getPortNumber())),
+                    settings.getHistorySegmentSize() * 1024L * 1024L, settings.getHistoryRetainedSize() * 1024L * 1024L,
+                    TimeUnit.HOURS.toMillis(settings.getHistoryMaxAge()), getServerOutputHandler());
+            getServerOutputHandler().setHistoryLog(this.historyLog);
+            getServerOutputHandler().broadcastToAdmin(this.historyLog.getRecoveryReport());
+        } catch (IOException exception) {
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to open the history log (" + exception.getMessage() +
+                    "). No history is kept.\033[0m");
+        }
+    }
+
+    private void openBanList() {
+        /* Loads the bans kept in a file for this server's port, so bans survive a restart.
+         * If the file can not be read, the admin is notified and the server starts with no bans.
+         */
+        String directory = getSettings().getBanDirectory();
+        this.banList = new BanList((directory == null) ? null : Path.of(directory, getPortNumber() + ".bans"));
+        try {
+            int bans = this.banList.load();
+            if (bans > 0) {
+                getServerOutputHandler().broadcastToAdmin("Loaded " + bans + " ban(s). Type /bans to see them.");
+            }
+        } catch (IOException exception) {
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to load the bans (" + exception.getMessage() +
+                    "). Starting with no bans.\033[0m");
+        }
+    }
+
+    protected void banAddress(InetAddress address, long durationMillis, boolean disconnectUsers) {
+        /* Bans the address, and if disconnectUsers is true, disconnects every user connected from it.
+         * The bans are then saved on another thread, so the disk is never written on a connection's thread or an event loop.
+         */
+        getBanList().ban(address, durationMillis);
+        if (disconnectUsers) {
+            getConnectionRegistry().getConnections().stream().filter(connection -> address.equals(connection.getAddress()))
+                    .forEach(connection -> {
+                        getServerOutputHandler().serverBroadcast(connection, "You have been banned from the server.");
+                        connection.disconnectConnection();
+                    });
+        }
+        runOutputTask(this::saveBans);
+    }
+
+    private void saveBans() {
+        try {
+            getBanList().save();
+        } catch (IOException exception) {
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to save the bans (" + exception.getMessage() +
+                    "). They stay in place until the server shuts down.\033[0m");
+        }
+    }
+
+    private void startMetrics() {
+        /* Starts working out the rates in the metrics once a second and, if the server was started with -metrics, serves..-
+         * -.. them at http://localhost:<port>/metrics in Prometheus' text format, to this machine only.
+         * If the port can not be used, the admin is notified and the metrics are only shown with /stats.
+         */
+        this.metricsTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "s_metricsTimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.metricsTimer.scheduleAtFixedRate(getMetrics()::sample, 1, 1, TimeUnit.SECONDS);
+        int port = getSettings().getMetricsPort();
+        if (port == 0) {
+            return;
+        }
+        try {
+            this.metricsServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            this.metricsServer.createContext("/metrics", this::serveMetrics);
+            this.metricsServer.start();
+            getServerOutputHandler().broadcastToAdmin("Serving metrics at http://localhost:" + port + "/metrics.");
+        } catch (IOException exception) {
+            this.metricsServer = null;
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to serve metrics on port " + port + " (" +
+                    exception.getMessage() + "). They can still be seen with /stats.\033[0m");
+        }
+    }
+
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        // Runs on the metrics server's own thread, so scraping never holds up the connections.
+        byte[] body = getMetrics().toPrometheus(getConnectionRegistry().size()).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    private void startFederation() {
+        /* Links the server to the peers given with -federate, if any. Each peer is given by the port clients connect to,..-
+         * -.. and links are made on that port plus Federation.LINK_PORT_OFFSET.
+         * "local" stands for every default port on this machine apart from this server's own.
+         */
+        List<String> peerNames = getSettings().getFederationPeers();
+        if (peerNames.isEmpty()) {
+            return;
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : peerNames) {
+            if (peer.equalsIgnoreCase("local")) {
+                getPortsList().stream().filter(port -> port != getPortNumber())
+                        .forEach(port -> peers.add(new InetSocketAddress("localhost", port + Federation.LINK_PORT_OFFSET)));
+            } else {
+                int separator = peer.lastIndexOf(':');
+                peers.add(new InetSocketAddress(peer.substring(0, separator),
+                        Integer.parseInt(peer.substring(separator + 1)) + Federation.LINK_PORT_OFFSET));
+            }
+        }
+        this.federation = new Federation(this, getPortNumber(), peers);
+        this.federation.start();
+    }
+
+    private void checkArgs(String[] args, int index) {
         /* Checks the string array passed on to it - only the command line args are passed as arguments to this method.
-         * Checks if the first element is "-csp", and if so, attempts to parse the next element as an integer.
-         * If there are no elements found after the first or if it can not be parsed as an integer, the user is notified..-
-         * -.. and hence the value of the port number remains unchanged from the default value.
-         * If the command is not "-csp", the user is told that the command they entered is an unknown argument.
+         * Checks the element at the given index against the known commands, and if it matches, attempts to apply the next element..-
+         * -.. as its value ("-csp <port>", "-mode <threads|virtual|nio>", "-loops <number>", "-queue <number>",..-
+         * -.. "-overflow <drop_oldest|disconnect|summarise>", "-match <substring|word>", "-flush <milliseconds>",..-
+         * -.. "-flushsize <characters>", "-federate <local|host:port,...>", "-history <directory|off>",..-
+         * -.. "-historysegment <MB>", "-historykeep <MB>", "-historyage <hours>", "-recent <messages>", "-metrics <port|off>",..-
+         * -.. "-ratelimit <drop|delay|warn|off>", "-chatlimit <rate[:burst]>", "-pmlimit <rate[:burst]>",..-
+         * -.. "-poplimit <rate[:burst]>", "-commandlimit <rate[:burst]>", "-bans <directory|off>", "-autoban <minutes|off>",..-
+         * -.. "-console <chat|event|info>", "-log <file|off>", "-logsize <MB>", "-watchwords <on|off>",..-
+         * -.. "-compression <level|off>", "-capacity <users|off>", "-drain <milliseconds>").
+         * If there is no element found after the command or if it is not a legal value, the user is notified..-
+         * -.. and hence the value remains unchanged from the default value.
+         * If the command is unknown, the user is told that the command they entered is an unknown argument.
+         * The following elements are then checked, as the commands are in the format of (-command1 value1 -command2 value2).
          */
         try {
-            if (args[0].equals("-csp")) {
-                try {
-                    setPortNumber(Integer.parseInt(args[1]));
-                } catch (NumberFormatException | ArrayIndexOutOfBoundsException exception) {
-                    getServerOutputHandler().broadcastToAdmin("Illegal arguments. Default value has been set.");
+            String command = args[index];
+            try {
+                switch (command) {
+                    case "-csp":
+                        setPortNumber(Integer.parseInt(args[index + 1]));
+                        break;
+                    case "-mode":
+                        getSettings().setServerMode(args[index + 1]);
+                        break;
+                    case "-loops":
+                        getSettings().setEventLoops(args[index + 1]);
+                        break;
+                    case "-queue":
+                        getSettings().setQueueCapacity(args[index + 1]);
+                        break;
+                    case "-overflow":
+                        getSettings().setOverflowPolicy(args[index + 1]);
+                        break;
+                    case "-match":
+                        getSettings().setBadWordMatching(args[index + 1]);
+                        break;
+                    case "-flush":
+                        getSettings().setFlushInterval(args[index + 1]);
+                        break;
+                    case "-flushsize":
+                        getSettings().setFlushThreshold(args[index + 1]);
+                        break;
+                    case "-federate":
+                        getSettings().setFederationPeers(args[index + 1]);
+                        break;
+                    case "-recent":
+                        getSettings().setRecentMessages(args[index + 1]);
+                        break;
+                    case "-history":
+                        getSettings().setHistoryDirectory(args[index + 1]);
+                        break;
+                    case "-historysegment":
+                        getSettings().setHistorySegmentSize(args[index + 1]);
+                        break;
+                    case "-historykeep":
+                        getSettings().setHistoryRetainedSize(args[index + 1]);
+                        break;
+                    case "-historyage":
+                        getSettings().setHistoryMaxAge(args[index + 1]);
+                        break;
+                    case "-metrics":
+                        getSettings().setMetricsPort(args[index + 1]);
+                        break;
+                    case "-ratelimit":
+                        getSettings().setRateLimitPolicy(args[index + 1]);
+                        break;
+                    case "-chatlimit":
+                        getSettings().setRateLimit(RateLimiter.Category.CHAT, args[index + 1]);
+                        break;
+                    case "-pmlimit":
+                        getSettings().setRateLimit(RateLimiter.Category.PRIVATE_MESSAGE, args[index + 1]);
+                        break;
+                    case "-poplimit":
+                        getSettings().setRateLimit(RateLimiter.Category.POPULATION, args[index + 1]);
+                        break;
+                    case "-commandlimit":
+                        getSettings().setRateLimit(RateLimiter.Category.COMMAND, args[index + 1]);
+                        break;
+                    case "-bans":
+                        getSettings().setBanDirectory(args[index + 1]);
+                        break;
+                    case "-autoban":
+                        getSettings().setAutoBanMinutes(args[index + 1]);
+                        break;
+                    case "-console":
+                        getSettings().setConsoleLevel(args[index + 1]);
+                        break;
+                    case "-log":
+                        getSettings().setLogFile(args[index + 1]);
+                        break;
+                    case "-logsize":
+                        getSettings().setLogFileSize(args[index + 1]);
+                        break;
+                    case "-watchwords":
+                        getSettings().setWatchingBadWords(args[index + 1]);
+                        break;
+                    case "-compression":
+                        getSettings().setCompressionLevel(args[index + 1]);
+                        break;
+                    case "-capacity":
+                        getSettings().setMaxPopulation(args[index + 1]);
+                        break;
+                    case "-drain":
+                        getSettings().setDrainTimeout(args[index + 1]);
+                        break;
+                    default:
+                        getServerOutputHandler().broadcastToAdmin("Unknown argument: " + command);
+                        checkArgs(args, index + 1);
+                        return;
                 }
-            } else {
-                getServerOutputHandler().broadcastToAdmin("Unknown argument: " + args[0]);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException exception) {
+                getServerOutputHandler().broadcastToAdmin("Illegal arguments for " + command + ". Default value has been set.");
             }
+            checkArgs(args, index + 2);
         } catch (ArrayIndexOutOfBoundsException ignored) {
             // Exception occurs if the user has not entered any further arguments, hence ignored.
         }
@@ -182,7 +684,7 @@ public class ChatServer {
         // This runs on the main thread.
 
         /* Make an instance of the ServerInputHandler inner class, and start a thread that runs that instance.
-         * The program goes through a loop which continues as long as the serverRunning boolean flag is set to true.
+         * The program goes through a loop which continues until the server starts shutting down.
          * Make an instance of the ConnectionHandler inner class, and start a thread that runs that instance.
          * The function of this class is to process any connections once clients connect.
          * If the server runs out of memory, the program notifies the user and then calls the exit() method, which shuts the server down.
@@ -191,11 +693,18 @@ public class ChatServer {
         ServerInputHandler serverInputHandler = new ServerInputHandler();
         Thread serverInputHandlerThread = new Thread(serverInputHandler, "s_serverInputHandler");
         serverInputHandlerThread.start();
-        while (true) {
+        if (getSettings().getServerMode() == ServerSettings.ServerMode.NIO) {
+            startEventLoops();
+            return;
+        }
+        while (!this.shuttingDown.get()) {
             ConnectionHandler connectionHandler = new ConnectionHandler();
+            if (connectionHandler.getClientSocket() == null) {
+                // The client was banned, or could not be accepted, so no thread is started for it.
+                continue;
+            }
             try {
-                Thread connectionHandlerThread = new Thread(connectionHandler, "s_clientConnectionHandler");
-                connectionHandlerThread.start();
+                startConnectionTask(connectionHandler, "s_clientConnectionHandler");
             } catch (OutOfMemoryError error) {
                 getServerOutputHandler().broadcastToAdmin("Out of memory or process/resource limits have been reached. Shutting server down.");
                 exit();
@@ -203,20 +712,156 @@ public class ChatServer {
         }
     }
 
-    private void exit() {
-        // This method is run when the server wants to shut down.
+    private void setExecutors() {
+        // In VIRTUAL mode, connections and their writers all run on virtual threads.
+        // Otherwise, writers run on a pool of platform threads which grows with the number of writers stuck on slow clients.
+        if (getSettings().getServerMode() == ServerSettings.ServerMode.VIRTUAL) {
+            this.connectionExecutor = createVirtualThreadExecutor();
+            this.outputExecutor = this.connectionExecutor;
+        } else {
+            this.outputExecutor = Executors.newCachedThreadPool(task -> new Thread(task, "s_outputWriter"));
+        }
+        // The timer only starts writers, which then run as usual, so a single thread is enough for every connection.
+        if (getSettings().getFlushInterval() > 0) {
+            this.flushTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "s_flushTimer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
 
-        // Notifies the user that the server is successfully shut down.
-        var connections = getConnectionsMap().values();
-        getServerOutputHandler().globalServerBroadcast(connections, "Server has shut down.");
-        synchronized (getConnectionsMap()) {
-            Connection.disconnectAllConnections(connections);
+    protected void runOutputTask(Runnable task) {
+        // Runs a task which writes to, or closes, a connection without holding up the calling thread.
+        this.outputExecutor.execute(task);
+    }
+
+    protected void scheduleFlush(Runnable task) {
+        // Runs the task once the flush interval has passed. Only called when the interval is above 0.
+        this.flushTimer.schedule(task, getSettings().getFlushInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    private ExecutorService createVirtualThreadExecutor() {
+        /* Virtual threads are only available from Java 21, so the executor is looked up rather than referenced directly..-
+         * -.. which lets the server still be built and run on older versions.
+         * If they are not available, the admin is notified and a cached pool of platform threads is used instead.
+         */
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            getServerOutputHandler().broadcastToAdmin("Serving connections on virtual threads.");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mVirtual threads require Java 21 or later. Using platform threads instead.\033[0m");
+            return Executors.newCachedThreadPool();
         }
+    }
+
+    protected void startConnectionTask(Runnable task, String threadName) {
+        // Runs a connection or input handler on the executor in VIRTUAL mode, or on a new, named platform thread otherwise.
+        if (this.connectionExecutor != null) {
+            this.connectionExecutor.execute(task);
+        } else {
+            new Thread(task, threadName).start();
+        }
+    }
+
+    private void startEventLoops() {
+        /* Opens one selector per event loop and starts a thread for each of them.
+         * The first event loop also accepts new connections, which are then handed out to the event loops in turn.
+         * If a selector can not be opened, the admin is notified and the server shuts down.
+         */
+        try {
+            for (int i = 0; i < getSettings().getEventLoops(); i++) {
+                ServerSocketChannel acceptChannel = (i == 0) ? getServerSocket().getChannel() : null;
+                ServerEventLoop eventLoop = new ServerEventLoop(this, acceptChannel);
+                this.eventLoops.add(eventLoop);
+                new Thread(eventLoop, "s_eventLoop-" + i).start();
+            }
+            getServerOutputHandler().broadcastToAdmin("Serving connections on " + this.eventLoops.size() + " event loop(s).");
+        } catch (IOException exception) {
+            getServerOutputHandler().broadcastToAdmin("\033[0;31mUnable to start the event loops. Shutting down.\033[0m");
+            exit();
+        }
+    }
+
+    protected ServerEventLoop getNextEventLoop() {
+        // Returns the event loop that should serve the next accepted connection, going round the loops in turn.
+        // Only called from the accepting event loop, hence no synchronisation is needed.
+        ServerEventLoop eventLoop = this.eventLoops.get(this.nextEventLoop);
+        this.nextEventLoop = (this.nextEventLoop + 1) % this.eventLoops.size();
+        return eventLoop;
+    }
+
+    private void exit() {
+        /* This method is run when the server wants to shut down. Only the first call has any effect.
+         * New connections are refused first, by closing the server socket, the links to other servers and the metrics endpoint.
+         * Every user is then sent a notice, naming a linked server with room to reconnect to if there is one, and their..-
+         * -.. queue is closed, so each connection's writer writes whatever was queued before the notice, then the notice,..-
+         * -.. and closes the connection. The writers all run at once, on the output executor or the event loops,..-
+         * -.. so a slow client only holds up its own connection.
+         * Connections still open once the drain timeout (-drain) has passed are closed regardless.
+         */
+        if (!this.shuttingDown.compareAndSet(false, true)) {
+            return;
+        }
+        long startedAt = System.nanoTime();
         ResourceCloser.closeCloseables(List.of(getServerSocket()));
-        getServerOutputHandler().broadcastToAdmin("Server successfully shut down.");
+        InetSocketAddress target = (getFederation() == null) ? null : getFederation().findServerWithRoom();
+        if (getFederation() != null) {
+            getFederation().close();
+        }
+        if (this.metricsServer != null) {
+            this.metricsServer.stop(0);
+        }
+        List<Connection> closingConnections = new ArrayList<>(getConnectionRegistry().getConnections());
+        getServerOutputHandler().broadcastToAdmin("Shutting down. Draining " + closingConnections.size() +
+                " connection(s) for up to " + getSettings().getDrainTimeout() + " ms.");
+        // Each user is told the address they can reach the other server on, so users are sent the notice in groups..-
+        // -.. by the address they reached this server on. There is usually one group, or one for this machine and one for the rest.
+        closingConnections.stream()
+                .collect(Collectors.groupingBy(connection -> describeShutdown(target, connection.getSocket().getLocalAddress())))
+                .forEach((notice, connections) -> getServerOutputHandler().globalServerBroadcast(connections, notice));
+        Connection.disconnectAllConnections(getConnectionRegistry());
+        int forceClosed = awaitConnectionsClosed(closingConnections, getSettings().getDrainTimeout());
+        this.eventLoops.forEach(ServerEventLoop::close);
+        if (getHistoryLog() != null) {
+            getHistoryLog().close();
+        }
+        getServerOutputHandler().broadcastToAdmin("Server successfully shut down in " + (System.nanoTime() - startedAt) / 1_000_000 +
+                " ms. " + (closingConnections.size() - forceClosed) + " connection(s) drained, " + forceClosed +
+                " closed at the deadline.");
+        if (this.adminLog != null) {
+            this.adminLog.close();
+        }
         System.exit(0);
     }
 
+    private static String describeShutdown(InetSocketAddress target, InetAddress reachedAt) {
+        // The notice sent to a user as the server shuts down, naming the linked server with the most room if any.
+        return (target == null) ? SHUTDOWN_NOTICE + " Please reconnect later, or to another server." :
+                SHUTDOWN_NOTICE + RECONNECT + describeServer(target, reachedAt);
+    }
+
+    private int awaitConnectionsClosed(List<Connection> connections, long timeoutMillis) {
+        /* Waits until every connection's socket has been closed by its writer, or until the timeout has passed, then closes..-
+         * -.. whatever is left. Returns the number of connections closed at the deadline.
+         * Connections are forgotten as soon as they are closed, so each check only goes through those still open.
+         */
+        List<Connection> open = new ArrayList<>(connections);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            open.removeIf(connection -> connection.getSocket().isClosed());
+            while (!open.isEmpty() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+                open.removeIf(connection -> connection.getSocket().isClosed());
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        open.forEach(Connection::closeResources);
+        return open.size();
+    }
+
     private class ServerInputHandler implements Runnable {
         // This runs on a separate thread.
 
@@ -228,6 +873,10 @@ public class ChatServer {
                 while (!(serverInput = serverInputStream.readLine()).equalsIgnoreCase("/servershutdown")) {
                     handleServerInput(serverInput);
                 }
+            } catch (NullPointerException exception) {
+                // The admin's input has ended (e.g the server was started in the background), so the server carries on..-
+                // -.. without admin commands rather than shutting down.
+                return true;
             } catch (IOException exception) {
                 getServerOutputHandler().broadcastToAdmin("Connection failed. Please try again later.");
             } finally {
@@ -236,61 +885,168 @@ public class ChatServer {
             return false;
         }
 
+        // The commands the admin can type. Anything else not starting with '/' is sent to every user.
+        private final CommandRegistry<ServerOutputHandler> commands;
+
+        private ServerInputHandler() {
+            this.commands = new CommandRegistry<>((serverOutputHandler, command) ->
+                    serverOutputHandler.broadcastToAdmin("Incorrect usage of " + command.getName() + ". Type " + command.getUsage() + "."));
+            this.commands.register("/apm", 1, CommandRegistry.Command.ANY, "\"/apm <ID> <msg>\"", this::sendPrivateMessage)
+                    .register("/warn", 2, CommandRegistry.Command.ANY,
+                            "\"/warn <userID> <reason> | <number_of_warnings> <reason>\"", this::warnUser)
+                    .register("/getlist", 0, 0, "\"/getlist\"", (serverOutputHandler, command) ->
+                            ChatServer.this.getConnectionRegistry().getConnections().stream().map(Connection::getPublicIdentity)
+                                    .forEach(serverOutputHandler::broadcastToAdmin))
+                    .register("/rooms", 0, 0, "\"/rooms\"", (serverOutputHandler, command) ->
+                            ChatServer.this.getRoomRegistry().getRooms().forEach(room -> serverOutputHandler.broadcastToAdmin(room.getName() +
+                                    " (" + room.size() + "): " + String.join(", ", room.getMembers().stream().map(Connection::getPublicIdentity).toList()))))
+                    .register("/links", 0, 0, "\"/links\"", this::listLinks)
+                    .register("/stats", 0, 0, "\"/stats\"", this::showStats)
+                    .register("/queues", 0, 0, "\"/queues\"", this::listQueues)
+                    .register("/ban", 1, 2, "\"/ban <userID|address> [minutes]\"", (serverOutputHandler, command) ->
+                            banTarget(command.getArgument(0), command.getArgument(1)))
+                    .register("/unban", 1, 1, "\"/unban <address>\"", this::unbanAddress)
+                    .register("/bans", 0, 0, "\"/bans\"", this::listBans)
+                    .register("/reloadwords", 0, 0, "\"/reloadwords\"", (serverOutputHandler, command) -> reloadBadWords());
+        }
+
         private void handleServerInput(String input) {
-            // Handles server commands entered by the server admin.
-            String[] inputWords = input.split("\\s+");
-            String startingWord = inputWords[0];
-            int targetID;
+            // Handles server commands entered by the server admin. Only lines starting with '/' are parsed.
             var serverOutputHandler = ChatServer.this.getServerOutputHandler();
-            switch (startingWord) {
-                case "/apm":
-                    if (inputWords.length < 2 || (targetID = findTargetByID(inputWords[1])) == -1) {
-                        serverOutputHandler.broadcastToAdmin("Incorrect usage of /apm. Type \"/apm <ID> <msg>\".");
-                        return;
-                    }
-                    if (ChatServer.this.getConnectionsMap().containsKey(targetID)) {
-                        serverOutputHandler.adminPrivateMessage(ChatServer.this.getConnectionsMap().get(targetID),
-                                String.join(" ", Arrays.copyOfRange(inputWords, 2, inputWords.length)));
-                        return;
-                    } else {
-                        serverOutputHandler.broadcastToAdmin("User not found.");
-                    }
-                    break;
-                case "/warn":
-                    if (inputWords.length < 3 || (targetID = findTargetByID(inputWords[1])) == -1) {
-                        serverOutputHandler.broadcastToAdmin(
-                                "Incorrect usage of /warn. Type \"/warn <userID> <reason> | <number_of_warnings> <reason>\".");
-                        return;
-                    }
-                    if (ChatServer.this.getConnectionsMap().containsKey(targetID)) {
-                        Connection targetConnection = ChatServer.this.getConnectionsMap().get(targetID);
-                        try {
-                            targetConnection.warn(Integer.parseInt(inputWords[2]),
-                                    String.join(" ", Arrays.copyOfRange(inputWords, 3, inputWords.length)));
-                        } catch (ArrayIndexOutOfBoundsException indexOutOfBoundsException) {
-                            serverOutputHandler.broadcastToAdmin(
-                                    "Incorrect usage of /warn. Type \"/warn <userID> <reason> | <number_of_warnings> <reason>\".");
-                            return;
-                        } catch (NumberFormatException numberFormatException) {
-                            targetConnection.warn(String.join(" ", Arrays.copyOfRange(inputWords, 2, inputWords.length)));
-                        }
-                    } else {
-                        serverOutputHandler.broadcastToAdmin("User not found.");
-                    }
-                    break;
-                case "/getlist":
-                    ChatServer.this.getConnectionsMap().values().stream().map(Connection::getPublicIdentity).forEach(serverOutputHandler::broadcastToAdmin);
-                    break;
-                default:
-                    try {
-                        if (startingWord.charAt(0) == '/') {
-                            serverOutputHandler.broadcastToAdmin("Command " + startingWord.subSequence(1, startingWord.length()) + " not found.");
-                        } else {
-                            serverOutputHandler.adminBroadcast(getConnectionsMap().values(),
-                                    String.join(" ", inputWords));
-                        }
-                    } catch (StringIndexOutOfBoundsException ignored) {
-                    }
+            String trimmedInput = input.trim();
+            if (trimmedInput.isEmpty()) {
+                return;
+            }
+            CommandLine commandLine = CommandLine.parse(trimmedInput);
+            if (commandLine == null) {
+                serverOutputHandler.adminBroadcast(getConnectionRegistry().getConnections(), trimmedInput);
+            } else if (!this.commands.dispatch(serverOutputHandler, commandLine)) {
+                serverOutputHandler.broadcastToAdmin("Command " + commandLine.getName().substring(1) + " not found.");
+            }
+        }
+
+        private void sendPrivateMessage(ServerOutputHandler serverOutputHandler, CommandLine command) {
+            int targetID = findTargetByID(command.getArgument(0));
+            if (targetID == -1) {
+                serverOutputHandler.broadcastToAdmin("Incorrect usage of /apm. Type \"/apm <ID> <msg>\".");
+                return;
+            }
+            Connection target = ChatServer.this.getConnectionRegistry().get(targetID);
+            if (target != null) {
+                serverOutputHandler.adminPrivateMessage(target, command.getRest(1));
+            } else {
+                serverOutputHandler.broadcastToAdmin("User not found.");
+            }
+        }
+
+        private void warnUser(ServerOutputHandler serverOutputHandler, CommandLine command) {
+            // The number of warnings is optional, and is 1 if the reason starts with anything other than a number.
+            int targetID = findTargetByID(command.getArgument(0));
+            if (targetID == -1) {
+                serverOutputHandler.broadcastToAdmin(
+                        "Incorrect usage of /warn. Type \"/warn <userID> <reason> | <number_of_warnings> <reason>\".");
+                return;
+            }
+            Connection targetConnection = ChatServer.this.getConnectionRegistry().get(targetID);
+            if (targetConnection == null) {
+                serverOutputHandler.broadcastToAdmin("User not found.");
+                return;
+            }
+            try {
+                targetConnection.warn(Integer.parseInt(command.getArgument(1)), command.getRest(2));
+            } catch (NumberFormatException numberFormatException) {
+                targetConnection.warn(1, command.getRest(1));
+            }
+        }
+
+        private void showStats(ServerOutputHandler serverOutputHandler, CommandLine command) {
+            ChatServer.this.getMetrics().getSummary(ChatServer.this.getConnectionRegistry().size())
+                    .forEach(serverOutputHandler::broadcastToAdmin);
+            if (ChatServer.this.adminLog != null) {
+                serverOutputHandler.broadcastToAdmin("Admin messages dropped: " + ChatServer.this.adminLog.getDroppedMessages() + ".");
+            }
+        }
+
+        private void listLinks(ServerOutputHandler serverOutputHandler, CommandLine command) {
+            Federation federation = ChatServer.this.getFederation();
+            if (federation == null) {
+                serverOutputHandler.broadcastToAdmin("Not federated. Start the server with -federate <local|host:port,...>.");
+                return;
+            }
+            federation.getLinks().forEach(link -> serverOutputHandler.broadcastToAdmin("Server " + link.getRemoteLabel() +
+                    " - queued events: " + link.getQueuedEvents()));
+            serverOutputHandler.broadcastToAdmin("Users on linked servers: " + federation.getRemoteUserCount());
+        }
+
+        private void listQueues(ServerOutputHandler serverOutputHandler, CommandLine command) {
+            ChatServer.this.getConnectionRegistry().getConnections().forEach(connection -> {
+                OutboundQueue outboundQueue = connection.getOutboundQueue();
+                serverOutputHandler.broadcastToAdmin(connection.getPublicIdentity() + " - queued: " + outboundQueue.getDepth() +
+                        "/" + outboundQueue.getCapacity() + ", dropped: " + outboundQueue.getDroppedMessages());
+            });
+        }
+
+        private void unbanAddress(ServerOutputHandler serverOutputHandler, CommandLine command) {
+            InetAddress address = findAddress(command.getArgument(0));
+            if (address == null) {
+                serverOutputHandler.broadcastToAdmin("Address not found.");
+            } else if (ChatServer.this.getBanList().unban(address)) {
+                serverOutputHandler.broadcastToAdmin(address.getHostAddress() + " was unbanned.");
+                ChatServer.this.runOutputTask(ChatServer.this::saveBans);
+            } else {
+                serverOutputHandler.broadcastToAdmin(address.getHostAddress() + " is not banned.");
+            }
+        }
+
+        private void listBans(ServerOutputHandler serverOutputHandler, CommandLine command) {
+            List<Map.Entry<InetAddress, Long>> bans = ChatServer.this.getBanList().getBans();
+            if (bans.isEmpty()) {
+                serverOutputHandler.broadcastToAdmin("No addresses are banned.");
+                return;
+            }
+            long now = System.currentTimeMillis();
+            bans.forEach(ban -> serverOutputHandler.broadcastToAdmin(ban.getKey().getHostAddress() + " - " +
+                    ((ban.getValue() == BanList.PERMANENT) ? "until unbanned"
+                            : "for " + ((ban.getValue() - now + 59_999) / 60_000) + " more minute(s)")));
+        }
+
+        private void banTarget(String target, String minutes) {
+            /* Bans the address of the user with the given ID, or the given address, for the given number of minutes,..-
+             * -.. or until it is unbanned if no minutes are given.
+             */
+            var serverOutputHandler = ChatServer.this.getServerOutputHandler();
+            long durationMillis = 0;
+            if (minutes != null) {
+                int banMinutes = findTargetByID(minutes);
+                if (banMinutes < 1) {
+                    serverOutputHandler.broadcastToAdmin("Incorrect usage of /ban. Minutes must be a whole number above 0.");
+                    return;
+                }
+                durationMillis = TimeUnit.MINUTES.toMillis(banMinutes);
+            }
+            int targetID = findTargetByID(target);
+            InetAddress address;
+            if (targetID != -1) {
+                Connection targetConnection = ChatServer.this.getConnectionRegistry().get(targetID);
+                if (targetConnection == null) {
+                    serverOutputHandler.broadcastToAdmin("User not found.");
+                    return;
+                }
+                address = targetConnection.getAddress();
+            } else if ((address = findAddress(target)) == null) {
+                serverOutputHandler.broadcastToAdmin("Address not found.");
+                return;
+            }
+            ChatServer.this.banAddress(address, durationMillis, true);
+            serverOutputHandler.broadcastToAdmin(address.getHostAddress() + " was banned " +
+                    ((minutes == null) ? "until unbanned." : "for " + minutes + " minute(s)."));
+        }
+
+        private InetAddress findAddress(String potentialAddress) {
+            try {
+                return InetAddress.getByName(potentialAddress);
+            } catch (UnknownHostException | SecurityException exception) {
+                return null;
             }
         }
 
@@ -323,6 +1079,12 @@ public class ChatServer {
         private PrintWriter broadcaster;
         // Private field which holds the client's input stream
         private BufferedReader clientInputStream;
+        // Private field which holds whether the client asked for binary framing during the handshake
+        private boolean binaryFraming;
+        // Private field which holds how the client asked for compression during the handshake, or null if they did not
+        private String compressionRequest;
+        // Private field which holds the System.nanoTime() at which the client was accepted
+        private long acceptedAt;
 
         private ConnectionHandler() {
             /* Looks for a new connection and accepts it as soon as there is a connection attempt.
@@ -331,6 +1093,12 @@ public class ChatServer {
              */
             try {
                 this.clientSocket = ChatServer.this.getServerSocket().accept();
+                this.acceptedAt = System.nanoTime();
+                // A banned client is closed straight away, before any thread is started for it.
+                if (ChatServer.this.getBanList().isBanned(this.clientSocket.getInetAddress())) {
+                    ResourceCloser.closeCloseables(List.of(this.clientSocket));
+                    this.clientSocket = null;
+                }
             } catch (IOException | SecurityException ignored) {
                 // Connection is not established with the client, so no need to inform them about this event..-
                 // -.. from the server side.
@@ -374,53 +1142,45 @@ public class ChatServer {
 
 
         private void processConnection() {
-            // The client's socket (connection) is added to the list of connections accepted by the server.
-            // The server is notified that the connection is accepted, and some extra details are also passed on to the server.
-            Map<Integer, Connection> mapOfConnections = ChatServer.this.getConnectionsMap();
+            // A connection is made for the client once they have chosen a name, and the server admits it.
             Socket clientSocket = getClientSocket();
             String name = getName();
-            ServerOutputHandler serverOutputHandler = getServerOutputHandler();
             if (name == null) {
                 return;
             }
             this.clientConnection = new Connection(clientSocket, clientSocket.getInetAddress(), name, getBroadcaster(),
                     getClientInputStream(), ChatServer.this);
-            mapOfConnections.put(getClientConnection().getUniqueID(), getClientConnection());
-            serverOutputHandler.globalServerBroadcast(mapOfConnections.values(),
-                    getClientConnection().getPublicIdentity() + " has connected! Online users: " +
-                            mapOfConnections.size());
-            getInformationalMessages().forEach(message -> serverOutputHandler.serverBroadcast(this.clientConnection, message));
+            getClientConnection().setBinaryFraming(this.binaryFraming);
+            getClientConnection().setCompressor(ChatServer.this.createCompressor(this.compressionRequest));
+            ChatServer.this.admitConnection(getClientConnection(), this.acceptedAt);
             handleInput();
         }
 
-        private List<String> getInformationalMessages() {
-            // Returns a list containing informational messages printed to the user upon joining the server.
-            List<String> messages = new ArrayList<>();
-            messages.add("Welcome to the server!");
-            messages.add("Type \"/serverpop\" without the speech marks to view the population of the server!");
-            messages.add("Type \"/pm <ID>\" without the speech marks and <> to PM another user!");
-            messages.add("Type \"exit\" without the speech marks to exit the program.");
-            return messages;
-        }
-
         private String getName() {
             String name;
             BufferedReader clientInputStream = getClientInputStream();
             PrintWriter broadcaster = getBroadcaster();
             try {
-                broadcaster.println("Please enter a name to proceed with (min 2 characters, max 20):");
-                while (!isLegalName((name = clientInputStream.readLine().trim()))) {
-                    broadcaster.println("Name is illegal/already taken. Please choose another name (min 2 characters, max 20):");
-                }
-                broadcaster.println("Name successfully chosen!");
-                /* If not null, return name. Otherwise, return anonymous format.
-                 * The format of the anonymous name ensures users can't maliciously/unintentionally impersonate other anonymous users.
-                 */
-                if (name.equals("")) {
-                    ChatServer.this.increaseAnonCount();
-                    return ("Anonymous " + ChatServer.this.getAnonymousUsers());
+                broadcaster.println(NAME_PROMPT);
+                while (!ChatServer.this.reserveName((name = readName(clientInputStream)))) {
+                    // A client asking for binary framing does so in place of its first name. See MessageFrame.
+                    if (name.equals(MessageFrame.BINARY_REQUEST)) {
+                        this.binaryFraming = true;
+                        broadcaster.println(MessageFrame.BINARY_ACCEPTED);
+                    } else if (ChatServer.this.acceptsCompression(name)) {
+                        this.compressionRequest = name;
+                        broadcaster.println(MessageCompressor.ACCEPTED);
+                    } else if (name.equals(ServerDiscovery.REQUEST)) {
+                        // A client only probing the server is answered and closed without being admitted.
+                        broadcaster.println(ChatServer.this.describePopulation());
+                        ResourceCloser.closeCloseables(List.of(getClientSocket(), broadcaster, clientInputStream));
+                        return null;
+                    } else {
+                        broadcaster.println(NAME_RETRY_PROMPT);
+                    }
                 }
-                return name;
+                broadcaster.println(NAME_ACCEPTED);
+                return ChatServer.this.resolveName(name);
             } catch (IOException e) {
                 broadcaster.println("Unable to proceed.");
                 ResourceCloser.closeCloseables(List.of(getClientSocket(), broadcaster, clientInputStream));
@@ -428,25 +1188,31 @@ public class ChatServer {
             }
         }
 
-        private boolean isLegalName(String name) {
-            if (name.equals("")) return true;
-            else if (name.length() > 20 || name.length() < 2) return false;
-            else if (name.contains("admin") || name.contains("server")) return false;
-            return ChatServer.this.getConnectionsMap().values().stream().noneMatch(connection -> connection.getName().equalsIgnoreCase(name));
+        private String readName(BufferedReader clientInputStream) throws IOException {
+            // Throws an EOFException if the client closes the connection during the handshake, so its socket is closed too.
+            String line = clientInputStream.readLine();
+            if (line == null) {
+                throw new EOFException("The client closed the connection.");
+            }
+            return line.trim();
         }
 
         private void handleInput() {
             // An instance of the HandleClientInput class is made.
-            // A thread is created and started which runs that instance.
+            // A thread is started which runs that instance - the instance records the thread once it is running.
             ClientInputHandler inputHandler = new ClientInputHandler(getClientConnection());
-            Thread inputHandlerThread = new Thread(inputHandler, "s_clientInputHandler");
-            getClientConnection().setInputHandlerThread(inputHandlerThread);
-            inputHandlerThread.start();
+            ChatServer.this.startConnectionTask(inputHandler, "s_clientInputHandler");
         }
 
         public void run() {
             // Sets up the broadcaster and the client's input stream. If either return false, return as it means they were not set up correctly.
             if (!(setBroadcaster() && setClientInputStream())) return;
+            // A client connecting while the server is full is told where to go instead, and closed.
+            if (ChatServer.this.isFull()) {
+                getBroadcaster().println(ChatServer.this.describeFull(getClientSocket().getLocalAddress()));
+                ResourceCloser.closeCloseables(List.of(getClientSocket(), getBroadcaster(), getClientInputStream()));
+                return;
+            }
             // Executes the processConnection() method.
             processConnection();
         }
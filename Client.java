@@ -1,8 +1,10 @@
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.zip.InflaterInputStream;
 
 public abstract class Client {
 
@@ -14,16 +16,48 @@ public abstract class Client {
     private InetAddress hostAddress;
     // Holds the server's port
     private int serverPort;
+    // Holds whether the user chose the port, in which case it is tried before looking for the least loaded server
+    private boolean portChosen;
     // Holds a PrintWriter object, "broadcaster"
     private PrintWriter broadcaster;
 
     private BufferedReader userInputReader;
 
     private BufferedReader serverInputReader;
+    // Holds the buffered stream of bytes from the server, which the handshake, and frames or the serverInputReader are read from
+    private DataInputStream serverInputStream;
+    // Holds the first line of the handshake, read while connecting so that a full server's redirect can be followed
+    private String namePrompt;
+    // Holds whether binary framing should be asked for during the handshake
+    private boolean binaryFramingRequested;
+    // Holds whether the server accepted binary framing
+    private boolean binaryFraming;
+    // Holds how compression should be asked for during the handshake (see MessageCompressor), or null if it should not be
+    private String compressionRequest;
+    // Holds whether the server accepted compression
+    private boolean compression;
+    // Holds how long, in milliseconds, messages are held back to be sent together. 0 sends them straight away
+    private int flushInterval;
+    // Holds the stream messages are sent through once the handshake is complete
+    private OutputStream messageOutputStream;
+    // Number of bytes held back before they are sent regardless of the flush interval
+    private static final int FLUSH_THRESHOLD = 16384;
+    // Time, in milliseconds, a server has to accept the connection, and then to start the handshake
+    private static final int CONNECT_TIMEOUT = 5000;
+    // Most redirects followed from full servers before giving up on a server, in case they redirect to each other
+    private static final int MAX_REDIRECTS = 10;
 
     protected Client() {
         // The value of serverPort is set to default, which is 14001
         this.serverPort = 14001;
+        this.portChosen = false;
+        // Binary framing is asked for by default. Servers which do not support it simply carry on with text.
+        this.binaryFramingRequested = true;
+        this.binaryFraming = false;
+        // Compression is only asked for if the user chooses it, as it only pays off on slow links.
+        this.compressionRequest = null;
+        this.compression = false;
+        this.flushInterval = 0;
     }
 
     private List<Integer> getPortsList() {
@@ -93,18 +127,112 @@ public abstract class Client {
         }
     }
 
-    private void setServerInputReader() {
+    protected BufferedReader getServerInputReader() {
+        return this.serverInputReader;
+    }
+
+    protected boolean usesBinaryFraming() {
+        return this.binaryFraming;
+    }
+
+    private void setFraming(String framing) {
+        // Throws an IllegalArgumentException if the framing is neither "text" nor "binary".
+        switch (framing.toLowerCase()) {
+            case "text":
+                this.binaryFramingRequested = false;
+                break;
+            case "binary":
+                this.binaryFramingRequested = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown framing: " + framing);
+        }
+    }
+
+    private void setCompression(String compression) {
+        // Throws an IllegalArgumentException if the compression is neither "off", "deflate" nor "dictionary".
+        switch (compression.toLowerCase()) {
+            case "off":
+                this.compressionRequest = null;
+                break;
+            case "deflate":
+                this.compressionRequest = MessageCompressor.REQUEST;
+                break;
+            case "dictionary":
+                this.compressionRequest = MessageCompressor.DICTIONARY_REQUEST;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
+    }
+
+    private void setFlushInterval(String flushInterval) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not an integer from 0 to 1000.
+        int interval = Integer.parseInt(flushInterval);
+        if (interval < 0 || interval > 1000) {
+            throw new NumberFormatException("The flush interval must be between 0 and 1000 milliseconds.");
+        }
+        this.flushInterval = interval;
+    }
+
+    private void setMessageOutputStream() {
+        /* Messages are written straight to the socket, unless a flush interval has been set.
+         * In that case, they are gathered in a buffer which a timer thread flushes once every interval, so that..-
+         * -.. messages sent in quick succession (e.g by a bot) go out in a single write. A full buffer is sent straight away.
+         */
         try {
-            this.serverInputReader = new BufferedReader(new InputStreamReader(this.getServerSocket().getInputStream()));
+            OutputStream socketOutputStream = getServerSocket().getOutputStream();
+            if (this.flushInterval == 0) {
+                this.messageOutputStream = socketOutputStream;
+                return;
+            }
+            BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(socketOutputStream, FLUSH_THRESHOLD);
+            this.messageOutputStream = bufferedOutputStream;
+            Thread flushTimer = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(this.flushInterval);
+                        bufferedOutputStream.flush();
+                    }
+                } catch (InterruptedException | IOException ignored) {
+                    // The connection has been closed, so there is nothing left to flush.
+                }
+            }, "c_flushTimer");
+            flushTimer.setDaemon(true);
+            flushTimer.start();
         } catch (IOException exception) {
-            System.out.println("Unable to proceed. Please try again.");
-            ResourceCloser.closeCloseables(List.of(getServerSocket(), getUserInputReader()));
-            System.exit(-1);
+            System.out.println("Error occurred with processing input. Please try again later.");
+            exit();
         }
     }
 
-    protected BufferedReader getServerInputReader() {
-        return this.serverInputReader;
+    protected String readServerMessage() throws IOException {
+        /* Returns the next message from the server, which may span several lines if binary framing is used.
+         * Throws an EOFException if the server has closed the connection.
+         */
+        String message;
+        if (usesBinaryFraming()) {
+            MessageFrame frame = MessageFrame.read(this.serverInputStream);
+            message = (frame == null) ? null : frame.getPayload();
+        } else {
+            message = getServerInputReader().readLine();
+        }
+        if (message == null) {
+            throw new EOFException("The server has closed the connection.");
+        }
+        return message;
+    }
+
+    protected void sendMessage(String message) {
+        // Sends a line typed by the user, or a message from the bot, as a frame of the appropriate type, or as a line of text.
+        // A line of text has no type, so it is sent exactly as it was typed.
+        MessageFrame frame = usesBinaryFraming() ? MessageFrame.fromTypedLine(message) : new MessageFrame(MessageFrame.Type.CHAT, message);
+        try {
+            this.messageOutputStream.write(frame.encode(usesBinaryFraming()));
+        } catch (IOException exception) {
+            System.out.println("Error occurred with processing input. Please try again later.");
+            exit();
+        }
     }
 
     private void setUserInputReader() {
@@ -119,23 +247,51 @@ public abstract class Client {
         // Calls the necessary methods to start the process of connecting to the server.
         establishConnection(args);
         setUserInputReader();
-        setServerInputReader();
         setBroadcaster();
         getDetails();
     }
 
     private void getDetails() {
+        /* The handshake is read a byte at a time, so that no message sent after it is read ahead as text. See MessageFrame.
+         * If binary framing is requested, the request is sent in place of the first name. A server which supports it..-
+         * -.. accepts it, while an older server rejects it as an illegal name and asks for another - either way..-
+         * -.. the user is then asked for their name as usual. Compression is asked for in the same way, after binary framing.
+         * If the server accepts compression, everything it sends after the handshake is read through an inflater..-
+         * -.. (see MessageCompressor), which reads on from whatever the handshake left in the buffered stream.
+         */
         BufferedReader userInputReader = getUserInputReader();
-        BufferedReader serverInputReader = getServerInputReader();
         PrintWriter broadcaster = getBroadcaster();
         try {
-            String line = serverInputReader.readLine();
+            String line = this.namePrompt;
+            if (this.binaryFramingRequested) {
+                broadcaster.println(MessageFrame.BINARY_REQUEST);
+                this.binaryFraming = MessageFrame.readHandshakeLine(this.serverInputStream).equals(MessageFrame.BINARY_ACCEPTED);
+            }
+            if (this.compressionRequest != null) {
+                broadcaster.println(this.compressionRequest);
+                this.compression = MessageFrame.readHandshakeLine(this.serverInputStream).equals(MessageCompressor.ACCEPTED);
+            }
             String name;
             do {
                 System.out.println(line);
                 name = userInputReader.readLine();
                 broadcaster.println(name);
-            } while (!((line = serverInputReader.readLine()).equals("Name successfully chosen!")));
+            } while (!((line = MessageFrame.readHandshakeLine(this.serverInputStream)).equals("Name successfully chosen!")));
+            if (this.compression) {
+                this.serverInputStream = new DataInputStream(new InflaterInputStream(this.serverInputStream,
+                        MessageCompressor.createInflater(this.compressionRequest), 8192) {
+                    @Override
+                    public int available() {
+                        // An InflaterInputStream always claims a byte is available, which leaves a reader of lines waiting..-
+                        // -.. for more after a whole message. Claiming none makes each read return whatever has arrived.
+                        return 0;
+                    }
+                });
+            }
+            if (!usesBinaryFraming()) {
+                this.serverInputReader = new BufferedReader(new InputStreamReader(this.serverInputStream));
+            }
+            setMessageOutputStream();
         } catch (IOException exception) {
             System.out.println("Unable to proceed.");
             exit();
@@ -148,7 +304,7 @@ public abstract class Client {
         /*
          * Parameters:
          * String[] args	: command line args in the form of a string array
-         * String toCheck	: a string which indicates what is to be checked, "address" or "port"
+         * String toCheck	: a string which indicates what is to be checked, "address", "port", "framing", "compression" or "flush"
          * int index		: an index which indicates where in the string array the program should look for the toCheck string
          */
 
@@ -164,6 +320,39 @@ public abstract class Client {
                     System.out.println("Illegal arguments. Default value has been set.");
                 }
                 break;
+            /* If the toCheck string is "framing", ask for binary framing or not depending on the element at the specified index.
+             * If there is no element at the specified index or it is neither "text" nor "binary", the user is notified..-
+             * -.. and binary framing is still asked for, as by default.
+             */
+            case ("framing"):
+                try {
+                    setFraming(args[index]);
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException exception) {
+                    System.out.println("Illegal arguments. Default value has been set.");
+                }
+                break;
+            /* If the toCheck string is "compression", ask for compression, with or without the dictionary, or not at all..-
+             * -.. depending on the element at the specified index. If there is no element at the specified index or it is..-
+             * -.. neither "off", "deflate" nor "dictionary", the user is notified and compression is not asked for, as by default.
+             */
+            case ("compression"):
+                try {
+                    setCompression(args[index]);
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException exception) {
+                    System.out.println("Illegal arguments. Default value has been set.");
+                }
+                break;
+            /* If the toCheck string is "flush", set the flush interval to the number of milliseconds found in the specified..-
+             * -.. location in the string array. If there is none or it is not legal, the user is notified and messages..-
+             * -.. are still sent straight away, as by default.
+             */
+            case ("flush"):
+                try {
+                    setFlushInterval(args[index]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException exception) {
+                    System.out.println("Illegal arguments. Default value has been set.");
+                }
+                break;
             /* If the toCheck string is "port", set the server port to the port number found in the specified location in the string array.
              * If there is no element at the specified index or the element can not be parsed as an integer, ..-
              * -.. the user is notified and the value of the port number hence remains unchanged from the default value.
@@ -171,6 +360,7 @@ public abstract class Client {
             case ("port"):
                 try {
                     setServerPort(Integer.parseInt(args[index]));
+                    this.portChosen = true;
                 } catch (NumberFormatException | ArrayIndexOutOfBoundsException exception) {
                     System.out.println("Illegal arguments. Default value has been set.");
                 }
@@ -196,7 +386,7 @@ public abstract class Client {
          * Calls the validateAndSetValues() method with the appropriate arguments based on the value of the string in the string array.
          * The index passed on as an argument to validateAndSetValues is exactly one higher than the index passed on to this method.
          * This is due to the commands and values most likely being in the format of (-command1 value1 -command2 value2).
-         * If the user enters a command other than "-cca" and "-ccp", they are notified that the program has faced an unknown argument.
+         * If the user enters a command other than "-cca", "-ccp", "-ccf", "-ccz" and "-ccw", they are notified that the program has faced an unknown argument.
          * If an ArrayIndexOutOfBounds exception occurs, then that means the user has not entered any further arguments, hence this is ignored.
          */
         try {
@@ -207,6 +397,15 @@ public abstract class Client {
                 case ("-ccp"):
                     validateAndSetValues(args, "port", index + 1);
                     break;
+                case ("-ccf"):
+                    validateAndSetValues(args, "framing", index + 1);
+                    break;
+                case ("-ccz"):
+                    validateAndSetValues(args, "compression", index + 1);
+                    break;
+                case ("-ccw"):
+                    validateAndSetValues(args, "flush", index + 1);
+                    break;
                 default:
                     System.out.println("Unknown argument: " + args[index]);
             }
@@ -219,37 +418,96 @@ public abstract class Client {
         // Sets up the server socket after the arguments have been validated.
         setDefaultHost();
         validateArgs(args, 0);
-        setServerSocket(0);
+        setServerSocket();
+    }
+
+    private void setServerSocket() {
+        /* If the user chose a port, it is tried first. Otherwise, or if it fails, every default port is probed at once..-
+         * -.. (see ServerDiscovery), and the least loaded server which answered is connected to.
+         * If that server has gone in the meantime, the next least loaded one is tried, and so on.
+         * If no server can be connected to, the user is notified and the program exits.
+         */
+        if (this.portChosen) {
+            if (connect(getHostAddress(), getServerPort(), MAX_REDIRECTS)) {
+                return;
+            }
+            System.out.println("\033[0;31mConnection failed. Looking for another server...\033[0m");
+        }
+        System.out.println("Looking for servers on " + getHostAddress() + "...");
+        for (int port : ServerDiscovery.rankPorts(getHostAddress(), getPortsList())) {
+            if (connect(getHostAddress(), port, MAX_REDIRECTS)) {
+                return;
+            }
+            System.out.println("\033[0;31mConnection failed. Trying again...\033[0m");
+        }
+        System.out.println("\n\033[0;31mConnection failed - please ensure correct address and port have been entered.");
+        System.out.println("Exiting the program...\033[0m");
+        System.exit(1);
     }
 
-    private void setServerSocket(int head) {
-        List<Integer> listOfPorts = getPortsList();
+    private boolean connect(InetAddress address, int port, int redirectsLeft) {
+        /* Returns true if the server socket was connected to the server on the given port, and the server has room.
+         * The first line of the handshake is read straight away, as a full server sends a redirect in its place.
+         * The server's input is only read through a BufferedReader once the handshake is complete and framing has been decided.
+         */
+        if (port < 0 || port > 65535) {
+            System.out.println("Port outside of range (0 to 65535).");
+            return false;
+        }
+        System.out.println("Connecting to server " + address + " port " + port + "...");
+        Socket socket = new Socket();
         try {
-            System.out.println("Connecting to server " + getHostAddress() + " port " + getServerPort() + "...");
-            this.serverSocket = new Socket(getHostAddress(), getServerPort());
-            System.out.println("\033[0;32mConnection successfully established! Address : port: " + getHostAddress() +
-                    " : " + getServerPort() + "\033[0m");
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            this.serverInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.namePrompt = MessageFrame.readHandshakeLine(this.serverInputStream);
+            socket.setSoTimeout(0);
         } catch (IOException exception) {
-            try {
-                setServerPort(listOfPorts.get(++head));
-                System.out.println("\033[0;31mConnection failed. Trying again...\033[0m");
-                setServerSocket(head);
-            } catch (IndexOutOfBoundsException indexOutOfBoundsException) {
-                System.out.println("\n\033[0;31mConnection failed - please ensure correct address and port have been entered.");
-                System.out.println("Exiting the program...\033[0m");
-                System.exit(1);
+            ResourceCloser.closeCloseables(List.of(socket));
+            return false;
+        }
+        if (this.namePrompt.startsWith(ChatServer.SERVER_FULL)) {
+            ResourceCloser.closeCloseables(List.of(socket));
+            return followRedirect(this.namePrompt, address, redirectsLeft);
+        }
+        this.serverSocket = socket;
+        this.hostAddress = address;
+        setServerPort(port);
+        System.out.println("\033[0;32mConnection successfully established! Address : port: " + getHostAddress() +
+                " : " + getServerPort() + "\033[0m");
+        return true;
+    }
+
+    private boolean followRedirect(String answer, InetAddress fullServerAddress, int redirectsLeft) {
+        /* Connects to the server a full server named. Returns false if it named none, or could not be connected to.
+         * A loopback address only means the same machine as the full server, so unless the full server was reached on..-
+         * -.. a loopback address too, the other server is connected to on the full server's address.
+         */
+        if (!answer.startsWith(ChatServer.REDIRECT) || redirectsLeft == 0) {
+            System.out.println("\033[0;31m" + ChatServer.SERVER_FULL + "\033[0m");
+            return false;
+        }
+        String target = answer.substring(ChatServer.REDIRECT.length());
+        int separator = target.lastIndexOf(':');
+        try {
+            InetAddress address = InetAddress.getByName(target.substring(0, separator));
+            if (address.isLoopbackAddress() && !fullServerAddress.isLoopbackAddress()) {
+                address = fullServerAddress;
             }
-        } catch (IllegalArgumentException exception) {
-            System.out.println("Port outside of range (0 to 65535). Setting port to default.");
-            setServerPort(listOfPorts.get(0));
-            setServerSocket(0);
+            int port = Integer.parseInt(target.substring(separator + 1));
+            System.out.println("\033[0;33mServer full. Redirected to " + target + ".\033[0m");
+            return connect(address, port, redirectsLeft - 1);
+        } catch (UnknownHostException | NumberFormatException | StringIndexOutOfBoundsException exception) {
+            return false;
         }
     }
 
     protected void exit() {
         // Closing getUserInputReader() forces the program to wait for the readLine() in ChatClient under the method of processClientInput().
         // Therefore, that stream is not being closed.
-        ResourceCloser.closeCloseables(List.of(getServerSocket(), getBroadcaster(), getServerInputReader()));
+        // Closing the messageOutputStream first sends any messages still held back by the flush interval.
+        ResourceCloser.closeCloseables(Arrays.asList(this.messageOutputStream, getServerSocket(), getBroadcaster(),
+                getServerInputReader(), this.serverInputStream));
         System.out.println("Exiting the program...");
         System.exit(1);
     }
@@ -1,52 +1,74 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 public class ClientInputHandler implements Runnable {
     // This runs on a separate thread.
 
+    // The commands clients can type, shared by every connection. Anything else starting with '/' is treated as chat.
+    private static final CommandRegistry<Connection> COMMANDS = createCommands();
+
     // Private final field which holds the client's connection.
     private final Connection clientConnection;
-    // Private final field which holds an object of the HandleServerOutput inner class, "serverOutputHandler".
-    private final ServerOutputHandler serverOutputHandler;
 
     public ClientInputHandler(Connection clientConnection) {
         this.clientConnection = clientConnection;
-        // Set the value of the serverOutputHandler and chatServer fields respectfully.
-        this.serverOutputHandler = new ServerOutputHandler();
-        // Ensure that the list of bad words has been set only once
     }
 
-    private Connection getClientConnection() {
-        return this.clientConnection;
+    private static CommandRegistry<Connection> createCommands() {
+        CommandRegistry<Connection> commands = new CommandRegistry<>((source, command) -> source.getChatServer()
+                .getServerOutputHandler().serverBroadcast(source, "Incorrect usage of " + command.getName() +
+                        ". Correct usage is " + command.getUsage() + "."));
+        commands.register("/pm", 0, CommandRegistry.Command.ANY, "\"/pm <ID> <msg>\"",
+                        (source, command) -> processPrivateMessage(source, command.getRest(0)))
+                .register("/serverpop", 0, CommandRegistry.Command.ANY, "\"/serverpop\"",
+                        (source, command) -> processPopulation(source))
+                .register("/join", 1, 1, "\"/join <room>\", where the room's name is 2 to 20 letters, digits, '-' or '_'",
+                        (source, command) -> processJoin(source, command.getArgument(0)))
+                .register("/leave", 0, CommandRegistry.Command.ANY, "\"/leave\"",
+                        (source, command) -> processJoin(source, RoomRegistry.LOBBY))
+                .register("/history", 1, 1, "\"/history <n>\", where n is a positive number",
+                        (source, command) -> processHistory(source, command.getArgument(0)))
+                .register("/rooms", 0, CommandRegistry.Command.ANY, "\"/rooms\"",
+                        (source, command) -> processRooms(source));
+        return commands;
     }
 
-    private ServerOutputHandler getServerOutputHandler() {
-        // Getter method for serverOutputHandler.
-        return this.serverOutputHandler;
+    private Connection getClientConnection() {
+        return this.clientConnection;
     }
 
     private void handleInput() {
         /* Creates a new instance of the BufferedReader which allows the server to receive messages from the client.
          * Constantly checks the user's input and calls the processInput() method as long as the input isn't "exit".
+         * A client using binary framing is read frame by frame instead, until it closes the connection.
+         * Each message is checked against the client's rate limits first. A delayed message is waited for on this thread,..-
+         * -.. so nothing more is read from the client meanwhile.
          * If there is an IO or a NullPointer exception, inform the user about this event and let them know their connection is being closed.
          */
         Connection source = getClientConnection();
-        ChatServer server = source.getChatServer();
-        ServerOutputHandler serverOutputHandler = server.getServerOutputHandler();
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
         try {
-            String clientInput;
-            BufferedReader clientInputStream = source.getClientInputStream();
-            while (!(clientInput = clientInputStream.readLine().trim()).equalsIgnoreCase("exit")) {
-                if (!(processInput(source, clientInput, serverOutputHandler))) {
-                    continue;
+            if (source.usesBinaryFraming()) {
+                DataInputStream frameInputStream = new DataInputStream(new BufferedInputStream(source.getSocket().getInputStream()));
+                MessageFrame frame;
+                while ((frame = MessageFrame.read(frameInputStream)) != null
+                        && (!awaitRateLimit(checkRateLimit(frame)) || handleFrame(frame))) {
+                    // Each frame is fully handled by handleFrame(), unless it is dropped by the rate limit.
+                }
+            } else {
+                BufferedReader clientInputStream = source.getClientInputStream();
+                String line;
+                while (!awaitRateLimit(checkRateLimit(line = clientInputStream.readLine().trim())) || handleLine(line)) {
+                    // Each line is fully handled by handleLine(), unless it is dropped by the rate limit.
                 }
-                serverOutputHandler.clientBroadcast(source, server.getConnectionsMap().values(), clientInput);
             }
             source.disconnectConnection();
         } catch (IOException | NullPointerException exception) {
-            if (!source.getSocket().isClosed()) {
+            if (!source.isDisconnected()) {
                 String toBroadcast = "Failed to continue process. Closing connection.";
                 serverOutputHandler.serverBroadcast(source, toBroadcast);
                 source.disconnectConnection();
@@ -54,43 +76,289 @@ public class ClientInputHandler implements Runnable {
         }
     }
 
-    private boolean processInput(Connection source, String clientInput, ServerOutputHandler serverOutputHandler) {
-        // Process the client's input. Execute instructions based on the type of message (e.g server command, private message, etc.)
-        String[] clientInputWords = clientInput.split("\\s+");
-        if (clientInput.length() < 1) {
+    private static boolean awaitRateLimit(long delay) {
+        // Waits out the delay given by checkRateLimit(), if any. Returns false if the message is to be dropped instead.
+        long end = System.nanoTime() + delay;
+        for (long remaining = delay; remaining > 0 && !Thread.currentThread().isInterrupted(); remaining = end - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+        return delay >= 0;
+    }
+
+    protected long checkRateLimit(String clientInput) {
+        /* Checks a line from the client against their rate limits, before it is handled. Used by both the reading thread and the event loops.
+         * Returns 0 if the line may be handled straight away, -1 if it is dropped, or how many nanoseconds to wait before..-
+         * -.. handling it if the server delays clients. "exit" is never limited.
+         */
+        if (getClientConnection().getChatServer().getSettings().getRateLimitPolicy() == RateLimiter.Policy.OFF
+                || clientInput.equalsIgnoreCase("exit")) {
+            return 0;
+        }
+        return checkRateLimit(getCategory(clientInput));
+    }
+
+    protected long checkRateLimit(MessageFrame frame) {
+        // Same as above, for a frame from a client using binary framing. Frames which are ignored anyway are never limited.
+        if (getClientConnection().getChatServer().getSettings().getRateLimitPolicy() == RateLimiter.Policy.OFF) {
+            return 0;
+        }
+        switch (frame.getType()) {
+            case CHAT:
+                return checkRateLimit(RateLimiter.Category.CHAT);
+            case PRIVATE_MESSAGE:
+                return checkRateLimit(RateLimiter.Category.PRIVATE_MESSAGE);
+            case COMMAND:
+                return checkRateLimit(getCategory(frame.getPayload().trim()));
+            default:
+                return 0;
+        }
+    }
+
+    private static RateLimiter.Category getCategory(String clientInput) {
+        // Only the first word is looked at, without splitting the whole line, as this is done for every message.
+        if (!clientInput.startsWith("/")) {
+            return RateLimiter.Category.CHAT;
+        }
+        int end = 0;
+        while (end < clientInput.length() && !Character.isWhitespace(clientInput.charAt(end))) {
+            end++;
+        }
+        if (end == 3 && clientInput.regionMatches(true, 0, "/pm", 0, 3)) {
+            return RateLimiter.Category.PRIVATE_MESSAGE;
+        } else if (end == 10 && clientInput.regionMatches(true, 0, "/serverpop", 0, 10)) {
+            return RateLimiter.Category.POPULATION;
+        }
+        return RateLimiter.Category.COMMAND;
+    }
+
+    private long checkRateLimit(RateLimiter.Category category) {
+        /* Takes a token from the bucket for the kind of message. If there is none, depending on the server's policy,..-
+         * -.. the message is either delayed until there would have been one, or dropped, in which case the client is..-
+         * -.. either told (at most once a second) or warned.
+         */
+        Connection source = getClientConnection();
+        RateLimiter rateLimiter = source.getRateLimiter();
+        RateLimiter.Policy policy = source.getChatServer().getSettings().getRateLimitPolicy();
+        long now = System.nanoTime();
+        if (policy == RateLimiter.Policy.DELAY) {
+            long delay = rateLimiter.reserve(category, now);
+            if (delay > 0) {
+                source.getChatServer().getMetrics().recordRateLimited();
+            }
+            return delay;
+        }
+        if (rateLimiter.tryTake(category, now)) {
+            return 0;
+        }
+        source.getChatServer().getMetrics().recordRateLimited();
+        if (policy == RateLimiter.Policy.WARN) {
+            source.getLock().lock();
+            try {
+                source.warn(1, "Sending messages too quickly");
+            } finally {
+                source.getLock().unlock();
+            }
+        } else if (rateLimiter.shouldNotify(now)) {
+            source.getChatServer().getServerOutputHandler().serverBroadcast(source,
+                    "You are sending messages too quickly, so some of them were not sent.");
+        }
+        return -1;
+    }
+
+    protected boolean handleLine(String clientInput) {
+        /* Handles a single, trimmed line received from the client. Used by both the reading thread and the event loops.
+         * Returns false if the client has asked to exit, in which case the caller should disconnect them.
+         * Otherwise, the line is processed and broadcast to everyone if it is a legal chat message.
+         */
+        Connection source = getClientConnection();
+        if (clientInput.equalsIgnoreCase("exit") || source.isDisconnected()) {
             return false;
-        } else if (clientInputWords[0].equalsIgnoreCase("/pm")) {
-            processPrivateMessage(source, clientInputWords, serverOutputHandler);
+        }
+        source.getChatServer().getMetrics().recordMessageIn();
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
+        if (processInput(source, clientInput)) {
+            broadcastToRoom(source, clientInput, serverOutputHandler);
+        }
+        return true;
+    }
+
+    protected boolean handleFrame(MessageFrame frame) {
+        /* Handles a single frame received from a client using binary framing. Used by both the reading thread and the event loops.
+         * The type of the frame decides what is done with it, so chat messages are never parsed as commands.
+         * Returns false if the connection has been disconnected in the meantime, in which case the caller should stop reading.
+         */
+        Connection source = getClientConnection();
+        if (source.isDisconnected()) {
             return false;
-        } else if (clientInputWords[0].equalsIgnoreCase("/serverpop")) {
-            var mapOfConnections = source.getChatServer().getConnectionsMap();
-            serverOutputHandler.serverBroadcast(source, "Server population: " + mapOfConnections.size());
-            mapOfConnections.values().stream().map(Connection::getPublicIdentity).forEach(connection -> serverOutputHandler.serverBroadcast(source, connection));
+        }
+        source.getChatServer().getMetrics().recordMessageIn();
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
+        String payload = frame.getPayload();
+        switch (frame.getType()) {
+            case CHAT:
+                if (!payload.isBlank() && isAppropriate(source, payload)) {
+                    broadcastToRoom(source, payload, serverOutputHandler);
+                }
+                break;
+            case PRIVATE_MESSAGE:
+                processPrivateMessage(source, payload);
+                break;
+            case COMMAND:
+                processInput(source, payload.trim());
+                break;
+            default:
+                // Clients have no reason to send system messages, so they are ignored.
+                break;
+        }
+        return true;
+    }
+
+    private boolean processInput(Connection source, String clientInput) {
+        /* Process the client's input. Execute instructions based on the type of message (e.g server command, private message, etc.)
+         * Returns true if the input is a legal chat message, which should then be broadcast.
+         * Only lines starting with '/' are parsed, so chat messages go straight to the bad word check.
+         */
+        if (clientInput.length() < 1) {
             return false;
-        } else {
-            AtomicBoolean inappropriateWordFound = new AtomicBoolean(false);
-            synchronized (source) {
-                ChatServer.getBadWordsList().stream()
-                        .filter(clientInput.toLowerCase()::contains)
-                        .forEach(badWord ->
-                        {
-                            source.warn(badWord);
-                            inappropriateWordFound.set(true);
-                        });
+        }
+        CommandLine commandLine = CommandLine.parse(clientInput);
+        if (commandLine != null && COMMANDS.dispatch(source, commandLine)) {
+            return false;
+        }
+        return isAppropriate(source, clientInput);
+    }
+
+    private static void processPopulation(Connection source) {
+        // Sends the client every user online, including those on linked servers.
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
+        var registry = source.getChatServer().getConnectionRegistry();
+        serverOutputHandler.serverBroadcast(source, "Server population: " + registry.size());
+        registry.getConnections().stream().map(Connection::getPublicIdentity).forEach(connection -> serverOutputHandler.serverBroadcast(source, connection));
+        Federation federation = source.getChatServer().getFederation();
+        if (federation != null && federation.getRemoteUserCount() > 0) {
+            serverOutputHandler.serverBroadcast(source, "On linked servers: " + federation.getRemoteUserCount());
+            federation.getRemoteIdentities().forEach(identity -> serverOutputHandler.serverBroadcast(source, identity));
+        }
+    }
+
+    private static void processRooms(Connection source) {
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
+        ChatRoom currentRoom = source.getRoom();
+        source.getChatServer().getRoomRegistry().getRooms().forEach(room -> serverOutputHandler.serverBroadcast(source,
+                room.getName() + " - " + room.size() + " user(s)" + ((room == currentRoom) ? " (you are here)" : "")));
+    }
+
+    private void broadcastToRoom(Connection source, String clientInput, ServerOutputHandler serverOutputHandler) {
+        // Chat messages only go to the members of the sender's room, and of the rooms of the same name on linked servers.
+        // The room is null only if the sender has just been disconnected.
+        ChatRoom room = source.getRoom();
+        if (room != null) {
+            serverOutputHandler.roomBroadcast(source, room, clientInput);
+            Federation federation = source.getChatServer().getFederation();
+            if (federation != null) {
+                federation.publishChat(source, room, clientInput);
             }
-            return (!inappropriateWordFound.get());
         }
     }
 
-    private void processPrivateMessage(Connection source, String[] clientInputWords, ServerOutputHandler serverOutputHandler) {
-        if (clientInputWords.length < 3) {
+    private static void processJoin(Connection source, String roomName) {
+        // Moves the client to the room, telling the members of the room they left and of the room they joined.
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
+        if (!RoomRegistry.isLegalName(roomName)) {
+            serverOutputHandler.serverBroadcast(source, "Incorrect usage of /join. Correct usage is \"/join <room>\", where the room's name " +
+                    "is 2 to 20 letters, digits, '-' or '_'.");
+            return;
+        }
+        ChatRoom previousRoom = source.getRoom();
+        if (previousRoom != null && previousRoom.getName().equalsIgnoreCase(roomName)) {
+            serverOutputHandler.serverBroadcast(source, "You are already in " + previousRoom.getName() + ".");
+            return;
+        }
+        ChatRoom room = source.getChatServer().getRoomRegistry().join(source, roomName);
+        if (room == null) {
+            return;
+        }
+        if (previousRoom != null) {
+            serverOutputHandler.globalServerBroadcast(previousRoom.getMembers(), source.getPublicIdentity() + " left " +
+                    previousRoom.getName() + ".");
+        }
+        serverOutputHandler.globalServerBroadcast(room.getMembers(), source.getPublicIdentity() + " joined " + room.getName() +
+                ". Users in the room: " + room.size());
+        serverOutputHandler.recentMessagesBroadcast(source, room, room.getRecentMessages().getCapacity());
+    }
+
+    private static void processHistory(Connection source, String countArgument) {
+        // Sends the client the last n messages in their room, up to as many as the room keeps.
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
+        ChatRoom room = source.getRoom();
+        if (room == null) {
+            return;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(countArgument);
+        } catch (NumberFormatException exception) {
+            count = -1;
+        }
+        if (count < 1) {
+            serverOutputHandler.serverBroadcast(source, "Incorrect usage of /history. Correct usage is \"/history <n>\", where n is a positive number.");
+            return;
+        }
+        if (!serverOutputHandler.recentMessagesBroadcast(source, room, count)) {
+            serverOutputHandler.serverBroadcast(source, "No recent messages in " + room.getName() + ".");
+        }
+    }
+
+    private boolean isAppropriate(Connection source, String clientInput) {
+        // The message is checked for every bad word in a single pass, and the connection is only locked to warn the user.
+        long start = System.nanoTime();
+        List<String> badWordsFound = ChatServer.getBadWordMatcher().findMatches(clientInput,
+                source.getChatServer().getSettings().isWholeWordsOnly());
+        source.getChatServer().getMetrics().recordBadWordCheck(System.nanoTime() - start);
+        if (badWordsFound.isEmpty()) {
+            return true;
+        }
+        source.getLock().lock();
+        try {
+            // Once the user is kicked for reaching their maximum warnings, the rest of the words are not warned for.
+            for (String badWord : badWordsFound) {
+                if (source.isDisconnected()) {
+                    break;
+                }
+                source.warn(badWord);
+            }
+        } finally {
+            source.getLock().unlock();
+        }
+        return false;
+    }
+
+    private static void processPrivateMessage(Connection source, String targetAndMessage) {
+        // The target's ID is everything up to the first white space, and the message everything after it, e.g "3 hello there"..-
+        // -.. or "14003-5f3a9c:2 hello there" for a user on a linked server.
+        ServerOutputHandler serverOutputHandler = source.getChatServer().getServerOutputHandler();
+        int separator = 0;
+        while (separator < targetAndMessage.length() && !Character.isWhitespace(targetAndMessage.charAt(separator))) {
+            separator++;
+        }
+        String message = targetAndMessage.substring(separator).trim();
+        if (message.isEmpty()) {
+            return;
+        }
+        String targetID = targetAndMessage.substring(0, separator);
+        // Users on linked servers are known by a global ID, such as "14003-5f3a9c:2".
+        if (targetID.indexOf(':') > 0) {
+            Federation federation = source.getChatServer().getFederation();
+            if (federation == null || !federation.sendPrivateMessage(source, targetID, message)) {
+                serverOutputHandler.serverBroadcast(source, "User not found.");
+            }
             return;
         }
         try {
-            int uniqueID = Integer.parseInt(clientInputWords[1]);
-            if (source.getChatServer().getConnectionsMap().containsKey(uniqueID)) {
-                getServerOutputHandler().privateMessageBroadcast(source.getChatServer().getConnectionsMap().get(uniqueID), source,
-                        String.join(" ", Arrays.copyOfRange(clientInputWords, 2, clientInputWords.length)));
+            int uniqueID = Integer.parseInt(targetID);
+            Connection target = source.getChatServer().getConnectionRegistry().get(uniqueID);
+            if (target != null) {
+                serverOutputHandler.privateMessageBroadcast(target, source, message);
                 return;
             }
             serverOutputHandler.serverBroadcast(source, "User not found.");
@@ -100,7 +368,8 @@ public class ClientInputHandler implements Runnable {
     }
 
     public void run() {
-        // Calls the handleInput() method with the client's socket as an argument.
+        // Records the thread running this instance, then calls the handleInput() method.
+        getClientConnection().setInputHandlerThread(Thread.currentThread());
         handleInput();
     }
 
@@ -0,0 +1,90 @@
+import java.util.Arrays;
+
+public class CommandLine {
+    /* A command typed by a user or the admin (e.g "/pm 3 hello there"), split into its name and arguments.
+     * The line is only read through once, by hand, recording where each word starts and ends rather than copying it,..-
+     * -.. so no regular expression is compiled or run, and a word is only copied out if a command asks for it.
+     * Lines which do not start with '/' are not parsed at all (see parse()), so chat messages cost nothing here.
+     */
+
+    private final String line;
+    // Hold where the name and each argument start and end in the line. Index 0 is the name.
+    private int[] starts;
+    private int[] ends;
+    private int words;
+
+    private CommandLine(String line) {
+        this.line = line;
+        this.starts = new int[4];
+        this.ends = new int[4];
+        this.words = 0;
+    }
+
+    public static CommandLine parse(String line) {
+        // Returns null if the line is not a command, without looking past its first character.
+        if (line.isEmpty() || line.charAt(0) != '/') {
+            return null;
+        }
+        return parse(line, 0);
+    }
+
+    public static CommandLine parse(String line, int from) {
+        /* Parses a command which starts part way through a line, whatever its first character (e.g the "help" of..-
+         * -.. "[3] alice: bot help"). Returns null if there is nothing but whitespace from there on.
+         */
+        CommandLine commandLine = new CommandLine(line);
+        int length = line.length();
+        int index = from;
+        while (index < length) {
+            while (index < length && Character.isWhitespace(line.charAt(index))) {
+                index++;
+            }
+            if (index == length) {
+                break;
+            }
+            int start = index;
+            while (index < length && !Character.isWhitespace(line.charAt(index))) {
+                index++;
+            }
+            commandLine.addWord(start, index);
+        }
+        return (commandLine.words == 0) ? null : commandLine;
+    }
+
+    private void addWord(int start, int end) {
+        if (this.words == this.starts.length) {
+            this.starts = Arrays.copyOf(this.starts, this.words * 2);
+            this.ends = Arrays.copyOf(this.ends, this.words * 2);
+        }
+        this.starts[this.words] = start;
+        this.ends[this.words] = end;
+        this.words++;
+    }
+
+    public String getName() {
+        // Returns the command as typed, including the '/' if it has one.
+        return this.line.substring(this.starts[0], this.ends[0]);
+    }
+
+    public int getArgumentCount() {
+        return this.words - 1;
+    }
+
+    public String getArgument(int index) {
+        // Returns the argument at the index, counting from 0 after the name, or null if there are not that many.
+        if (index < 0 || index >= getArgumentCount()) {
+            return null;
+        }
+        return this.line.substring(this.starts[index + 1], this.ends[index + 1]);
+    }
+
+    public String getRest(int index) {
+        // Returns everything from the argument at the index to the end of the line, with its spacing kept..-
+        // -.. (e.g the message of "/pm 3 hello  there" is "hello  there"). Empty if there are not that many arguments.
+        if (index < 0 || index >= getArgumentCount()) {
+            return "";
+        }
+        return this.line.substring(this.starts[index + 1], this.ends[this.words - 1]);
+    }
+
+}
@@ -0,0 +1,87 @@
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+public class CommandRegistry<C> {
+    /* Holds the commands which can be typed, each registered once with its handler and how many arguments it takes.
+     * A command is found with a single lookup by its name, so adding commands never makes dispatching any slower.
+     * C is what a command is run for, e.g the connection of the user who typed it.
+     */
+
+    // Runs a command once its arguments have been checked.
+    @FunctionalInterface
+    public interface Handler<C> {
+        void handle(C context, CommandLine commandLine);
+    }
+
+    public static final class Command<C> {
+
+        // Maximum number of arguments for a command which takes any number of them.
+        public static final int ANY = Integer.MAX_VALUE;
+
+        private final String name;
+        private final int minArguments;
+        private final int maxArguments;
+        // Holds how the command should be typed (e.g "/join <room>"), shown when it is typed with the wrong number of arguments.
+        private final String usage;
+        private final Handler<C> handler;
+
+        private Command(String name, int minArguments, int maxArguments, String usage, Handler<C> handler) {
+            this.name = name;
+            this.minArguments = minArguments;
+            this.maxArguments = maxArguments;
+            this.usage = usage;
+            this.handler = handler;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getUsage() {
+            return this.usage;
+        }
+
+        private boolean accepts(CommandLine commandLine) {
+            int arguments = commandLine.getArgumentCount();
+            return arguments >= this.minArguments && arguments <= this.maxArguments;
+        }
+    }
+
+    private final Map<String, Command<C>> commands;
+    // Tells whoever typed a command with the wrong number of arguments how it should be typed.
+    private final BiConsumer<C, Command<C>> usageReporter;
+
+    public CommandRegistry(BiConsumer<C, Command<C>> usageReporter) {
+        this.commands = new HashMap<>();
+        this.usageReporter = usageReporter;
+    }
+
+    public CommandRegistry<C> register(String name, int minArguments, int maxArguments, String usage, Handler<C> handler) {
+        // Names are matched ignoring case. Registering is only done while the registry is set up, before it is shared.
+        String key = name.toLowerCase(Locale.ROOT);
+        if (this.commands.containsKey(key)) {
+            throw new IllegalArgumentException("Command already registered: " + name);
+        }
+        this.commands.put(key, new Command<>(name, minArguments, maxArguments, usage, handler));
+        return this;
+    }
+
+    public boolean dispatch(C context, CommandLine commandLine) {
+        /* Runs the command typed, or tells whoever typed it how it should be typed if its arguments don't fit.
+         * Returns false if there is no such command, leaving it to the caller to decide what the line is.
+         */
+        Command<C> command = this.commands.get(commandLine.getName().toLowerCase(Locale.ROOT));
+        if (command == null) {
+            return false;
+        }
+        if (command.accepts(commandLine)) {
+            command.handler.handle(context, commandLine);
+        } else {
+            this.usageReporter.accept(context, command);
+        }
+        return true;
+    }
+
+}
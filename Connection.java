@@ -1,14 +1,17 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Connection {
 
-    private static int idCounter = 0;
     private final Socket socket;
     private final InetAddress address;
     private final String name;
@@ -17,13 +20,31 @@ public class Connection {
     private final ChatServer chatServer;
     private final int uniqueID;
     private final String publicIdentity;
+    // Lock held while this connection's input is checked and warned, and while it moves between rooms.
+    // Used instead of synchronized so virtual threads are not pinned.
+    private final ReentrantLock lock;
+    // Holds the messages waiting to be written to the client.
+    private final OutboundQueue outboundQueue;
+    // Limits how quickly the client's messages are handled.
+    private final RateLimiter rateLimiter;
+    // Starts a writer for the outbound queue. Threaded connections use the server's output executor, event loops their own.
+    private Runnable outputScheduler;
+    // Holds the buffered stream the writer of a threaded connection writes to. Only used by that writer, and made on first use.
+    private OutputStream socketOutputStream;
+    // Holds whether the client asked for binary framing during the handshake, rather than lines of text.
+    private boolean binaryFraming;
+    // Compresses everything written to the client, if they asked for compression during the handshake. Otherwise null.
+    private MessageCompressor compressor;
+    // Set while a writer has been held back by the flush interval and has not started yet.
+    private final AtomicBoolean flushPending;
+    // Holds the room the client is chatting in. Only changed through the RoomRegistry. Null once disconnected.
+    private volatile ChatRoom room;
     private Thread inputHandlerThread;
     private int maxWarnings;
     private int warnings;
 
     public Connection(Socket socket, InetAddress address, String name, PrintWriter broadcaster, BufferedReader clientInputStream, ChatServer chatServer) {
-        this.uniqueID = Connection.idCounter;
-        Connection.idCounter++;
+        this.uniqueID = chatServer.getConnectionRegistry().nextUniqueID();
         this.socket = socket;
         this.address = address;
         this.name = name;
@@ -31,6 +52,14 @@ public class Connection {
         this.clientInputStream = clientInputStream;
         this.chatServer = chatServer;
         this.publicIdentity = getName().concat("(" + getUniqueID() + ")");
+        this.lock = new ReentrantLock();
+        this.outboundQueue = new OutboundQueue(chatServer.getSettings().getQueueCapacity(), chatServer.getSettings().getOverflowPolicy());
+        this.rateLimiter = new RateLimiter(chatServer.getSettings());
+        this.outputScheduler = () -> getChatServer().runOutputTask(this::writeOutput);
+        this.binaryFraming = false;
+        this.compressor = null;
+        this.flushPending = new AtomicBoolean(false);
+        this.room = null;
         this.inputHandlerThread = null;
         this.maxWarnings = 3;
         this.warnings = 0;
@@ -68,6 +97,152 @@ public class Connection {
         return this.publicIdentity;
     }
 
+    public ReentrantLock getLock() {
+        return this.lock;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    public void setOutputScheduler(Runnable outputScheduler) {
+        this.outputScheduler = outputScheduler;
+    }
+
+    public boolean usesBinaryFraming() {
+        return this.binaryFraming;
+    }
+
+    public void setBinaryFraming(boolean binaryFraming) {
+        // Must be set before the connection is admitted, as it decides how every message to the client is encoded.
+        this.binaryFraming = binaryFraming;
+    }
+
+    public MessageCompressor getCompressor() {
+        return this.compressor;
+    }
+
+    public void setCompressor(MessageCompressor compressor) {
+        // Must be set before the connection is admitted, as the whole of the stream after the handshake is compressed.
+        this.compressor = compressor;
+    }
+
+    public ChatRoom getRoom() {
+        return this.room;
+    }
+
+    protected void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    public boolean isDisconnected() {
+        return getOutboundQueue().isClosed();
+    }
+
+    public void send(MessageFrame message) {
+        /* Queues the message for the client and makes sure a writer is on its way, without waiting for it to be written.
+         * If the queue is full and the server drops slow clients, the client is disconnected on the output executor..-
+         * -.. as the sender may be going through the map of connections at this point.
+         */
+        if (!getOutboundQueue().offer(message)) {
+            getChatServer().runOutputTask(this::disconnectSlowConnection);
+            return;
+        }
+        scheduleOutput();
+    }
+
+    private void scheduleOutput() {
+        /* Makes sure a writer is on its way. If the server holds output back (-flush), the writer only starts once the flush..-
+         * -.. interval has passed, so that every message sent meanwhile is written with it, in as few writes as possible.
+         * Held back output is written straight away once it reaches the flush threshold, or once the connection is closing.
+         */
+        OutboundQueue outboundQueue = getOutboundQueue();
+        ServerSettings settings = getChatServer().getSettings();
+        if (outboundQueue.startDraining()) {
+            if (settings.getFlushInterval() > 0 && !isDisconnected()) {
+                this.flushPending.set(true);
+                getChatServer().scheduleFlush(this::flushPendingOutput);
+                return;
+            }
+            this.outputScheduler.run();
+        } else if (this.flushPending.get()
+                && (isDisconnected() || outboundQueue.getQueuedCharacters() >= settings.getFlushThreshold())) {
+            flushPendingOutput();
+        }
+    }
+
+    private void flushPendingOutput() {
+        // Starts the writer which was held back, unless it has been started already.
+        if (this.flushPending.compareAndSet(true, false)) {
+            this.outputScheduler.run();
+        }
+    }
+
+    private void writeOutput() {
+        /* This runs on the server's output executor. Writes every queued message, then closes the connection if it is disconnecting.
+         * The messages are gathered in a buffer and sent together, rather than with one write to the socket each.
+         * If the socket can no longer be written to, the remaining messages are discarded - the input handler will notice and..-
+         * -.. disconnect the client.
+         */
+        OutboundQueue outboundQueue = getOutboundQueue();
+        boolean failed = false;
+        do {
+            MessageFrame message;
+            while ((message = outboundQueue.poll()) != null) {
+                failed = failed || !writeToSocket(message.encode(usesBinaryFraming()));
+            }
+            failed = failed || !writeToSocket(null);
+        } while (outboundQueue.finishDraining());
+        if (outboundQueue.isClosed()) {
+            closeResources();
+        }
+    }
+
+    private boolean writeToSocket(byte[] message) {
+        /* Writes the message to the socket's buffered stream, or flushes the stream if the message is null. Returns false on failure.
+         * If the client asked for compression, the message is compressed instead, and the compressed batch is only written..-
+         * -.. once it is full or the stream is flushed, so the writer sync flushes the compression once per batch.
+         */
+        try {
+            if (this.socketOutputStream == null) {
+                this.socketOutputStream = new BufferedOutputStream(getSocket().getOutputStream());
+            }
+            MessageCompressor compressor = getCompressor();
+            if (compressor != null && message != null) {
+                compressor.add(message);
+                if (!compressor.isBatchFull()) {
+                    return true;
+                }
+                message = compressor.finishBatch();
+            } else if (compressor != null) {
+                byte[] batch = compressor.finishBatch();
+                this.socketOutputStream.write(batch);
+                getChatServer().getMetrics().recordOutboundBytes(batch.length);
+            }
+            if (message == null) {
+                this.socketOutputStream.flush();
+            } else {
+                this.socketOutputStream.write(message);
+                getChatServer().getMetrics().recordOutboundBytes(message.length);
+            }
+            return true;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    private void disconnectSlowConnection() {
+        // The client's writer is most likely stuck, so the socket is closed straight away rather than once the queue is written.
+        getChatServer().getServerOutputHandler().broadcastToAdmin(getPublicIdentity() +
+                " was disconnected for not keeping up with their messages.");
+        disconnectConnection();
+        closeResources();
+    }
+
     public Thread getInputHandlerThread() {
         return this.inputHandlerThread;
     }
@@ -98,17 +273,18 @@ public class Connection {
     }
 
     public void warn(String word) {
+        // Warns the user for an inappropriate word or phrase found in their message.
         this.warnings++;
-        processWarn(word);
+        processWarn((BadWordMatcher.isPhrase(word) ? "Inappropriate phrase detected: " : "Inappropriate word detected: ") + word);
     }
 
-    private void processWarn(String word) {
+    private void processWarn(String reason) {
         ServerOutputHandler serverOutputHandler = getChatServer().getServerOutputHandler();
         serverOutputHandler.serverBroadcast(this, "You've been warned. Current warnings: " + getWarnings() +
-                " out of " + getMaxWarnings() + "\nReason: Inappropriate word detected: " + word +
+                " out of " + getMaxWarnings() + "\nReason: " + reason +
                 ". Please raise a ticket by typing \"/ticket <msg>\" without the speech marks and the <> if you believe this is an error.");
-        serverOutputHandler.broadcastToAdmin(getPublicIdentity() + " was warned for inappropriate word usage: "
-                + word + ". Current warnings: " + getWarnings());
+        serverOutputHandler.broadcastToAdmin(getPublicIdentity() + " was warned. Reason: "
+                + reason + ". Current warnings: " + getWarnings());
         this.processWarnings(serverOutputHandler);
     }
 
@@ -122,34 +298,54 @@ public class Connection {
     }
 
     private void processWarnings(ServerOutputHandler serverOutputHandler) {
-        if (this.hasReachedMaxWarnings()) {
-            /* Find a way to IP ban for short period.
-             * Perhaps get connection's address and store in a blacklist. Upon establishing connection with client, check blacklist.
-             * Allow server admin to ban for custom amount of time.
-             */
-            serverOutputHandler.serverBroadcast(this, "Max warnings reached. Disconnecting user..");
+        // A user already disconnected has been kicked (and banned) already, so it is never done twice.
+        if (this.hasReachedMaxWarnings() && !isDisconnected()) {
+            // Unless the server was started with -autoban off, the user's address is also banned for a while,..-
+            // -.. so they can't simply reconnect. Other users on the same address (e.g behind the same NAT) stay..-
+            // -.. connected, but can't connect again until the ban ends. The admin can ban for a custom amount of time with /ban.
+            int banMinutes = getChatServer().getSettings().getAutoBanMinutes();
+            serverOutputHandler.serverBroadcast(this, "Max warnings reached. " +
+                    ((banMinutes > 0) ? "You are banned for " + banMinutes + " minute(s). " : "") + "Disconnecting user..");
             this.disconnectConnection();
-            serverOutputHandler.broadcastToAdmin(getPublicIdentity() + " was kicked for having " + this.getWarnings() +
-                    " out of " + getMaxWarnings() + " warnings.");
+            serverOutputHandler.broadcastToAdmin(getPublicIdentity() + " was kicked" +
+                    ((banMinutes > 0) ? " and banned for " + banMinutes + " minute(s)" : "") + " for having " +
+                    this.getWarnings() + " out of " + getMaxWarnings() + " warnings.");
+            if (banMinutes > 0) {
+                getChatServer().banAddress(getAddress(), TimeUnit.MINUTES.toMillis(banMinutes), false);
+            }
         }
     }
 
-    public static void disconnectAllConnections(Collection<Connection> connections) {
-        var toRemove = new ArrayList<Connection>();
-        connections.forEach(connection -> {
-            ResourceCloser.closeCloseables(List.of(connection.getSocket(), connection.getClientInputStream(), connection.getBroadcaster()));
-            toRemove.add(connection);
+    public static void disconnectAllConnections(ConnectionRegistry registry) {
+        // Each connection is closed by its writer once the messages already queued for it have been written.
+        registry.getConnections().forEach(connection -> {
+            connection.getOutboundQueue().close();
+            connection.scheduleOutput();
+            registry.remove(connection);
+            connection.getChatServer().getRoomRegistry().leave(connection);
         });
-        connections.removeAll(toRemove);
     }
 
     public void disconnectConnection() {
-        var mapOfConnections = getChatServer().getConnectionsMap();
-        synchronized (getChatServer().getConnectionsMap()) {
-            mapOfConnections.remove(getUniqueID(), this);
+        // Only the first call has any effect. The connection is closed by its writer once its queue has been written.
+        if (!getOutboundQueue().close()) {
+            return;
+        }
+        var registry = getChatServer().getConnectionRegistry();
+        registry.remove(this);
+        getChatServer().getRoomRegistry().leave(this);
+        getChatServer().getServerOutputHandler().globalServerBroadcast(registry.getConnections(), getPublicIdentity() + " just disconnected.");
+        if (getChatServer().getFederation() != null) {
+            getChatServer().getFederation().publishLeave(this);
+        }
+        scheduleOutput();
+    }
+
+    public void closeResources() {
+        ResourceCloser.closeCloseables(Arrays.asList(getSocket(), getClientInputStream(), getBroadcaster()));
+        if (getCompressor() != null) {
+            getCompressor().close();
         }
-        getChatServer().getServerOutputHandler().globalServerBroadcast(mapOfConnections.values(), getPublicIdentity() + " just disconnected.");
-        ResourceCloser.closeCloseables(List.of(getSocket(), getClientInputStream(), getBroadcaster()));
     }
 
 }
\ No newline at end of file
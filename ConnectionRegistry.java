@@ -0,0 +1,78 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConnectionRegistry {
+    /* Holds every connection on the server, and every name in use.
+     * Reads never lock, so broadcasts can go through the connections while others join and leave.
+     * Names are kept in lowercase, so checking whether a name is taken does not depend on the number of users online.
+     */
+
+    private final ConcurrentHashMap<Integer, Connection> connectionsByID;
+    // Holds the lowercase names of all connections, and of clients which have chosen a name but are not connected yet.
+    private final Set<String> takenNames;
+    private final AtomicInteger idCounter;
+    // Number of anonymous users
+    private final AtomicInteger anonymousUsers;
+
+    public ConnectionRegistry() {
+        this.connectionsByID = new ConcurrentHashMap<>();
+        this.takenNames = ConcurrentHashMap.newKeySet();
+        this.idCounter = new AtomicInteger(0);
+        this.anonymousUsers = new AtomicInteger(0);
+    }
+
+    public int nextUniqueID() {
+        return this.idCounter.getAndIncrement();
+    }
+
+    public boolean reserveName(String name) {
+        // Returns true if the name was free, in which case it now belongs to the caller. Two clients can never reserve the same name.
+        return this.takenNames.add(name.toLowerCase());
+    }
+
+    public void releaseName(String name) {
+        this.takenNames.remove(name.toLowerCase());
+    }
+
+    public String reserveAnonymousName() {
+        /* Returns the next anonymous name, already reserved.
+         * Numbers taken by users who chose an anonymous-looking name themselves are skipped.
+         */
+        String name;
+        do {
+            name = "Anonymous " + this.anonymousUsers.incrementAndGet();
+        } while (!reserveName(name));
+        return name;
+    }
+
+    public void add(Connection connection) {
+        this.connectionsByID.put(connection.getUniqueID(), connection);
+    }
+
+    public boolean remove(Connection connection) {
+        // Returns true if the connection was registered, and frees its name.
+        if (this.connectionsByID.remove(connection.getUniqueID(), connection)) {
+            releaseName(connection.getName());
+            return true;
+        }
+        return false;
+    }
+
+    public Connection get(int uniqueID) {
+        // Returns the connection with the given ID, or null if there is none.
+        return this.connectionsByID.get(uniqueID);
+    }
+
+    public Collection<Connection> getConnections() {
+        // Returns a live, read-only view of the connections, which can be iterated while connections join and leave.
+        return Collections.unmodifiableCollection(this.connectionsByID.values());
+    }
+
+    public int size() {
+        return this.connectionsByID.size();
+    }
+
+}
@@ -0,0 +1,430 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Federation {
+    /* Links the server to other servers, so that users on different servers can chat in the same rooms and message each other.
+     * Every server accepts links on its port plus LINK_PORT_OFFSET, and keeps trying to link to each of its peers..-
+     * -.. until it succeeds, so servers can be started and restarted in any order.
+     * Events are flooded: each server passes an event on to all of its links apart from the one it came from, and ignores..-
+     * -.. events it has seen already, so any connected mesh of servers works, with or without loops.
+     * Users on other servers are known by their global ID, "<label>:<ID>", where the label is their server's port..-
+     * -.. followed by part of its instance (e.g "14003-5f3a9c"), so servers on the same port on different machines..-
+     * -.. never share a label.
+     * Links carry no password, so only the peers are trusted: if every peer is on this machine, links are only accepted..-
+     * -.. on the loopback address, and otherwise a link from any address which is not a peer's is closed before the handshake.
+     */
+
+    // Links are accepted on the server's port plus this offset, e.g 24001 for the server on port 14001.
+    public static final int LINK_PORT_OFFSET = 10000;
+    // Time, in milliseconds, between attempts to link to peers which are not linked.
+    private static final long LINK_RETRY_INTERVAL = 3000;
+    // Time, in milliseconds, allowed to reach a peer.
+    private static final int CONNECT_TIMEOUT = 1000;
+    // Number of events remembered to ignore repeats. Far more than can be in flight at once.
+    private static final int SEEN_EVENTS_CAPACITY = 65536;
+    // Number of hexadecimal digits of the instance in the label. Enough that two servers on the same port..-
+    // -.. practically never share a label, while staying short enough for users to type in a PM.
+    private static final int LABEL_INSTANCE_DIGITS = 6;
+
+    private final ChatServer chatServer;
+    // Random, so that a restarted server is never mistaken for the one before it.
+    private final long instance;
+    private final String label;
+    private final int linkPort;
+    private final List<InetSocketAddress> peers;
+    private final AtomicLong sequence;
+    // Holds the link to each linked server, by its instance.
+    private final ConcurrentHashMap<Long, FederationLink> links;
+    // Holds the users on other servers, by their global ID.
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers;
+    // Holds the most users each other server admits (0 if there is no limit), by its instance.
+    private final ConcurrentHashMap<Long, Integer> remoteCapacities;
+    // Holds the most recent events seen, oldest first. Guarded by seenEventsLock.
+    private final LinkedHashMap<String, Boolean> seenEvents;
+    private final ReentrantLock seenEventsLock;
+    private volatile boolean closed;
+    private ServerSocket linkServerSocket;
+
+    private static class RemoteUser {
+        // A user on another server, along with the instance of that server and the link the user was learnt through.
+        private final long originInstance;
+        private final FederationLink link;
+        private final String publicIdentity;
+
+        private RemoteUser(long originInstance, FederationLink link, String publicIdentity) {
+            this.originInstance = originInstance;
+            this.link = link;
+            this.publicIdentity = publicIdentity;
+        }
+    }
+
+    public Federation(ChatServer chatServer, int portNumber, List<InetSocketAddress> peers) {
+        this.chatServer = chatServer;
+        this.instance = ThreadLocalRandom.current().nextLong();
+        this.label = portNumber + "-" + String.format("%016x", this.instance).substring(0, LABEL_INSTANCE_DIGITS);
+        this.linkPort = portNumber + LINK_PORT_OFFSET;
+        this.peers = peers;
+        this.sequence = new AtomicLong(0);
+        this.links = new ConcurrentHashMap<>();
+        this.remoteUsers = new ConcurrentHashMap<>();
+        this.remoteCapacities = new ConcurrentHashMap<>();
+        this.seenEvents = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > SEEN_EVENTS_CAPACITY;
+            }
+        };
+        this.seenEventsLock = new ReentrantLock();
+    }
+
+    public long getInstance() {
+        return this.instance;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+
+    public int getLinkPort() {
+        return this.linkPort;
+    }
+
+    public Collection<FederationLink> getLinks() {
+        return this.links.values();
+    }
+
+    public List<String> getRemoteIdentities() {
+        // Returns the public identities of the users on other servers, e.g "alice(14003-5f3a9c:2)".
+        List<String> identities = new ArrayList<>();
+        this.remoteUsers.values().forEach(remoteUser -> identities.add(remoteUser.publicIdentity));
+        return identities;
+    }
+
+    public void start() {
+        /* Starts accepting links, and starts the linker, which links to the peers.
+         * If the link port is taken, the admin is notified, and the server only links to its peers.
+         */
+        boolean localOnly = this.peers.stream().allMatch(peer -> peer.getAddress() != null && peer.getAddress().isLoopbackAddress());
+        try {
+            this.linkServerSocket = new ServerSocket();
+            this.linkServerSocket.setReuseAddress(true);
+            this.linkServerSocket.bind(localOnly ? new InetSocketAddress(InetAddress.getLoopbackAddress(), this.linkPort)
+                    : new InetSocketAddress(this.linkPort));
+            startDaemon(this::acceptLinks, "s_federationAcceptor");
+            broadcastToAdmin("Accepting links from " + (localOnly ? "this machine" : "peers") + " on port " + this.linkPort + ".");
+        } catch (IOException exception) {
+            broadcastToAdmin("\033[0;31mUnable to accept links on port " + this.linkPort + ". Only linking to peers.\033[0m");
+        }
+        startDaemon(this::linkPeers, "s_federationLinker");
+    }
+
+    private static void startDaemon(Runnable task, String threadName) {
+        Thread thread = new Thread(task, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void acceptLinks() {
+        while (!this.closed) {
+            try {
+                Socket socket = this.linkServerSocket.accept();
+                // The handshake is done on its own thread, so a peer which never completes it can not hold up the others.
+                startDaemon(() -> {
+                    if (!isPeerAddress(socket.getInetAddress())) {
+                        ResourceCloser.closeCloseables(List.of(socket));
+                        return;
+                    }
+                    try {
+                        addLink(FederationLink.open(socket, this, false));
+                    } catch (IOException ignored) {
+                        // Not a server in the federation, so the socket has simply been closed.
+                    }
+                }, "s_federationHandshake");
+            } catch (IOException exception) {
+                // The link server socket has been closed.
+                return;
+            }
+        }
+    }
+
+    private boolean isPeerAddress(InetAddress address) {
+        /* Returns true if a link from the address may be accepted. Each peer's host is looked up again, so a peer whose..-
+         * -.. address has changed since the server started is still accepted. Any loopback address stands for this machine.
+         */
+        for (InetSocketAddress peer : this.peers) {
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(peer.getHostString())) {
+                    if (peerAddress.equals(address) || (peerAddress.isLoopbackAddress() && address.isLoopbackAddress())) {
+                        return true;
+                    }
+                }
+            } catch (IOException ignored) {
+                // The peer's host can not be found at the moment, so it is not matched.
+            }
+        }
+        return false;
+    }
+
+    private void linkPeers() {
+        // Tries to link to every peer which is not linked, then waits before trying again.
+        while (!this.closed) {
+            for (InetSocketAddress peer : this.peers) {
+                if (!isLinkedTo(peer)) {
+                    linkPeer(peer);
+                }
+            }
+            try {
+                Thread.sleep(LINK_RETRY_INTERVAL);
+            } catch (InterruptedException exception) {
+                return;
+            }
+        }
+    }
+
+    private boolean isLinkedTo(InetSocketAddress peer) {
+        // Peers are compared by the address they accept links on, so a peer which linked to this server is not linked to again.
+        return this.links.values().stream().anyMatch(link -> link.getRemoteLinkAddress().equals(peer));
+    }
+
+    private void linkPeer(InetSocketAddress peer) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(peer, CONNECT_TIMEOUT);
+            addLink(FederationLink.open(socket, this, true));
+        } catch (IOException exception) {
+            // The peer is not running yet, so it is tried again later.
+            ResourceCloser.closeCloseables(List.of(socket));
+        }
+    }
+
+    private void addLink(FederationLink link) {
+        /* Starts the link, unless there is already a link to the same server.
+         * If two servers link to each other at the same time, both keep the link made by the server with the lower instance,..-
+         * -.. so exactly one of the two links survives.
+         * Once linked, every server is asked for its users, as the link may have joined two separate meshes.
+         */
+        FederationLink[] replaced = new FederationLink[1];
+        FederationLink kept = this.links.compute(link.getRemoteInstance(), (remoteInstance, existing) -> {
+            if (existing == null || existing.isClosed() || link.getInitiatorInstance() < existing.getInitiatorInstance()) {
+                replaced[0] = existing;
+                return link;
+            }
+            return existing;
+        });
+        if (kept != link) {
+            link.close();
+            return;
+        }
+        if (replaced[0] != null) {
+            replaced[0].close();
+        }
+        link.start();
+        broadcastToAdmin("Linked to server " + link.getRemoteLabel() + ".");
+        publish(FederationEvent.Kind.SYNC_REQUEST, 0, "", "", "", "");
+    }
+
+    protected void linkClosed(FederationLink link) {
+        /* Called by a link once it has closed. The users learnt through it are forgotten, unless it was replaced by another..-
+         * -.. link, including those on servers further away, as no LEAVE will arrive for them through it any more.
+         * Some of them may still be reachable through the other links, so the remaining servers are asked for their users again.
+         */
+        if (!this.links.remove(link.getRemoteInstance(), link) || this.closed) {
+            return;
+        }
+        broadcastToAdmin("Link to server " + link.getRemoteLabel() + " lost.");
+        if (this.links.isEmpty()) {
+            this.remoteUsers.clear();
+            this.remoteCapacities.clear();
+        } else {
+            this.remoteUsers.values().removeIf(remoteUser -> remoteUser.link == link);
+            this.remoteCapacities.remove(link.getRemoteInstance());
+            publish(FederationEvent.Kind.SYNC_REQUEST, 0, "", "", "", "");
+        }
+    }
+
+    private boolean markSeen(FederationEvent event) {
+        // Returns true if the event has not been seen before.
+        this.seenEventsLock.lock();
+        try {
+            return this.seenEvents.put(event.getOriginInstance() + "/" + event.getSequence(), Boolean.TRUE) == null;
+        } finally {
+            this.seenEventsLock.unlock();
+        }
+    }
+
+    protected void receive(FederationLink source, FederationEvent event) {
+        // Called by a link for every event it reads. The event is passed on before it is delivered to the users on this server.
+        if (event.getOriginInstance() == this.instance || !markSeen(event)) {
+            return;
+        }
+        if (event.getHopsLeft() > 1) {
+            FederationEvent forwarded = event.forwarded();
+            this.links.values().forEach(link -> {
+                if (link != source) {
+                    link.send(forwarded);
+                }
+            });
+        }
+        deliver(source, event);
+    }
+
+    private void deliver(FederationLink source, FederationEvent event) {
+        ServerOutputHandler serverOutputHandler = this.chatServer.getServerOutputHandler();
+        String publicIdentity = event.getUserName() + "(" + event.getGlobalUserID() + ")";
+        switch (event.getKind()) {
+            case CHAT:
+                ChatRoom room = this.chatServer.getRoomRegistry().getRoom(event.getRoom());
+                if (room != null) {
+                    serverOutputHandler.roomBroadcast(event.getGlobalUserID(), event.getUserName(), room, event.getText());
+                }
+                break;
+            case PRIVATE_MESSAGE:
+                deliverPrivateMessage(event, serverOutputHandler);
+                break;
+            case JOIN:
+                this.remoteUsers.put(event.getGlobalUserID(), new RemoteUser(event.getOriginInstance(), source, publicIdentity));
+                serverOutputHandler.globalServerBroadcast(this.chatServer.getConnectionRegistry().getConnections(),
+                        publicIdentity + " has connected to server " + event.getOriginLabel() + "!");
+                break;
+            case LEAVE:
+                if (this.remoteUsers.remove(event.getGlobalUserID()) != null) {
+                    serverOutputHandler.globalServerBroadcast(this.chatServer.getConnectionRegistry().getConnections(),
+                            publicIdentity + " just disconnected.");
+                }
+                break;
+            case SYNC:
+                this.remoteUsers.put(event.getGlobalUserID(), new RemoteUser(event.getOriginInstance(), source, publicIdentity));
+                break;
+            case SYNC_REQUEST:
+                publishLocalUsers();
+                break;
+            case CAPACITY:
+                try {
+                    this.remoteCapacities.put(event.getOriginInstance(), Integer.parseInt(event.getText()));
+                } catch (NumberFormatException ignored) {
+                    // Not a legal capacity, so the server is never redirected to.
+                }
+                break;
+        }
+    }
+
+    private void deliverPrivateMessage(FederationEvent event, ServerOutputHandler serverOutputHandler) {
+        // Only the target's server delivers the message. The target is a global ID such as "14001-5f3a9c:3".
+        String target = event.getTarget();
+        int separator = target.lastIndexOf(':');
+        if (separator < 1 || !target.substring(0, separator).equals(this.label)) {
+            return;
+        }
+        try {
+            Connection targetConnection = this.chatServer.getConnectionRegistry().get(Integer.parseInt(target.substring(separator + 1)));
+            if (targetConnection != null) {
+                serverOutputHandler.privateMessageBroadcast(targetConnection, event.getGlobalUserID(),
+                        event.getUserName() + "(" + event.getGlobalUserID() + ")", String.valueOf(targetConnection.getUniqueID()),
+                        targetConnection.getName(), event.getText());
+            }
+        } catch (NumberFormatException ignored) {
+            // Not a legal ID, so there is no one to deliver it to.
+        }
+    }
+
+    private void publish(FederationEvent.Kind kind, int userID, String userName, String room, String target, String text) {
+        // Sends a new event, started on this server, to every linked server.
+        FederationEvent event = new FederationEvent(this.instance, this.sequence.incrementAndGet(), kind, this.label, userID,
+                userName, room, target, text, FederationEvent.MAX_HOPS);
+        this.links.values().forEach(link -> link.send(event));
+    }
+
+    private void publishLocalUsers() {
+        // Sends a SYNC event for every user on this server, and this server's capacity, in answer to a SYNC_REQUEST.
+        this.chatServer.getConnectionRegistry().getConnections().forEach(connection ->
+                publish(FederationEvent.Kind.SYNC, connection.getUniqueID(), connection.getName(), "", "", ""));
+        publish(FederationEvent.Kind.CAPACITY, 0, "", "", "",
+                String.valueOf(this.chatServer.getSettings().getMaxPopulation()));
+    }
+
+    public void publishJoin(Connection connection) {
+        publish(FederationEvent.Kind.JOIN, connection.getUniqueID(), connection.getName(), "", "", "");
+    }
+
+    public void publishLeave(Connection connection) {
+        publish(FederationEvent.Kind.LEAVE, connection.getUniqueID(), connection.getName(), "", "", "");
+    }
+
+    public void publishChat(Connection source, ChatRoom room, String text) {
+        // Sent to the members of the room of the same name on every other server.
+        publish(FederationEvent.Kind.CHAT, source.getUniqueID(), source.getName(), room.getName().toLowerCase(), "", text);
+    }
+
+    public boolean sendPrivateMessage(Connection source, String target, String text) {
+        // Sends a private message to a user on another server. Returns false if there is no such user.
+        RemoteUser remoteUser = this.remoteUsers.get(target);
+        if (remoteUser == null) {
+            return false;
+        }
+        publish(FederationEvent.Kind.PRIVATE_MESSAGE, source.getUniqueID(), source.getName(), "", target, text);
+        this.chatServer.getServerOutputHandler().privateMessageBroadcast(source, String.valueOf(source.getUniqueID()), source.getName(),
+                target, remoteUser.publicIdentity, text);
+        return true;
+    }
+
+    public int getRemoteUserCount() {
+        return this.remoteUsers.size();
+    }
+
+    public InetSocketAddress findServerWithRoom() {
+        /* Returns the address clients connect to on the linked server with the most room for another user, or null if..-
+         * -.. none has any. Only servers linked directly are chosen, as the link gives their address, and their port is..-
+         * -.. the one they accept links on less LINK_PORT_OFFSET. The address is the one this server reaches it on, so it..-
+         * -.. is the loopback address for a peer on this machine (see ChatServer.describeServer()).
+         * Each server's population is counted from the users it has announced, so no more needs to be sent to find it.
+         * Only called while this server is full, so counting every remote user each time costs nothing the rest of the time.
+         */
+        Map<Long, Integer> populations = new HashMap<>();
+        this.remoteUsers.values().forEach(remoteUser -> populations.merge(remoteUser.originInstance, 1, Integer::sum));
+        FederationLink chosen = null;
+        long mostRoom = 0;
+        for (FederationLink link : this.links.values()) {
+            Integer capacity = this.remoteCapacities.get(link.getRemoteInstance());
+            if (capacity == null || link.isClosed()) {
+                continue;
+            }
+            long room = ((capacity == 0) ? Integer.MAX_VALUE : capacity) - populations.getOrDefault(link.getRemoteInstance(), 0);
+            if (room > mostRoom) {
+                chosen = link;
+                mostRoom = room;
+            }
+        }
+        if (chosen == null) {
+            return null;
+        }
+        InetSocketAddress linkAddress = chosen.getRemoteLinkAddress();
+        return new InetSocketAddress(linkAddress.getAddress(), linkAddress.getPort() - LINK_PORT_OFFSET);
+    }
+
+    private void broadcastToAdmin(String toBroadcast) {
+        this.chatServer.getServerOutputHandler().broadcastToAdmin(toBroadcast);
+    }
+
+    public void close() {
+        // Stops linking, and closes every link.
+        this.closed = true;
+        if (this.linkServerSocket != null) {
+            ResourceCloser.closeCloseables(List.of(this.linkServerSocket));
+        }
+        this.links.values().forEach(FederationLink::close);
+    }
+
+}
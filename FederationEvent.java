@@ -0,0 +1,172 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+public class FederationEvent {
+    /* A single event relayed between linked servers (see Federation).
+     * Every event is identified by the instance of the server it started on and a sequence number from that server,..-
+     * -.. which lets each server ignore events it has seen already, however many paths they arrive by.
+     * Instances are immutable, so an event can be written to every link as is.
+     */
+
+    // The kinds of event. The code of each kind is the byte sent for it.
+    public enum Kind {
+        // A chat message sent in a room. Delivered to the members of the room of the same name on every server.
+        CHAT(1),
+        // A private message to a single user, identified by the label of their server and their ID on it.
+        PRIVATE_MESSAGE(2),
+        // A user has connected. Announced to everyone.
+        JOIN(3),
+        // A user has disconnected. Announced to everyone.
+        LEAVE(4),
+        // A user who was already connected, sent so a newly linked server learns about them. Not announced.
+        SYNC(5),
+        // Asks every server to send a SYNC event for each of their users, as a new link may have joined two meshes.
+        SYNC_REQUEST(6),
+        // The most users a server admits, as the text (0 if there is no limit). Sent along with its SYNC events.
+        CAPACITY(7);
+
+        private final int code;
+
+        Kind(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return this.code;
+        }
+
+        public static Kind fromCode(int code) throws ProtocolException {
+            for (Kind kind : values()) {
+                if (kind.getCode() == code) {
+                    return kind;
+                }
+            }
+            throw new ProtocolException("Unknown event kind: " + code);
+        }
+    }
+
+    // Maximum number of times an event is passed on, in case of any loop the deduplication does not catch.
+    public static final int MAX_HOPS = 16;
+
+    private final long originInstance;
+    private final long sequence;
+    private final Kind kind;
+    // Label of the server the event started on, shown to users (e.g "14003-5f3a9c").
+    private final String originLabel;
+    // ID and name of the user the event is about, or who sent the message.
+    private final int userID;
+    private final String userName;
+    // Room of a chat message, otherwise empty.
+    private final String room;
+    // Global ID ("<label>:<ID>") of the target of a private message, otherwise empty.
+    private final String target;
+    // The message itself, otherwise empty.
+    private final String text;
+    private final int hopsLeft;
+
+    public FederationEvent(long originInstance, long sequence, Kind kind, String originLabel, int userID, String userName,
+                           String room, String target, String text, int hopsLeft) {
+        this.originInstance = originInstance;
+        this.sequence = sequence;
+        this.kind = kind;
+        this.originLabel = originLabel;
+        this.userID = userID;
+        this.userName = userName;
+        this.room = room;
+        this.target = target;
+        this.text = text;
+        this.hopsLeft = hopsLeft;
+    }
+
+    public long getOriginInstance() {
+        return this.originInstance;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public String getOriginLabel() {
+        return this.originLabel;
+    }
+
+    public int getUserID() {
+        return this.userID;
+    }
+
+    public String getUserName() {
+        return this.userName;
+    }
+
+    public String getRoom() {
+        return this.room;
+    }
+
+    public String getTarget() {
+        return this.target;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    public int getHopsLeft() {
+        return this.hopsLeft;
+    }
+
+    public String getGlobalUserID() {
+        // Returns the ID users on other servers know the user by, e.g "14003-5f3a9c:2".
+        return this.originLabel + ":" + this.userID;
+    }
+
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(this.originInstance);
+        outputStream.writeLong(this.sequence);
+        outputStream.writeByte(this.kind.getCode());
+        outputStream.writeByte(this.hopsLeft);
+        outputStream.writeUTF(this.originLabel);
+        outputStream.writeInt(this.userID);
+        outputStream.writeUTF(this.userName);
+        outputStream.writeUTF(this.room);
+        outputStream.writeUTF(this.target);
+        // The text may be longer than writeUTF() allows, so it is written with its length instead.
+        byte[] textBytes = this.text.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(textBytes.length);
+        outputStream.write(textBytes);
+    }
+
+    public static FederationEvent read(DataInputStream inputStream) throws IOException {
+        // Blocks until a whole event has been read. Throws an EOFException if the link is closed.
+        long originInstance = inputStream.readLong();
+        long sequence = inputStream.readLong();
+        Kind kind = Kind.fromCode(inputStream.readUnsignedByte());
+        int hopsLeft = inputStream.readUnsignedByte();
+        String originLabel = inputStream.readUTF();
+        int userID = inputStream.readInt();
+        String userName = inputStream.readUTF();
+        String room = inputStream.readUTF();
+        String target = inputStream.readUTF();
+        int textLength = inputStream.readInt();
+        if (textLength < 0 || textLength > 4 * MessageFrame.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Illegal text length: " + textLength);
+        }
+        byte[] textBytes = new byte[textLength];
+        inputStream.readFully(textBytes);
+        return new FederationEvent(originInstance, sequence, kind, originLabel, userID, userName, room, target,
+                new String(textBytes, StandardCharsets.UTF_8), hopsLeft);
+    }
+
+    public FederationEvent forwarded() {
+        // Returns the event as it is passed on to the next server, with one hop fewer left.
+        return new FederationEvent(this.originInstance, this.sequence, this.kind, this.originLabel, this.userID, this.userName,
+                this.room, this.target, this.text, this.hopsLeft - 1);
+    }
+
+}
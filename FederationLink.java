@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FederationLink {
+    /* A link to another server in the federation, over which events are relayed both ways.
+     * Each link has a thread reading events and a thread writing them, so a slow link never holds up the server..-
+     * -.. or the other links. Events waiting to be written are held in a bounded queue. If it fills up, the link is..-
+     * -.. closed rather than holding up the server, and is made again by the linker once the other server catches up.
+     */
+
+    // Sent first by both sides of a link, so that anything other than a server is turned away straight away.
+    // Changed whenever the kinds of event change, so a server of another version is turned away rather than closing..-
+    // -.. the link at the first event it does not know.
+    private static final String GREETING = "chatroom-federation-2";
+    // Maximum number of events waiting to be written to the other server.
+    private static final int QUEUE_CAPACITY = 8192;
+    // Time allowed for the handshake, in milliseconds.
+    private static final int HANDSHAKE_TIMEOUT = 2000;
+
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final Federation federation;
+    private final BlockingQueue<FederationEvent> outboundEvents;
+    private final AtomicBoolean closed;
+    // Instance and label of the server at the other end, and the address it accepts links on.
+    private long remoteInstance;
+    private String remoteLabel;
+    private InetSocketAddress remoteLinkAddress;
+    // Instance of the server which made the link. When two servers link to each other at once, both keep the same link.
+    private long initiatorInstance;
+    private Thread writerThread;
+
+    private FederationLink(Socket socket, Federation federation) throws IOException {
+        this.socket = socket;
+        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.federation = federation;
+        this.outboundEvents = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.closed = new AtomicBoolean(false);
+    }
+
+    public static FederationLink open(Socket socket, Federation federation, boolean initiator) throws IOException {
+        /* Both sides send the greeting, their instance, their label and the port they accept links on, then check the other's.
+         * The link is not started yet. Throws an IOException, and closes the socket, if the other side is not a server..-
+         * -.. in the federation or is this server itself.
+         */
+        FederationLink link = null;
+        try {
+            link = new FederationLink(socket, federation);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            // The writer already sends bursts of events together, so small events are not held back for the last one's ACK.
+            socket.setTcpNoDelay(true);
+            link.outputStream.writeUTF(GREETING);
+            link.outputStream.writeLong(federation.getInstance());
+            link.outputStream.writeUTF(federation.getLabel());
+            link.outputStream.writeInt(federation.getLinkPort());
+            link.outputStream.flush();
+            if (!link.inputStream.readUTF().equals(GREETING)) {
+                throw new ProtocolException("Not a federation link.");
+            }
+            link.remoteInstance = link.inputStream.readLong();
+            link.remoteLabel = link.inputStream.readUTF();
+            link.remoteLinkAddress = new InetSocketAddress(socket.getInetAddress(), link.inputStream.readInt());
+            if (link.remoteInstance == federation.getInstance()) {
+                throw new ProtocolException("Linked to itself.");
+            }
+            if (link.remoteLabel.equals(federation.getLabel())) {
+                throw new ProtocolException("Both servers have the label " + link.remoteLabel + ".");
+            }
+            link.initiatorInstance = initiator ? federation.getInstance() : link.remoteInstance;
+            socket.setSoTimeout(0);
+            return link;
+        } catch (IOException exception) {
+            ResourceCloser.closeCloseables(List.of(socket));
+            throw exception;
+        }
+    }
+
+    public long getRemoteInstance() {
+        return this.remoteInstance;
+    }
+
+    public String getRemoteLabel() {
+        return this.remoteLabel;
+    }
+
+    public InetSocketAddress getRemoteLinkAddress() {
+        return this.remoteLinkAddress;
+    }
+
+    public long getInitiatorInstance() {
+        return this.initiatorInstance;
+    }
+
+    public int getQueuedEvents() {
+        return this.outboundEvents.size();
+    }
+
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+
+    public void start() {
+        Thread readerThread = new Thread(this::readEvents, "s_federationReader");
+        this.writerThread = new Thread(this::writeEvents, "s_federationWriter");
+        readerThread.setDaemon(true);
+        this.writerThread.setDaemon(true);
+        readerThread.start();
+        this.writerThread.start();
+    }
+
+    public void send(FederationEvent event) {
+        // Queues the event without waiting for it to be written. The link is closed if the other server is not keeping up.
+        if (!isClosed() && !this.outboundEvents.offer(event)) {
+            close();
+        }
+    }
+
+    private void readEvents() {
+        // An event the server fails to handle closes the link like a broken one would, so it is made again rather than..-
+        // -.. left open with no thread reading it.
+        try {
+            while (!isClosed()) {
+                this.federation.receive(this, FederationEvent.read(this.inputStream));
+            }
+        } catch (IOException | RuntimeException exception) {
+            close();
+        }
+    }
+
+    private void writeEvents() {
+        // Writes events as they are queued, only flushing once there are none left, so a burst of events goes out together.
+        try {
+            while (!isClosed()) {
+                this.outboundEvents.take().write(this.outputStream);
+                if (this.outboundEvents.isEmpty()) {
+                    this.outputStream.flush();
+                }
+            }
+        } catch (IOException | InterruptedException exception) {
+            close();
+        }
+    }
+
+    public void close() {
+        // Only the first call has any effect.
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        ResourceCloser.closeCloseables(List.of(this.socket));
+        if (this.writerThread != null) {
+            this.writerThread.interrupt();
+        }
+        this.federation.linkClosed(this);
+    }
+
+}
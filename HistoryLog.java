@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public class HistoryLog {
+    /* Keeps every chat and private message the server relays, so they survive a restart.
+     * Messages are appended to segments, files of a fixed size which are memory-mapped, named after the sequence number..-
+     * -.. of their first record (e.g "history-00000000000000000001.log"). Once a segment is full, the next one is started,..-
+     * -.. and the oldest segments are deleted once there are too many or they are too old.
+     * Each record is written as its length, a CRC32C checksum of the record, then the record itself (see HistoryRecord).
+     * The rest of a segment is left as zeros, so a length of 0 marks the end of the records.
+     * Appending only queues the record. A single writer thread numbers them and writes them to the segment, so sending..-
+     * -.. a message never waits on the disk or on another sender. If the writer falls behind by more than QUEUE_CAPACITY..-
+     * -.. records, new records are dropped.
+     * Records written to the mapped segment survive the server being killed. They are forced to the disk every second..-
+     * -.. and whenever a segment is finished, so at most about a second of messages is lost if the machine itself fails.
+     * Old segments are deleted when a segment is finished, when the log is opened and every RETENTION_INTERVAL, so..-
+     * -.. the age limit holds on a quiet server too.
+     */
+
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Number of bytes before each record - its length, then its checksum.
+    private static final int RECORD_HEADER_LENGTH = 8;
+    // Longest record which can be kept. Longer messages are cut short to MAX_TEXT_LENGTH characters so they always fit.
+    public static final int MAX_RECORD_LENGTH = 1 << 20;
+    private static final int MAX_TEXT_LENGTH = 65536;
+    private static final int QUEUE_CAPACITY = 65536;
+    // Time, in milliseconds, between writes of the segment to the disk.
+    private static final long FORCE_INTERVAL = 1000;
+    // Time, in milliseconds, the writer waits for a record before checking whether it should force the segment or stop.
+    private static final long POLL_INTERVAL = 100;
+    // Time, in milliseconds, between checks for segments which are too old, apart from when a segment is finished.
+    private static final long RETENTION_INTERVAL = 60000;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long retainedBytes;
+    private final long maxAge;
+    private final ServerOutputHandler serverOutputHandler;
+    private final BlockingQueue<HistoryRecord> pendingRecords;
+    // Only changed by the writer thread, and by the recovery before it starts.
+    private volatile long nextSequence;
+    private final AtomicLong writtenRecords;
+    private final AtomicLong droppedRecords;
+    private volatile boolean closed;
+    private volatile boolean failed;
+    private Thread writerThread;
+    // Only used by the writer thread, and by the recovery before it starts.
+    private MappedByteBuffer segment;
+    private Path segmentPath;
+    private final ByteBuffer recordBuffer;
+    private final CRC32C checksum;
+    private boolean unforced;
+    // Set by the recovery.
+    private int recoveredRecords;
+    private boolean tornRecordDiscarded;
+
+    private HistoryLog(Path directory, long segmentSize, long retainedBytes, long maxAge, ServerOutputHandler serverOutputHandler) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retainedBytes = retainedBytes;
+        this.maxAge = maxAge;
+        this.serverOutputHandler = serverOutputHandler;
+        this.pendingRecords = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.writtenRecords = new AtomicLong(0);
+        this.droppedRecords = new AtomicLong(0);
+        this.recordBuffer = ByteBuffer.allocate(MAX_RECORD_LENGTH);
+        this.checksum = new CRC32C();
+    }
+
+    public static HistoryLog open(Path directory, long segmentSize, long retainedBytes, long maxAge,
+                                  ServerOutputHandler serverOutputHandler) throws IOException {
+        /* Opens the log in the directory, making it if needed, and recovers the records already in it.
+         * Sizes are in bytes, and the maximum age is in milliseconds. Throws an IOException if the directory or..-
+         * -.. the current segment can not be opened.
+         */
+        Files.createDirectories(directory);
+        HistoryLog historyLog = new HistoryLog(directory, segmentSize, retainedBytes, maxAge, serverOutputHandler);
+        historyLog.recover();
+        historyLog.writerThread = new Thread(historyLog::writeRecords, "s_historyWriter");
+        historyLog.writerThread.setDaemon(true);
+        historyLog.writerThread.start();
+        return historyLog;
+    }
+
+    public long getLastSequence() {
+        return this.nextSequence - 1;
+    }
+
+    public int getQueuedRecords() {
+        return this.pendingRecords.size();
+    }
+
+    public long getWrittenRecords() {
+        return this.writtenRecords.get();
+    }
+
+    public long getDroppedRecords() {
+        return this.droppedRecords.get();
+    }
+
+    public String getRecoveryReport() {
+        // Describes what was found when the log was opened, for the admin.
+        return "History log: " + listSegments().size() + " segment(s) in " + this.directory + ", last message #" + getLastSequence() +
+                " (" + this.recoveredRecords + " in the current segment)" +
+                (this.tornRecordDiscarded ? ". A torn record at the end of " + this.segmentPath.getFileName() + " was discarded." : ".");
+    }
+
+    public void append(MessageFrame.Type type, String room, String senderID, String senderName, String targetID, String text) {
+        // Queues the message to be written, without waiting for it. Dropped if the writer has fallen too far behind.
+        if (this.closed || this.failed) {
+            this.droppedRecords.incrementAndGet();
+            return;
+        }
+        if (text.length() > MAX_TEXT_LENGTH) {
+            text = text.substring(0, MAX_TEXT_LENGTH);
+        }
+        if (!this.pendingRecords.offer(new HistoryRecord(0, System.currentTimeMillis(), type, room, senderID, senderName, targetID,
+                text))) {
+            this.droppedRecords.incrementAndGet();
+        }
+    }
+
+    private List<Path> listSegments() {
+        // Returns the segments in the directory, oldest first. The sequence numbers are padded, so they sort by name.
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                    && file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        } catch (IOException exception) {
+            return new ArrayList<>();
+        }
+    }
+
+    private static long getFirstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void recover() throws IOException {
+        /* Finds where the last segment's records end, and carries on from there.
+         * Records are read until a length of 0, a record which does not fit, a wrong checksum or a sequence number out of order..-
+         * -.. is found. Anything after that is the remains of a record being written when the server was stopped, and is zeroed..-
+         * -.. so it is never mistaken for a record later. Older segments were forced when they were finished, so they are not read.
+         */
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            this.nextSequence = 1;
+            openSegment(1);
+            return;
+        }
+        this.segmentPath = segments.get(segments.size() - 1);
+        try (FileChannel channel = FileChannel.open(this.segmentPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        long lastSequence = getFirstSequence(this.segmentPath) - 1;
+        int position = 0;
+        HistoryRecord record;
+        while ((record = readRecord(this.segment, position)) != null && record.getSequence() == lastSequence + 1) {
+            lastSequence = record.getSequence();
+            position += RECORD_HEADER_LENGTH + this.segment.getInt(position);
+            this.recoveredRecords++;
+        }
+        for (int i = position; i < this.segment.capacity(); i++) {
+            if (this.segment.get(i) != 0) {
+                this.segment.put(i, (byte) 0);
+                this.tornRecordDiscarded = true;
+            }
+        }
+        this.segment.position(position);
+        this.nextSequence = lastSequence + 1;
+    }
+
+    protected static HistoryRecord readRecord(ByteBuffer segment, int position) {
+        // Returns the record at the position in the segment, or null if there is no whole, intact record there.
+        if (position + RECORD_HEADER_LENGTH > segment.capacity()) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || length > MAX_RECORD_LENGTH || position + RECORD_HEADER_LENGTH + length > segment.capacity()) {
+            return null;
+        }
+        ByteBuffer recordBytes = segment.slice(position + RECORD_HEADER_LENGTH, length);
+        CRC32C recordChecksum = new CRC32C();
+        recordChecksum.update(recordBytes.duplicate());
+        if ((int) recordChecksum.getValue() != segment.getInt(position + 4)) {
+            return null;
+        }
+        try {
+            return HistoryRecord.decode(recordBytes);
+        } catch (ProtocolException | BufferUnderflowException exception) {
+            return null;
+        }
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        // Makes a new segment, filled with zeros, and maps the whole of it.
+        // An empty file of the same name, left by a server stopped while making it, is simply extended.
+        this.segmentPath = this.directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(this.segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+        }
+    }
+
+    private void writeRecords() {
+        /* Runs on the writer thread until the log is closed, writing records in batches as they are queued.
+         * Once closed, the records still queued are written and the segment is forced before the thread ends.
+         * If a record can not be written (e.g the disk is full), the admin is notified and no more records are kept.
+         */
+        List<HistoryRecord> batch = new ArrayList<>();
+        long lastForced = System.currentTimeMillis();
+        long lastRetained = lastForced;
+        try {
+            deleteOldSegments();
+            while (!this.closed) {
+                // The writer is never interrupted, as that would close the channel of a segment being opened.
+                HistoryRecord next = this.pendingRecords.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    batch.add(next);
+                }
+                this.pendingRecords.drainTo(batch);
+                for (HistoryRecord record : batch) {
+                    write(record);
+                }
+                batch.clear();
+                if (this.unforced && System.currentTimeMillis() - lastForced >= FORCE_INTERVAL) {
+                    force();
+                    lastForced = System.currentTimeMillis();
+                }
+                if (System.currentTimeMillis() - lastRetained >= RETENTION_INTERVAL) {
+                    deleteOldSegments();
+                    lastRetained = System.currentTimeMillis();
+                }
+            }
+            this.pendingRecords.drainTo(batch);
+            for (HistoryRecord record : batch) {
+                write(record);
+            }
+            force();
+        } catch (IOException | InterruptedException | RuntimeException exception) {
+            this.failed = true;
+            this.serverOutputHandler.broadcastToAdmin("\033[0;31mUnable to write to the history log (" + exception.getMessage() +
+                    "). Messages are no longer kept.\033[0m");
+        }
+    }
+
+    private void write(HistoryRecord record) throws IOException {
+        // Numbers the record as it is written. The length is written last, so a record is never read before the whole of it..-
+        // -.. has been written.
+        this.recordBuffer.clear();
+        record.encode(this.recordBuffer, this.nextSequence);
+        this.recordBuffer.flip();
+        int length = this.recordBuffer.remaining();
+        if (this.segment.remaining() < RECORD_HEADER_LENGTH + length) {
+            roll(this.nextSequence);
+        }
+        this.checksum.reset();
+        this.checksum.update(this.recordBuffer.duplicate());
+        int position = this.segment.position();
+        this.segment.position(position + RECORD_HEADER_LENGTH);
+        this.segment.put(this.recordBuffer);
+        this.segment.putInt(position + 4, (int) this.checksum.getValue());
+        this.segment.putInt(position, length);
+        this.unforced = true;
+        this.nextSequence++;
+        this.writtenRecords.incrementAndGet();
+    }
+
+    private void roll(long firstSequence) throws IOException {
+        // Finishes the current segment, starts the next one, then deletes the oldest segments if needed.
+        force();
+        openSegment(firstSequence);
+        deleteOldSegments();
+    }
+
+    private void force() {
+        this.segment.force();
+        this.unforced = false;
+    }
+
+    private void deleteOldSegments() throws IOException {
+        // Deletes segments, oldest first, while the segments take up more than retainedBytes or are older than maxAge.
+        List<Path> segments = listSegments();
+        long totalBytes = 0;
+        for (Path segment : segments) {
+            totalBytes += Files.size(segment);
+        }
+        long now = System.currentTimeMillis();
+        for (Path segment : segments) {
+            if (segment.equals(this.segmentPath)
+                    || (totalBytes <= this.retainedBytes && now - Files.getLastModifiedTime(segment).toMillis() <= this.maxAge)) {
+                return;
+            }
+            totalBytes -= Files.size(segment);
+            Files.delete(segment);
+        }
+    }
+
+    public void close() {
+        // Writes the records still queued, then waits up to two seconds for them to reach the disk.
+        this.closed = true;
+        try {
+            this.writerThread.join(2000);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class HistoryRecord {
+    /* A single message kept in the history log (see HistoryLog).
+     * The sequence number is given by the log's writer as it writes the record, and increases by one with every message..-
+     * -.. the server relays, so records are always in the order they were sent in. A record which has not been written..-
+     * -.. yet has the sequence number 0.
+     * Instances are immutable.
+     */
+
+    private final long sequence;
+    // Time the message was sent, in milliseconds since the epoch.
+    private final long timestamp;
+    // Either CHAT or PRIVATE_MESSAGE.
+    private final MessageFrame.Type type;
+    // Room a chat message was sent in, otherwise empty.
+    private final String room;
+    // ID and name of the sender. The ID of a user on a linked server is their global ID, e.g "14003-5f3a9c:2".
+    private final String senderID;
+    private final String senderName;
+    // ID of the target of a private message, otherwise empty.
+    private final String targetID;
+    private final String text;
+
+    public HistoryRecord(long sequence, long timestamp, MessageFrame.Type type, String room, String senderID, String senderName,
+                         String targetID, String text) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.room = room;
+        this.senderID = senderID;
+        this.senderName = senderName;
+        this.targetID = targetID;
+        this.text = text;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public MessageFrame.Type getType() {
+        return this.type;
+    }
+
+    public String getRoom() {
+        return this.room;
+    }
+
+    public String getSenderID() {
+        return this.senderID;
+    }
+
+    public String getSenderName() {
+        return this.senderName;
+    }
+
+    public String getTargetID() {
+        return this.targetID;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    public void encode(ByteBuffer buffer, long sequence) {
+        // Encodes the record with the given sequence number. Throws a BufferOverflowException if it does not fit in the buffer.
+        buffer.putLong(sequence);
+        buffer.putLong(this.timestamp);
+        buffer.put((byte) this.type.getCode());
+        putString(buffer, this.room);
+        putString(buffer, this.senderID);
+        putString(buffer, this.senderName);
+        putString(buffer, this.targetID);
+        putString(buffer, this.text);
+    }
+
+    public static HistoryRecord decode(ByteBuffer buffer) throws ProtocolException {
+        // Throws a ProtocolException, or a BufferUnderflowException, if the buffer does not hold a whole record.
+        long sequence = buffer.getLong();
+        long timestamp = buffer.getLong();
+        MessageFrame.Type type = MessageFrame.Type.fromCode(buffer.get() & 0xFF);
+        return new HistoryRecord(sequence, timestamp, type, getString(buffer), getString(buffer), getString(buffer),
+                getString(buffer), getString(buffer));
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws ProtocolException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new ProtocolException("Illegal string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
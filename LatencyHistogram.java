@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    /* A histogram of durations in nanoseconds, which any number of threads can record to without locking.
+     * Values below 64 are counted exactly. Larger values are counted in buckets of 32 steps between each power of two,..-
+     * -.. so every value is kept to within about 3% of itself, using a fixed array of under 2000 counters.
+     * Percentiles report the highest value of the bucket they fall in, so they are never lower than the true value.
+     */
+
+    private static final int EXACT_VALUES = 64;
+    private static final int STEP_BITS = 5;
+    private static final int STEPS = 1 << STEP_BITS;
+    // Enough buckets for any positive long.
+    private static final int BUCKETS = EXACT_VALUES + (63 - STEP_BITS) * STEPS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong(0);
+    }
+
+    private static int getBucket(long value) {
+        if (value < EXACT_VALUES) {
+            return (int) Math.max(0, value);
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - STEP_BITS;
+        int step = (int) (value >>> shift) - STEPS;
+        return EXACT_VALUES + (shift - 1) * STEPS + step;
+    }
+
+    private static long getHighestValue(int bucket) {
+        // Returns the highest value counted in the bucket.
+        if (bucket < EXACT_VALUES) {
+            return bucket;
+        }
+        int shift = (bucket - EXACT_VALUES) / STEPS + 1;
+        long step = (bucket - EXACT_VALUES) % STEPS + STEPS;
+        return ((step + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        this.counts.incrementAndGet(getBucket(nanos));
+        this.count.increment();
+        this.sum.add(nanos);
+        this.max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    public double getMean() {
+        long recorded = getCount();
+        return (recorded == 0) ? 0 : (double) this.sum.sum() / recorded;
+    }
+
+    public long getPercentile(double percentile) {
+        // Returns the value the given percentage of recorded values are at or below, or 0 if nothing has been recorded.
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            total += this.counts.get(bucket);
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += this.counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(getHighestValue(bucket), getMax());
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        // Values recorded while resetting may or may not be kept.
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            this.counts.set(bucket, 0);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+
+}
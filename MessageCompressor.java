@@ -0,0 +1,184 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class MessageCompressor {
+    /* Compresses what the server writes to a client who asked for compression during the name handshake.
+     * Each connection keeps a single deflate stream for as long as it is connected, so every message is compressed..-
+     * -.. against the ones sent before it, and the prefixes, names and notices repeated in nearly every message only..-
+     * -.. cost a few bytes each time.
+     * Messages are compressed as the writer takes them from the outbound queue, and the stream is sync flushed at the end..-
+     * -.. of each batch, so the client can decompress everything written so far straight away and no message is held back.
+     * With the dictionary, the stream starts primed with the server's fixed strings (see DICTIONARY_ENTRIES),..-
+     * -.. so even the first messages to a client are small.
+     * Raw deflate is used (no zlib header or checksum), as TCP already checks what it carries.
+     * Only what the server sends is compressed, as that is where nearly all of the traffic is, and the handshake itself,..-
+     * -.. up to and including NAME_ACCEPTED, never is.
+     * Only the connection's writer adds to it, but it may be closed from any thread, hence the synchronized methods.
+     */
+
+    // Sent by the client in place of a name to ask for compression, without or with the dictionary, after asking for..-
+    // -.. binary framing if it does. All are longer than any legal name, so a server which does not support them, or..-
+    // -.. has compression turned off, simply asks for another name.
+    // The dictionary is asked for with the client's line separator, and the server primes the stream with that..-
+    // -.. dictionary whatever its own is, so both sides always use the same bytes.
+    public static final String REQUEST = "/protocol deflate-stream-1";
+    public static final String LF_DICTIONARY_REQUEST = "/protocol deflate-dictionary-1";
+    public static final String CRLF_DICTIONARY_REQUEST = "/protocol deflate-dictionary-1-crlf";
+    // The dictionary request a client on this machine sends.
+    public static final String DICTIONARY_REQUEST =
+            System.lineSeparator().equals("\r\n") ? CRLF_DICTIONARY_REQUEST : LF_DICTIONARY_REQUEST;
+    // Sent by the server if it accepts compression. The name handshake then carries on uncompressed.
+    public static final String ACCEPTED = "Compression enabled.";
+    // Compressed bytes gathered before the writer sends them, even if there are more messages waiting.
+    private static final int MAX_BATCH_LENGTH = 16384;
+    private static final int INITIAL_OUTPUT_LENGTH = 1024;
+
+    /* The strings the server sends most, as they are sent, least common first since deflate codes nearer matches in fewer..-
+     * -.. bits. A "\n" ending an entry is the end of a line, which is replaced by the line separator the dictionary is..-
+     * -.. made for, as MessageFrame ends each line with System.lineSeparator(). Newlines within an entry are part of the..-
+     * -.. message, and are kept. Both sides must use exactly the same bytes, so this is never changed - a different..-
+     * -.. dictionary needs a new request (e.g "/protocol deflate-dictionary-2").
+     */
+    private static final String[] DICTIONARY_ENTRIES = {
+            "Type \"exit\" without the speech marks to exit the program.\n",
+            "Type \"/history <n>\" without the speech marks and <> to see the last n messages in your room!\n",
+            "You are in the lobby. Type \"/join <room>\" without the speech marks and <> to chat in another room, ",
+            "\"/leave\" to return to the lobby and \"/rooms\" to see every room!\n",
+            "Type \"/pm <ID>\" without the speech marks and <> to PM another user!\n",
+            "Type \"/serverpop\" without the speech marks to view the population of the server!\n",
+            "Welcome to the server!\n",
+            "Incorrect usage of /pm. Correct usage is \"/pm <ID> <msg>\".\n",
+            "User not found.\n",
+            "No recent messages in ",
+            "You've been warned. Current warnings: 1 out of 3\nReason: Inappropriate word detected: ",
+            ". Please raise a ticket by typing \"/ticket <msg>\" without the speech marks and the <> if you believe this is an error.\n",
+            " message(s) were skipped as you were not keeping up.\n",
+            "You are sending messages too quickly, so some of them were not sent.\n",
+            "Server population: ",
+            "On linked servers: ",
+            "\033[0;33m[Admin PM]\033[0m \033[0;31m[ADMIN]\033[0m -> ",
+            "\033[0;31m[ADMIN]:\033[0m ",
+            " has connected! Online users: ",
+            " just disconnected.\n",
+            "Last 20 message(s) in lobby:\n",
+            " left lobby.\n",
+            " joined lobby. Users in the room: ",
+            "\033[0;33m[PM]\033[0m ",
+            " -> ",
+            "\033[0;31m[SERVER]:\033[0m ",
+            "] Anonymous",
+            "]: "
+    };
+    private static final byte[] LF_DICTIONARY = createDictionary("\n");
+    private static final byte[] CRLF_DICTIONARY = createDictionary("\r\n");
+
+    private final Deflater deflater;
+    // Holds the compressed bytes of the current batch, from 0 to outputLength.
+    private byte[] output;
+    private int outputLength;
+    // Holds the number of bytes added to the current batch before compression.
+    private int inputLength;
+    // Holds the server's metrics, which are told how much each batch was compressed, or null.
+    private final ServerMetrics metrics;
+    // Set once the connection is closed and the deflater's memory freed.
+    private boolean closed;
+
+    public MessageCompressor(int level, String request, ServerMetrics metrics) {
+        // Primes the stream with the dictionary if the request asked for one.
+        this.deflater = new Deflater(level, true);
+        byte[] dictionary = getDictionary(request);
+        if (dictionary != null) {
+            this.deflater.setDictionary(dictionary);
+        }
+        this.output = new byte[INITIAL_OUTPUT_LENGTH];
+        this.outputLength = 0;
+        this.inputLength = 0;
+        this.metrics = metrics;
+        this.closed = false;
+    }
+
+    private static byte[] createDictionary(String lineSeparator) {
+        StringBuilder dictionary = new StringBuilder();
+        for (String entry : DICTIONARY_ENTRIES) {
+            dictionary.append(entry.endsWith("\n") ? entry.substring(0, entry.length() - 1) + lineSeparator : entry);
+        }
+        return dictionary.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getDictionary(String request) {
+        // Returns the dictionary asked for with the request, or null if it asked for none.
+        if (LF_DICTIONARY_REQUEST.equals(request)) {
+            return LF_DICTIONARY;
+        }
+        return CRLF_DICTIONARY_REQUEST.equals(request) ? CRLF_DICTIONARY : null;
+    }
+
+    public static boolean isRequest(String line) {
+        return line.equals(REQUEST) || getDictionary(line) != null;
+    }
+
+    public static Inflater createInflater(String request) {
+        // Returns the client's side of the stream asked for with the request, primed with the dictionary if it was asked for.
+        Inflater inflater = new Inflater(true);
+        byte[] dictionary = getDictionary(request);
+        if (dictionary != null) {
+            inflater.setDictionary(dictionary);
+        }
+        return inflater;
+    }
+
+    public synchronized void add(byte[] message) {
+        // Compresses the message into the current batch. Most of it usually stays in the deflater until the batch is finished.
+        if (this.closed) {
+            return;
+        }
+        this.deflater.setInput(message);
+        deflate(Deflater.NO_FLUSH);
+        this.inputLength += message.length;
+    }
+
+    public synchronized boolean isBatchFull() {
+        return this.outputLength >= MAX_BATCH_LENGTH;
+    }
+
+    public synchronized byte[] finishBatch() {
+        /* Sync flushes the stream and returns the compressed batch, which the client can decompress in full on its own.
+         * Returns an empty array if nothing was added since the last batch, as a flush would still cost a few bytes.
+         */
+        if (this.inputLength == 0 || this.closed) {
+            return new byte[0];
+        }
+        deflate(Deflater.SYNC_FLUSH);
+        byte[] batch = Arrays.copyOf(this.output, this.outputLength);
+        if (this.metrics != null) {
+            this.metrics.recordCompression(this.inputLength, batch.length);
+        }
+        this.outputLength = 0;
+        this.inputLength = 0;
+        return batch;
+    }
+
+    private void deflate(int flush) {
+        // Deflates until all of the input has been taken, growing the output as needed. A flush is only complete once..-
+        // -.. the deflater leaves some of the output free.
+        int space;
+        int written;
+        do {
+            if (this.output.length - this.outputLength < 64) {
+                this.output = Arrays.copyOf(this.output, this.output.length * 2);
+            }
+            space = this.output.length - this.outputLength;
+            written = this.deflater.deflate(this.output, this.outputLength, space, flush);
+            this.outputLength += written;
+        } while (written == space || !this.deflater.needsInput());
+    }
+
+    public synchronized void close() {
+        // Frees the deflater's native memory. Called once the connection is closed, after which nothing more is compressed.
+        this.closed = true;
+        this.deflater.end();
+    }
+
+}
@@ -0,0 +1,166 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class MessageFrame {
+    /* A single message, as sent between the clients and the server.
+     * By default, messages are sent as lines of text. A client may instead ask for binary framing during the name handshake,..-
+     * -.. in which case every message after the handshake is sent as a frame:
+     *     1 byte  - the type of the message (see Type)
+     *     4 bytes - the length of the payload in bytes (big endian)
+     *     n bytes - the payload, in UTF-8
+     * Frames are never split on line breaks, so a single message may span several lines, and the type tells the server..-
+     * -.. how to route a message without parsing it.
+     * Instances are immutable. Each encoding of a message is only made once, however many connections it is written to.
+     */
+
+    // The kinds of message. The code of each type is the byte sent at the start of its frames.
+    public enum Type {
+        // A chat message from a client to everyone.
+        CHAT(1),
+        // A private message. From a client, the payload is "<ID> <msg>". To a client, it is the message to be shown.
+        PRIVATE_MESSAGE(2),
+        // A command from a client, such as "/serverpop".
+        COMMAND(3),
+        // A message from the server or an admin.
+        SYSTEM(4);
+
+        private final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return this.code;
+        }
+
+        public static Type fromCode(int code) throws ProtocolException {
+            for (Type type : values()) {
+                if (type.getCode() == code) {
+                    return type;
+                }
+            }
+            throw new ProtocolException("Unknown frame type: " + code);
+        }
+    }
+
+    // Sent by the client in reply to the name prompt to ask for binary framing.
+    // It is longer than any legal name, so a server which does not support framing simply asks for another name.
+    public static final String BINARY_REQUEST = "/protocol binary-frames-1";
+    // Sent by the server if it accepts binary framing. The name handshake then carries on as text.
+    public static final String BINARY_ACCEPTED = "Binary framing enabled.";
+    // Frames with a longer payload are treated as abuse.
+    public static final int MAX_PAYLOAD_LENGTH = 65536;
+    // Number of bytes before the payload - the type, then the length.
+    public static final int HEADER_LENGTH = 5;
+
+    private final Type type;
+    private final String payload;
+    // Hold the message encoded as a line and as a frame, once first needed.
+    private volatile byte[] encodedLine;
+    private volatile byte[] encodedFrame;
+
+    public MessageFrame(Type type, String payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getPayload() {
+        return this.payload;
+    }
+
+    public static MessageFrame fromTypedLine(String line) {
+        // Makes the frame for a line typed by a user, e.g "/pm 3 hi" becomes a private message to user 3 with the payload "3 hi".
+        if (line.regionMatches(true, 0, "/pm ", 0, 4)) {
+            return new MessageFrame(Type.PRIVATE_MESSAGE, line.substring(4).trim());
+        } else if (line.startsWith("/")) {
+            return new MessageFrame(Type.COMMAND, line);
+        }
+        return new MessageFrame(Type.CHAT, line);
+    }
+
+    public byte[] encode(boolean binaryFraming) {
+        // Returns the message as a frame, or as a line of text exactly as a PrintWriter's println() would write it.
+        // The returned array is shared, so it must never be modified.
+        if (binaryFraming) {
+            byte[] frame = this.encodedFrame;
+            if (frame == null) {
+                byte[] payloadBytes = getPayload().getBytes(StandardCharsets.UTF_8);
+                frame = ByteBuffer.allocate(HEADER_LENGTH + payloadBytes.length)
+                        .put((byte) getType().getCode()).putInt(payloadBytes.length).put(payloadBytes).array();
+                this.encodedFrame = frame;
+            }
+            return frame;
+        }
+        byte[] line = this.encodedLine;
+        if (line == null) {
+            line = (getPayload() + System.lineSeparator()).getBytes(Charset.defaultCharset());
+            this.encodedLine = line;
+        }
+        return line;
+    }
+
+    public static MessageFrame read(DataInputStream inputStream) throws IOException {
+        // Blocks until a whole frame has been read. Returns null if the stream ends between frames.
+        int code = inputStream.read();
+        if (code < 0) {
+            return null;
+        }
+        Type type = Type.fromCode(code);
+        byte[] payloadBytes = new byte[checkLength(inputStream.readInt())];
+        inputStream.readFully(payloadBytes);
+        return new MessageFrame(type, new String(payloadBytes, StandardCharsets.UTF_8));
+    }
+
+    public static MessageFrame decode(ByteBuffer buffer) throws ProtocolException {
+        // Takes a frame from the buffer if the whole frame is there. Otherwise, returns null and leaves the buffer untouched.
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        Type type = Type.fromCode(buffer.get(start) & 0xFF);
+        int length = checkLength(buffer.getInt(start + 1));
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+        byte[] payloadBytes = new byte[length];
+        buffer.position(start + HEADER_LENGTH);
+        buffer.get(payloadBytes);
+        return new MessageFrame(type, new String(payloadBytes, StandardCharsets.UTF_8));
+    }
+
+    private static int checkLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Illegal frame length: " + length);
+        }
+        return length;
+    }
+
+    public static String readHandshakeLine(InputStream inputStream) throws IOException {
+        /* Reads a single line of the handshake, one byte at a time, so that nothing sent after it is read ahead.
+         * The stream should be buffered, as it is read one byte at a time. Throws an EOFException if the stream ends.
+         */
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while ((next = inputStream.read()) != '\n') {
+            if (next < 0) {
+                throw new EOFException("Connection closed during the handshake.");
+            }
+            line.write(next);
+        }
+        String text = line.toString(Charset.defaultCharset());
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+}
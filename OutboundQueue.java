@@ -0,0 +1,151 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OutboundQueue {
+    // A bounded queue of the messages waiting to be written to one connection.
+    // Senders only ever add to it, so how fast the connection's client reads has no effect on them.
+
+    // What happens to a message sent to a connection whose queue is full.
+    public enum OverflowPolicy {
+        // The oldest queued message is dropped to make room.
+        DROP_OLDEST,
+        // The connection is dropped, as its client is not keeping up.
+        DISCONNECT,
+        // The message is skipped, and the client is told how many messages they missed once there is room again.
+        SUMMARISE
+    }
+
+    // Holds the messages, which are shared between connections.
+    private final Queue<MessageFrame> messages;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    // Tracked separately since the size of a ConcurrentLinkedQueue is not known without walking it.
+    private final AtomicInteger depth;
+    // Total length of the queued messages in characters, used to decide when output held back should be written anyway.
+    private final AtomicLong queuedCharacters;
+    // Number of messages dropped or skipped since the connection was made.
+    private final AtomicLong droppedMessages;
+    // Number of messages skipped which the client has not been told about yet.
+    private final AtomicInteger skippedMessages;
+    // Set while a writer is draining the queue, so that only one writer drains it at any given time.
+    private final AtomicBoolean draining;
+    // Set once the connection is closing. Messages offered afterwards are ignored.
+    private final AtomicBoolean closed;
+    // Set once the queue has overflowed under the DISCONNECT policy, so that the connection is only dropped once.
+    private final AtomicBoolean overflowed;
+
+    public OutboundQueue(int capacity, OverflowPolicy overflowPolicy) {
+        this.messages = new ConcurrentLinkedQueue<>();
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.depth = new AtomicInteger(0);
+        this.queuedCharacters = new AtomicLong(0);
+        this.droppedMessages = new AtomicLong(0);
+        this.skippedMessages = new AtomicInteger(0);
+        this.draining = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+        this.overflowed = new AtomicBoolean(false);
+    }
+
+    public int getDepth() {
+        return this.depth.get();
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public long getQueuedCharacters() {
+        return this.queuedCharacters.get();
+    }
+
+    public long getDroppedMessages() {
+        return this.droppedMessages.get();
+    }
+
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+
+    public boolean offer(MessageFrame message) {
+        /* Adds the message to the queue, applying the overflow policy if the queue is full.
+         * Returns false only the first time the queue is full under the DISCONNECT policy, in which case the caller should drop..-
+         * -.. the connection.
+         */
+        if (isClosed()) {
+            return true;
+        }
+        if (this.depth.get() >= this.capacity) {
+            this.droppedMessages.incrementAndGet();
+            switch (this.overflowPolicy) {
+                case DROP_OLDEST:
+                    removed(this.messages.poll());
+                    break;
+                case DISCONNECT:
+                    return !this.overflowed.compareAndSet(false, true);
+                case SUMMARISE:
+                    this.skippedMessages.incrementAndGet();
+                    return true;
+            }
+        }
+        addSkippedNotice();
+        added(message);
+        return true;
+    }
+
+    private void added(MessageFrame message) {
+        this.messages.add(message);
+        this.depth.incrementAndGet();
+        this.queuedCharacters.addAndGet(message.getPayload().length());
+    }
+
+    private MessageFrame removed(MessageFrame message) {
+        // Updates the counts for a message taken from the queue, if there was one, and returns it.
+        if (message != null) {
+            this.depth.decrementAndGet();
+            this.queuedCharacters.addAndGet(-message.getPayload().length());
+        }
+        return message;
+    }
+
+    private void addSkippedNotice() {
+        // Tells the client how many messages they missed, right where they missed them.
+        int skipped = this.skippedMessages.getAndSet(0);
+        if (skipped > 0) {
+            added(new MessageFrame(MessageFrame.Type.SYSTEM,
+                    ServerOutputHandler.formatServerMessage(skipped + " message(s) were skipped as you were not keeping up.")));
+        }
+    }
+
+    public MessageFrame poll() {
+        // Returns the next message to be written, or null if there is none.
+        MessageFrame message = removed(this.messages.poll());
+        if (message == null && this.skippedMessages.get() > 0) {
+            addSkippedNotice();
+            message = removed(this.messages.poll());
+        }
+        return message;
+    }
+
+    public boolean startDraining() {
+        // Returns true if the caller should start a writer, i.e. no writer is draining the queue already.
+        return this.draining.compareAndSet(false, true);
+    }
+
+    public boolean finishDraining() {
+        /* Called by the writer once it has found the queue empty.
+         * Returns true if a message was added in the meantime and the writer should carry on draining.
+         */
+        this.draining.set(false);
+        return (this.depth.get() > 0 || this.skippedMessages.get() > 0) && this.draining.compareAndSet(false, true);
+    }
+
+    public boolean close() {
+        // Returns true only for the first call, so that a connection is only closed once.
+        return this.closed.compareAndSet(false, true);
+    }
+
+}
@@ -0,0 +1,87 @@
+public class RateLimiter {
+    /* Limits how quickly the messages of a single connection are handled, which caps how much work one client can cause..-
+     * -.. on the broadcast path: every chat message is sent to the whole room, and /serverpop sends a line per user online.
+     * Each kind of message has a token bucket of its own, so a client chatting quickly can still send a PM.
+     * What happens to a message over the limit is up to the server's policy (see ClientInputHandler.checkRateLimit()).
+     */
+
+    // What happens to a message sent while its bucket is empty.
+    public enum Policy {
+        // Nothing is limited.
+        OFF,
+        // The message is dropped, and the client is told (at most once a second) (default).
+        DROP,
+        // The message is handled once its token has been refilled, and nothing more is read from the client meanwhile.
+        DELAY,
+        // The message is dropped, and the client is warned for it, so a client who keeps flooding is disconnected.
+        WARN
+    }
+
+    // The kinds of message limited separately.
+    public enum Category {
+        CHAT,
+        PRIVATE_MESSAGE,
+        // /serverpop, which sends a line per user online.
+        POPULATION,
+        // Every other command, some of which are also sent to a whole room (e.g /join).
+        COMMAND
+    }
+
+    // A rate and a burst, given as "<messages per second>:<burst>" (e.g "5:10"), or just the rate for a burst of 1.
+    public static final class Limit {
+
+        private final double perSecond;
+        private final int burst;
+
+        public Limit(double perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        public static Limit parse(String limit) {
+            // Throws a NumberFormatException (an IllegalArgumentException) if the rate is not above 0 or the burst is below 1.
+            int separator = limit.indexOf(':');
+            double perSecond = Double.parseDouble((separator < 0) ? limit : limit.substring(0, separator));
+            int burst = (separator < 0) ? 1 : Integer.parseInt(limit.substring(separator + 1));
+            if (!(perSecond > 0) || Double.isInfinite(perSecond) || burst < 1) {
+                throw new NumberFormatException("Illegal limit: " + limit);
+            }
+            return new Limit(perSecond, burst);
+        }
+
+        public double getPerSecond() {
+            return this.perSecond;
+        }
+
+        public int getBurst() {
+            return this.burst;
+        }
+    }
+
+    private final TokenBucket[] buckets;
+    // Limits how often the client is told that their messages were dropped, so that the notices are no flood of their own.
+    private final TokenBucket notices;
+
+    public RateLimiter(ServerSettings settings) {
+        Category[] categories = Category.values();
+        this.buckets = new TokenBucket[categories.length];
+        for (Category category : categories) {
+            Limit limit = settings.getRateLimit(category);
+            this.buckets[category.ordinal()] = new TokenBucket(limit.getPerSecond(), limit.getBurst());
+        }
+        this.notices = new TokenBucket(1, 1);
+    }
+
+    public boolean tryTake(Category category, long now) {
+        return this.buckets[category.ordinal()].tryTake(now);
+    }
+
+    public long reserve(Category category, long now) {
+        return this.buckets[category.ordinal()].reserve(now);
+    }
+
+    public boolean shouldNotify(long now) {
+        return this.notices.tryTake(now);
+    }
+
+}
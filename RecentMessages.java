@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class RecentMessages {
+    /* Holds the last messages sent in a room, so they can be shown to users joining it.
+     * The slots are made once, and each message is stored as the MessageFrame already sent to the room,..-
+     * -.. so adding a message allocates nothing. Neither adding nor reading ever locks, so a user joining never..-
+     * -.. holds up anyone sending a message.
+     * Each slot also holds the position of its message. A writer claims the slot with a compare-and-set, marking it as..-
+     * -.. being written for its own position, and a reader only takes a message if its position is the same before and..-
+     * -.. after reading it. A writer a whole lap behind finds a newer position in the slot and drops its message,..-
+     * -.. while one a lap ahead waits for the slot to be written before claiming it, so a slot never holds..-
+     * -.. an older message under a newer position.
+     */
+
+    private final int capacity;
+    private final AtomicReferenceArray<MessageFrame> messages;
+    // Holds the position of the message in each slot, -1 if it has never been written, or -(position + 2) while..-
+    // -.. the message at that position is being written to it.
+    private final AtomicLongArray positions;
+    private final AtomicLong nextPosition;
+
+    public RecentMessages(int capacity) {
+        this.capacity = capacity;
+        this.messages = new AtomicReferenceArray<>(capacity);
+        this.positions = new AtomicLongArray(capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            this.positions.set(slot, -1);
+        }
+        this.nextPosition = new AtomicLong(0);
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public void add(MessageFrame message) {
+        // Replaces the oldest message.
+        if (this.capacity == 0) {
+            return;
+        }
+        long position = this.nextPosition.getAndIncrement();
+        int slot = (int) (position % this.capacity);
+        long writing = -(position + 2);
+        while (true) {
+            long current = this.positions.get(slot);
+            if (current < -1 && -current - 2 >= position) {
+                // A newer message is already being written to the slot, so this one is dropped straight away.
+                return;
+            }
+            if (current < -1) {
+                // An older message is being written to the slot. It only takes a couple of stores, so it is waited for.
+                Thread.onSpinWait();
+                continue;
+            }
+            if (current >= position) {
+                // A newer message has already replaced this one, which is no longer among the latest.
+                return;
+            }
+            if (this.positions.compareAndSet(slot, current, writing)) {
+                break;
+            }
+        }
+        this.messages.set(slot, message);
+        this.positions.set(slot, position);
+    }
+
+    public List<MessageFrame> getLatest(int count) {
+        /* Returns up to the given number of the latest messages, oldest first.
+         * A message still being added by another thread is left out.
+         */
+        long end = this.nextPosition.get();
+        long start = Math.max(0, end - Math.min(count, this.capacity));
+        List<MessageFrame> latest = new ArrayList<>((int) (end - start));
+        for (long position = start; position < end; position++) {
+            int slot = (int) (position % this.capacity);
+            if (this.positions.get(slot) != position) {
+                continue;
+            }
+            MessageFrame message = this.messages.get(slot);
+            if (this.positions.get(slot) == position) {
+                latest.add(message);
+            }
+        }
+        return latest;
+    }
+
+}
@@ -7,11 +7,12 @@ public abstract class ResourceCloser {
     public static void closeCloseables(List<Closeable> resources) {
         // Ignores any IO exception or NullPointer exception that might occur, ..-
         // -.. as for example, the latter could occur if the PrintWriter object has not been initialised yet.
-        try {
-            for (Closeable resource : resources) {
+        // A resource failing to close does not stop the remaining resources from being closed.
+        for (Closeable resource : resources) {
+            try {
                 resource.close();
+            } catch (IOException | NullPointerException ignored) {
             }
-        } catch (IOException | NullPointerException ignored) {
         }
     }
 }
@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class RoomRegistry {
+    /* Holds every room on the server, by their lowercase name.
+     * Every connection is in exactly one room, starting with the lobby. Rooms are made when the first user joins them..-
+     * -.. and removed when the last user leaves, apart from the lobby, which always exists.
+     * Adding to or removing from a room is atomic with making or removing the room itself, so a user can never join..-
+     * -.. a room which is being removed.
+     */
+
+    public static final String LOBBY = "lobby";
+
+    private final ConcurrentHashMap<String, ChatRoom> roomsByName;
+    private final ChatRoom lobby;
+    // Number of recent messages kept for every room
+    private final int recentMessagesCapacity;
+
+    public RoomRegistry(int recentMessagesCapacity) {
+        this.roomsByName = new ConcurrentHashMap<>();
+        this.recentMessagesCapacity = recentMessagesCapacity;
+        this.lobby = new ChatRoom(LOBBY, recentMessagesCapacity);
+        this.roomsByName.put(LOBBY, this.lobby);
+    }
+
+    public ChatRoom getLobby() {
+        return this.lobby;
+    }
+
+    public ChatRoom getRoom(String name) {
+        // Returns the room with the given name, whatever its case, or null if there is none.
+        return this.roomsByName.get(name.toLowerCase());
+    }
+
+    public static boolean isLegalName(String name) {
+        // Room names are 2 to 20 letters, digits, '-' or '_', so they can be typed after /join as a single word.
+        if (name.length() < 2 || name.length() > 20) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char character = name.charAt(i);
+            if (!Character.isLetterOrDigit(character) && character != '-' && character != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public ChatRoom join(Connection connection, String name) {
+        /* Moves the connection from its current room to the named room, making the room if it does not exist yet.
+         * Returns the room joined, or null if the connection has been disconnected, in which case it is not added to any room.
+         * The connection's lock is held throughout, so that a connection being disconnected meanwhile is never left in a room.
+         */
+        connection.getLock().lock();
+        try {
+            if (connection.isDisconnected()) {
+                return null;
+            }
+            leave(connection);
+            ChatRoom room = this.roomsByName.compute(name.toLowerCase(), (key, existing) -> {
+                ChatRoom joined = (existing == null) ? new ChatRoom(name, this.recentMessagesCapacity) : existing;
+                joined.add(connection);
+                return joined;
+            });
+            connection.setRoom(room);
+            return room;
+        } finally {
+            connection.getLock().unlock();
+        }
+    }
+
+    public ChatRoom leave(Connection connection) {
+        // Removes the connection from its room, removing the room as well if it is now empty. Returns the room left, if any.
+        connection.getLock().lock();
+        try {
+            ChatRoom room = connection.getRoom();
+            if (room == null) {
+                return null;
+            }
+            this.roomsByName.computeIfPresent(room.getName().toLowerCase(), (key, existing) -> {
+                existing.remove(connection);
+                return (existing.isEmpty() && existing != this.lobby) ? null : existing;
+            });
+            connection.setRoom(null);
+            return room;
+        } finally {
+            connection.getLock().unlock();
+        }
+    }
+
+    public List<ChatRoom> getRooms() {
+        // Returns the rooms, largest first.
+        List<ChatRoom> rooms = new ArrayList<>(this.roomsByName.values());
+        rooms.sort(Comparator.comparingInt(ChatRoom::size).reversed().thenComparing(ChatRoom::getName));
+        return rooms;
+    }
+
+}
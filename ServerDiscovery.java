@@ -0,0 +1,102 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ServerDiscovery {
+    /* Finds which of the servers a client may connect to are running, and how many users each of them has.
+     * Every port is probed at once, each on its own thread with a short timeout, so a server which is down or filtered..-
+     * -.. only costs PROBE_TIMEOUT rather than holding up the ports after it.
+     * A probe asks for the population in place of a name, as binary framing and compression are asked for, and the..-
+     * -.. server answers with the number of users online and closes the connection without admitting it.
+     * An older server rejects the request as an illegal name instead, so it is still found, but is only chosen..-
+     * -.. once every server which told its population has been tried.
+     * Servers with the same population are put in a random order, so clients starting together spread over all of them.
+     * A full server answers the probe as it would any client, so it is left out.
+     */
+
+    // Sent by a client in place of a name to ask for the population. Longer than any legal name, as for the other requests.
+    public static final String REQUEST = "/protocol population-1";
+    // Starts the server's answer, which is followed by the number of users online.
+    public static final String REPLY = "Population: ";
+    // Time, in milliseconds, a server has to accept a probe and then to answer it.
+    private static final int PROBE_TIMEOUT = 500;
+    // Population given to a server which answered, but not with its population.
+    private static final int UNKNOWN_POPULATION = Integer.MAX_VALUE;
+
+    public static String describePopulation(int population) {
+        // The server's answer to REQUEST.
+        return REPLY + population;
+    }
+
+    public static List<Integer> rankPorts(InetAddress address, List<Integer> ports) {
+        // Returns the ports of the servers which answered, least loaded first. Returns an empty list if none did.
+        ExecutorService executor = Executors.newFixedThreadPool(ports.size(), runnable -> {
+            Thread thread = new Thread(runnable, "c_serverProbe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Callable<Integer>> probes = new ArrayList<>();
+        for (int port : ports) {
+            probes.add(() -> probe(address, port));
+        }
+        List<Map.Entry<Integer, Integer>> populations = new ArrayList<>();
+        try {
+            // Every probe finishes within two timeouts, so this only waits longer if the machine is struggling.
+            List<Future<Integer>> results = executor.invokeAll(probes, 4L * PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < results.size(); i++) {
+                Integer population = results.get(i).isCancelled() ? null : results.get(i).get();
+                if (population != null) {
+                    populations.add(Map.entry(ports.get(i), population));
+                }
+            }
+        } catch (InterruptedException | ExecutionException ignored) {
+            // Only the servers found so far are ranked.
+        } finally {
+            executor.shutdownNow();
+        }
+        Collections.shuffle(populations);
+        populations.sort(Comparator.comparingInt(Map.Entry::getValue));
+        List<Integer> ranked = new ArrayList<>();
+        populations.forEach(population -> ranked.add(population.getKey()));
+        return ranked;
+    }
+
+    private static Integer probe(InetAddress address, int port) {
+        // Returns the server's population, UNKNOWN_POPULATION if it did not tell it, or null if the server did not answer or is full.
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), PROBE_TIMEOUT);
+            socket.setSoTimeout(PROBE_TIMEOUT);
+            InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            OutputStream outputStream = socket.getOutputStream();
+            if (MessageFrame.readHandshakeLine(inputStream).startsWith(ChatServer.SERVER_FULL)) {
+                return null;
+            }
+            outputStream.write((REQUEST + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+            outputStream.flush();
+            String reply = MessageFrame.readHandshakeLine(inputStream);
+            if (!reply.startsWith(REPLY)) {
+                return UNKNOWN_POPULATION;
+            }
+            return Integer.parseInt(reply.substring(REPLY.length()));
+        } catch (IOException | IllegalArgumentException exception) {
+            return null;
+        }
+    }
+
+}
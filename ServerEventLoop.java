@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ServerEventLoop implements Runnable {
+    // This runs on a separate thread. Used in NIO mode only.
+
+    // Size of the buffer every read on this event loop goes through.
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final ChatServer chatServer;
+    private final Selector selector;
+    // The server's channel if this event loop accepts new connections, otherwise null.
+    private final ServerSocketChannel acceptChannel;
+    // Channels handed to this event loop which have not been registered with the selector yet.
+    private final Queue<SocketChannel> pendingChannels;
+    // Sessions which have queued output since the event loop last looked at them.
+    private final Queue<ChannelSession> pendingWrites;
+    // A single read buffer is shared by every channel on this event loop, so idle connections cost no buffer at all.
+    private final ByteBuffer readBuffer;
+    // Sessions which stopped reading for a message held back by the rate limit, the soonest to resume first.
+    // Only used by the event loop's own thread.
+    private final PriorityQueue<PausedSession> pausedSessions;
+
+    // A session to be resumed at the given System.nanoTime().
+    private static class PausedSession {
+
+        private final long resumeAt;
+        private final ChannelSession session;
+
+        private PausedSession(long resumeAt, ChannelSession session) {
+            this.resumeAt = resumeAt;
+            this.session = session;
+        }
+    }
+
+    public ServerEventLoop(ChatServer chatServer, ServerSocketChannel acceptChannel) throws IOException {
+        this.chatServer = chatServer;
+        this.selector = Selector.open();
+        this.acceptChannel = acceptChannel;
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.pausedSessions = new PriorityQueue<>(Comparator.comparingLong(pausedSession -> pausedSession.resumeAt));
+        if (acceptChannel != null) {
+            acceptChannel.configureBlocking(false);
+            acceptChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    private ChatServer getChatServer() {
+        return this.chatServer;
+    }
+
+    private Selector getSelector() {
+        return this.selector;
+    }
+
+    protected void register(SocketChannel channel) {
+        // May be called from any thread. The channel is registered by the event loop's own thread on its next pass.
+        this.pendingChannels.add(channel);
+        getSelector().wakeup();
+    }
+
+    protected void requestWrite(ChannelSession session) {
+        // May be called from any thread. The session's queued output is written by the event loop's own thread on its next pass.
+        this.pendingWrites.add(session);
+        getSelector().wakeup();
+    }
+
+    protected void resumeLater(ChannelSession session, long delayNanos) {
+        // Only called from the event loop's own thread. The session is resumed on the first pass after the delay has passed.
+        this.pausedSessions.add(new PausedSession(System.nanoTime() + delayNanos, session));
+    }
+
+    protected void close() {
+        ResourceCloser.closeCloseables(List.of(getSelector()));
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = this.pendingChannels.poll()) != null) {
+            try {
+                SelectionKey key = channel.register(getSelector(), SelectionKey.OP_READ);
+                ChannelSession session = new ChannelSession(channel, key, this, getChatServer());
+                key.attach(session);
+                session.start();
+            } catch (IOException exception) {
+                ResourceCloser.closeCloseables(List.of(channel));
+            }
+        }
+    }
+
+    private void processPendingWrites() {
+        ChannelSession session;
+        while ((session = this.pendingWrites.poll()) != null) {
+            session.flushOutput();
+        }
+    }
+
+    private void resumePausedSessions() {
+        long now = System.nanoTime();
+        while (!this.pausedSessions.isEmpty() && this.pausedSessions.peek().resumeAt - now <= 0) {
+            this.pausedSessions.poll().session.resumeReading();
+        }
+    }
+
+    private void select() throws IOException {
+        // Waits for the selector, but no longer than until the next paused session is due to be resumed.
+        PausedSession next = this.pausedSessions.peek();
+        if (next == null) {
+            getSelector().select();
+            return;
+        }
+        long waitMillis = (next.resumeAt - System.nanoTime() + 999_999) / 1_000_000;
+        if (waitMillis > 0) {
+            getSelector().select(waitMillis);
+        } else {
+            getSelector().selectNow();
+        }
+    }
+
+    private void accept() {
+        /* Accepts every connection that is waiting and hands each of them to an event loop.
+         * The exceptions thrown are ignored since they only stop the client from connecting, and that is handled..-
+         * -.. on the client side.
+         */
+        try {
+            SocketChannel channel;
+            while ((channel = this.acceptChannel.accept()) != null) {
+                // A banned client is closed straight away, before it is registered with any event loop.
+                if (getChatServer().getBanList().isBanned(channel.socket().getInetAddress())) {
+                    ResourceCloser.closeCloseables(List.of(channel));
+                    continue;
+                }
+                channel.configureBlocking(false);
+                getChatServer().getNextEventLoop().register(channel);
+            }
+        } catch (IOException | SecurityException ignored) {
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> selectedKeys = getSelector().selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+            SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+            try {
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                ChannelSession session = (ChannelSession) key.attachment();
+                if (key.isReadable()) {
+                    session.read(this.readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    session.flushOutput();
+                }
+            } catch (CancelledKeyException ignored) {
+                // The connection was closed by another thread while this key was selected.
+            }
+        }
+    }
+
+    public void run() {
+        // Runs until the selector is closed when the server shuts down.
+        try {
+            while (getSelector().isOpen()) {
+                select();
+                registerPendingChannels();
+                processPendingWrites();
+                processSelectedKeys();
+                resumePausedSessions();
+            }
+        } catch (IOException | ClosedSelectorException exception) {
+            ResourceCloser.closeCloseables(List.of(getSelector()));
+        }
+    }
+
+}
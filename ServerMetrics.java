@@ -0,0 +1,213 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerMetrics {
+    /* Counts what the server does, for the admin's /stats command and the metrics endpoint (-metrics <port>).
+     * Everything is counted on the hot paths, so only LongAdders and LatencyHistograms are used. Neither ever locks,..-
+     * -.. and threads counting at the same time mostly count in separate cells rather than contending for one.
+     * Rates per second are worked out once a second by sample(), from the change in the totals since the last sample.
+     */
+
+    private final LongAdder messagesIn;
+    private final LongAdder messagesOut;
+    private final LongAdder broadcasts;
+    // Holds the number of recipients of every broadcast added together, so the mean fan-out can be worked out.
+    private final LongAdder broadcastRecipients;
+    private final AtomicLong largestFanOut;
+    private final LongAdder outboundBytes;
+    // Hold the bytes compressed for clients who asked for compression, before and after being compressed.
+    private final LongAdder compressionInputBytes;
+    private final LongAdder compressionOutputBytes;
+    // Holds the number of messages dropped or delayed for going over their rate limit.
+    private final LongAdder rateLimited;
+    // Holds the number of clients turned away, or redirected to another server, as the server was full.
+    private final LongAdder turnedAway;
+    // Holds how long it takes to queue a broadcast for all of its recipients.
+    private final LatencyHistogram broadcastLatency;
+    private final LatencyHistogram badWordCheckLatency;
+    // Holds how long clients take from being accepted to being admitted, including the time taken to choose a name.
+    private final LatencyHistogram handshakeLatency;
+    private final ThreadMXBean threadBean;
+    private final long startedAt;
+    // Hold the totals at the last sample, and the rates worked out from them. Only written by the thread calling sample().
+    private long sampledAt;
+    private long sampledMessagesIn;
+    private long sampledMessagesOut;
+    private long sampledBroadcasts;
+    private long sampledRecipients;
+    private long sampledOutboundBytes;
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private volatile double outboundBytesPerSecond;
+    private volatile double recentFanOut;
+
+    public ServerMetrics() {
+        this.messagesIn = new LongAdder();
+        this.messagesOut = new LongAdder();
+        this.broadcasts = new LongAdder();
+        this.broadcastRecipients = new LongAdder();
+        this.largestFanOut = new AtomicLong(0);
+        this.outboundBytes = new LongAdder();
+        this.compressionInputBytes = new LongAdder();
+        this.compressionOutputBytes = new LongAdder();
+        this.rateLimited = new LongAdder();
+        this.turnedAway = new LongAdder();
+        this.broadcastLatency = new LatencyHistogram();
+        this.badWordCheckLatency = new LatencyHistogram();
+        this.handshakeLatency = new LatencyHistogram();
+        this.threadBean = ManagementFactory.getThreadMXBean();
+        this.startedAt = System.nanoTime();
+        this.sampledAt = this.startedAt;
+    }
+
+    public void recordMessageIn() {
+        this.messagesIn.increment();
+    }
+
+    public void recordMessagesOut(int messages) {
+        this.messagesOut.add(messages);
+    }
+
+    public void recordBroadcast(int recipients, long nanos) {
+        // A message queued for many recipients at once. The largest fan-out is only updated when it has grown.
+        this.messagesOut.add(recipients);
+        this.broadcasts.increment();
+        this.broadcastRecipients.add(recipients);
+        if (recipients > this.largestFanOut.get()) {
+            this.largestFanOut.accumulateAndGet(recipients, Math::max);
+        }
+        this.broadcastLatency.record(nanos);
+    }
+
+    public void recordBadWordCheck(long nanos) {
+        this.badWordCheckLatency.record(nanos);
+    }
+
+    public void recordHandshake(long nanos) {
+        this.handshakeLatency.record(nanos);
+    }
+
+    public void recordOutboundBytes(long bytes) {
+        this.outboundBytes.add(bytes);
+    }
+
+    public void recordCompression(long inputBytes, long outputBytes) {
+        this.compressionInputBytes.add(inputBytes);
+        this.compressionOutputBytes.add(outputBytes);
+    }
+
+    public void recordRateLimited() {
+        this.rateLimited.increment();
+    }
+
+    public void recordTurnedAway() {
+        this.turnedAway.increment();
+    }
+
+    public void sample() {
+        // Works out the rates since the last sample. Called once a second by a single thread.
+        long now = System.nanoTime();
+        double seconds = (now - this.sampledAt) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        long messagesIn = this.messagesIn.sum();
+        long messagesOut = this.messagesOut.sum();
+        long broadcasts = this.broadcasts.sum();
+        long recipients = this.broadcastRecipients.sum();
+        long outboundBytes = this.outboundBytes.sum();
+        this.messagesInPerSecond = (messagesIn - this.sampledMessagesIn) / seconds;
+        this.messagesOutPerSecond = (messagesOut - this.sampledMessagesOut) / seconds;
+        this.outboundBytesPerSecond = (outboundBytes - this.sampledOutboundBytes) / seconds;
+        this.recentFanOut = (broadcasts == this.sampledBroadcasts) ? 0
+                : (double) (recipients - this.sampledRecipients) / (broadcasts - this.sampledBroadcasts);
+        this.sampledAt = now;
+        this.sampledMessagesIn = messagesIn;
+        this.sampledMessagesOut = messagesOut;
+        this.sampledBroadcasts = broadcasts;
+        this.sampledRecipients = recipients;
+        this.sampledOutboundBytes = outboundBytes;
+    }
+
+    public List<String> getSummary(int activeConnections) {
+        // Returns the metrics as lines for the admin, with durations in milliseconds.
+        List<String> summary = new ArrayList<>();
+        long broadcasts = this.broadcasts.sum();
+        summary.add(String.format(Locale.ROOT, "Uptime: %d s. Active connections: %d. Threads: %d (peak %d).",
+                (System.nanoTime() - this.startedAt) / 1_000_000_000L, activeConnections, this.threadBean.getThreadCount(),
+                this.threadBean.getPeakThreadCount()));
+        summary.add(String.format(Locale.ROOT, "Messages in: %.1f/s (%d in total). Messages out: %.1f/s (%d in total).",
+                this.messagesInPerSecond, this.messagesIn.sum(), this.messagesOutPerSecond, this.messagesOut.sum()));
+        summary.add(String.format(Locale.ROOT, "Outbound: %.1f KB/s (%d bytes in total). Rate limited: %d message(s). " +
+                "Turned away while full: %d client(s).", this.outboundBytesPerSecond / 1024, this.outboundBytes.sum(),
+                this.rateLimited.sum(), this.turnedAway.sum()));
+        long compressionInput = this.compressionInputBytes.sum();
+        long compressionOutput = this.compressionOutputBytes.sum();
+        summary.add(String.format(Locale.ROOT, "Compression: %d bytes compressed to %d (%.1f%% saved).", compressionInput,
+                compressionOutput, (compressionInput == 0) ? 0 : 100.0 * (compressionInput - compressionOutput) / compressionInput));
+        summary.add(String.format(Locale.ROOT, "Fan-out: %.1f recipients per broadcast in the last second, %.1f overall, %d at most.",
+                this.recentFanOut, (broadcasts == 0) ? 0 : (double) this.broadcastRecipients.sum() / broadcasts, this.largestFanOut.get()));
+        summary.add(describeLatency("Broadcast", this.broadcastLatency));
+        summary.add(describeLatency("Bad word check", this.badWordCheckLatency));
+        summary.add(describeLatency("Handshake", this.handshakeLatency));
+        return summary;
+    }
+
+    private static String describeLatency(String name, LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "%s: %d recorded, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms.", name,
+                histogram.getCount(), histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    public String toPrometheus(int activeConnections) {
+        /* Returns the metrics in Prometheus' text format, with durations in seconds.
+         * Totals are given as counters, from which the monitoring works out its own rates.
+         */
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, "chat_messages_in_total", "counter", "Messages received from clients.", this.messagesIn.sum());
+        appendMetric(text, "chat_messages_out_total", "counter", "Messages queued for clients.", this.messagesOut.sum());
+        appendMetric(text, "chat_broadcasts_total", "counter", "Messages queued for many clients at once.", this.broadcasts.sum());
+        appendMetric(text, "chat_broadcast_recipients_total", "counter", "Recipients of every broadcast added together.",
+                this.broadcastRecipients.sum());
+        appendMetric(text, "chat_broadcast_recipients_max", "gauge", "Most recipients of a single broadcast.", this.largestFanOut.get());
+        appendMetric(text, "chat_outbound_bytes_total", "counter", "Bytes written to clients.", this.outboundBytes.sum());
+        appendMetric(text, "chat_compression_input_bytes_total", "counter", "Bytes compressed for clients, before compression.",
+                this.compressionInputBytes.sum());
+        appendMetric(text, "chat_compression_output_bytes_total", "counter", "Bytes compressed for clients, after compression.",
+                this.compressionOutputBytes.sum());
+        appendMetric(text, "chat_rate_limited_total", "counter", "Messages dropped or delayed for going over their rate limit.",
+                this.rateLimited.sum());
+        appendMetric(text, "chat_turned_away_total", "counter", "Clients turned away or redirected as the server was full.",
+                this.turnedAway.sum());
+        appendMetric(text, "chat_connections", "gauge", "Clients currently connected.", activeConnections);
+        appendMetric(text, "chat_threads", "gauge", "Live threads in the server.", this.threadBean.getThreadCount());
+        appendLatency(text, "chat_broadcast_seconds", "Time taken to queue a broadcast for all of its recipients.",
+                this.broadcastLatency);
+        appendLatency(text, "chat_bad_word_check_seconds", "Time taken to check a message for bad words.", this.badWordCheckLatency);
+        appendLatency(text, "chat_handshake_seconds", "Time from a client being accepted to being admitted.", this.handshakeLatency);
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendLatency(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[]{0.5, 0.99, 0.999}) {
+            text.append(String.format(Locale.ROOT, "%s{quantile=\"%s\"} %.9f\n", name, quantile,
+                    histogram.getPercentile(quantile * 100) / 1e9));
+        }
+        text.append(String.format(Locale.ROOT, "%s_sum %.9f\n", name, histogram.getSum() / 1e9));
+        text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+}
@@ -1,43 +1,106 @@
 import java.util.Collection;
+import java.util.List;
 
 public class ServerOutputHandler {
+    /* Every message is rendered exactly once, however many targets it has, and the same MessageFrame is queued for every..-
+     * -.. target. It is encoded at most once as a line and once as a frame, whichever its targets use.
+     * Chat and private messages from users are also appended to the history log, if one is kept.
+     * Every message queued is counted in the server's metrics, and so is how long each broadcast to many targets takes.
+     * What the admin is shown goes through the server's admin log, so sending a message never waits for the console.
+     */
+
+    // Holds the history log, or null if no history is kept
+    private HistoryLog historyLog = null;
+    // Holds the server's metrics, or null if this handler does not send for a server
+    private ServerMetrics metrics = null;
+    // Holds the admin log, or null if messages to the admin are printed straight away (e.g before the server has started)
+    private AdminLog adminLog = null;
+
+    protected void setHistoryLog(HistoryLog historyLog) {
+        this.historyLog = historyLog;
+    }
+
+    protected void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    protected void setAdminLog(AdminLog adminLog) {
+        this.adminLog = adminLog;
+    }
+
+    private void broadcast(Connection target, MessageFrame message) {
+        // Only queues the message, so a client that is slow to read does not hold up the sender or the other targets.
+        target.send(message);
+        if (this.metrics != null) {
+            this.metrics.recordMessagesOut(1);
+        }
+    }
+
+    private void broadcast(Collection<Connection> targets, MessageFrame message) {
+        // Queues the same message for every target, then counts them all at once rather than one at a time.
+        long start = System.nanoTime();
+        targets.forEach(target -> target.send(message));
+        if (this.metrics != null) {
+            this.metrics.recordBroadcast(targets.size(), System.nanoTime() - start);
+        }
+    }
 
     private void broadcast(Connection target, String toBroadcast) {
-        target.getBroadcaster().println(toBroadcast);
+        broadcast(target, new MessageFrame(MessageFrame.Type.SYSTEM, toBroadcast));
     }
 
-    protected void clientBroadcast(Connection source, Collection<Connection> targets, String toBroadcast) {
-        /*
-         * Parameters:
-         * Socket clientSocket	: The client's socket
-         * String toBroadcast	: The string to be broadcast
-         */
+    protected static String formatServerMessage(String toBroadcast) {
+        // Attaches the red "[SERVER]:" prefix to a message from the server.
+        return ("\033[0;31m[SERVER]:\033[0m " + toBroadcast);
+    }
 
-        /* Sends the toBroadcast string to the client after attaching a "[number] name: " prefix to it.
-         * Return true if successful. If there is an IO exception, it suggests that this specific client has closed their connection.
-         * If this is the case, return false.
+    protected void roomBroadcast(Connection source, ChatRoom room, String toBroadcast) {
+        // Sends a chat message to the members of the sender's room only. The admin sees which room it was sent in.
+        roomBroadcast(String.valueOf(source.getUniqueID()), source.getName(), room, toBroadcast);
+    }
+
+    protected void roomBroadcast(String senderID, String senderName, ChatRoom room, String toBroadcast) {
+        // Same as above, for a sender who may be on another server, whose ID is then their global ID (e.g "14003-5f3a9c:2").
+        String alteredToBroadcast = ("[" + senderID + "] " + senderName + ": " + toBroadcast);
+        MessageFrame message = new MessageFrame(MessageFrame.Type.CHAT, alteredToBroadcast);
+        broadcast(room.getMembers(), message);
+        room.getRecentMessages().add(message);
+        broadcastToAdmin(AdminLog.Level.CHAT, "(" + room.getName() + ") " + alteredToBroadcast);
+        if (this.historyLog != null) {
+            this.historyLog.append(MessageFrame.Type.CHAT, room.getName(), senderID, senderName, "", toBroadcast);
+        }
+    }
+
+    protected boolean recentMessagesBroadcast(Connection target, ChatRoom room, int count) {
+        /* Sends up to count of the latest messages in the room to the target, as they were first sent.
+         * Returns false if there are none. A message sent at the very moment the target joins may be shown twice, but is never missed.
          */
-        String alteredToBroadcast = ("[" + source.getUniqueID() + "] " + source.getName() + ": " + toBroadcast);
-        targets.forEach(target -> broadcast(target, alteredToBroadcast));
-        broadcastToAdmin(alteredToBroadcast);
+        List<MessageFrame> recentMessages = room.getRecentMessages().getLatest(count);
+        if (recentMessages.isEmpty()) {
+            return false;
+        }
+        serverBroadcast(target, "Last " + recentMessages.size() + " message(s) in " + room.getName() + ":");
+        recentMessages.forEach(message -> broadcast(target, message));
+        return true;
     }
 
     protected void serverBroadcast(Connection target, String toBroadcast) {
         // Message broadcast by the server to a specific target.
-        toBroadcast = ("\033[0;31m[SERVER]:\033[0m " + toBroadcast);
-        broadcast(target, toBroadcast);
+        broadcast(target, formatServerMessage(toBroadcast));
     }
 
     protected void globalServerBroadcast(Collection<Connection> connections, String toBroadcast) {
         // Message broadcast by the server to all clients.
-        connections.forEach(connection -> serverBroadcast(connection, toBroadcast));
-        broadcastToAdmin(toBroadcast);
+        MessageFrame message = new MessageFrame(MessageFrame.Type.SYSTEM, formatServerMessage(toBroadcast));
+        broadcast(connections, message);
+        broadcastToAdmin(AdminLog.Level.EVENT, toBroadcast);
     }
 
     protected void adminBroadcast(Collection<Connection> connections, String toBroadcast) {
         // Message broadcast globally by an admin.
         String alteredToBroadcast = ("\033[0;31m[ADMIN]:\033[0m " + toBroadcast);
-        connections.forEach(connection -> broadcast(connection, alteredToBroadcast));
+        MessageFrame message = new MessageFrame(MessageFrame.Type.SYSTEM, alteredToBroadcast);
+        broadcast(connections, message);
         broadcastToAdmin(alteredToBroadcast);
     }
 
@@ -46,21 +109,47 @@ public class ServerOutputHandler {
         String prefix = "\033[0;33m[Admin PM]\033[0m ";
         String name = "\033[0;31m[ADMIN]\033[0m -> " + target.getName() + ": ";
         toBroadcast = prefix.concat(name + toBroadcast);
-        broadcast(target, toBroadcast);
+        broadcast(target, new MessageFrame(MessageFrame.Type.PRIVATE_MESSAGE, toBroadcast));
         broadcastToAdmin(toBroadcast);
     }
 
     protected void privateMessageBroadcast(Connection target, Connection source, String toBroadcast) {
         // Private message from one client to another.
+        MessageFrame message = formatPrivateMessage(source.getName(), target.getName(), toBroadcast);
+        broadcast(target, message);
+        broadcast(source, message);
+        if (this.historyLog != null) {
+            this.historyLog.append(MessageFrame.Type.PRIVATE_MESSAGE, "", String.valueOf(source.getUniqueID()), source.getName(),
+                    String.valueOf(target.getUniqueID()), toBroadcast);
+        }
+    }
+
+    protected void privateMessageBroadcast(Connection recipient, String sourceID, String sourceName, String targetID, String targetName,
+                                           String toBroadcast) {
+        // Private message to or from a user on another server, of which only the side on this server is sent.
+        broadcast(recipient, formatPrivateMessage(sourceName, targetName, toBroadcast));
+        if (this.historyLog != null) {
+            this.historyLog.append(MessageFrame.Type.PRIVATE_MESSAGE, "", sourceID, sourceName, targetID, toBroadcast);
+        }
+    }
+
+    private static MessageFrame formatPrivateMessage(String sourceName, String targetName, String toBroadcast) {
         String prefix = "\033[0;33m[PM]\033[0m ";
-        String name = source.getName() + " -> " + target.getName() + ": ";
-        toBroadcast = prefix.concat(name + toBroadcast);
-        broadcast(target, toBroadcast);
-        broadcast(source, toBroadcast);
+        String name = sourceName + " -> " + targetName + ": ";
+        return new MessageFrame(MessageFrame.Type.PRIVATE_MESSAGE, prefix.concat(name + toBroadcast));
     }
 
     protected void broadcastToAdmin(String toBroadcast) {
-        // Simply prints out the passed on message to the admin.
-        System.out.println(toBroadcast);
+        // Shows the passed on message to the admin, whatever the console's level.
+        broadcastToAdmin(AdminLog.Level.INFO, toBroadcast);
+    }
+
+    protected void broadcastToAdmin(AdminLog.Level level, String toBroadcast) {
+        // Queues the message for the admin log's writer, or prints it straight away if there is no admin log yet.
+        if (this.adminLog != null) {
+            this.adminLog.log(level, toBroadcast);
+        } else {
+            System.out.println(toBroadcast);
+        }
     }
 }
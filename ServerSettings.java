@@ -0,0 +1,431 @@
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+public class ServerSettings {
+
+    // The ways in which the server can serve its connections.
+    public enum ServerMode {
+        // One thread accepting and one thread reading per connected client (default).
+        THREADS,
+        // Same as THREADS, but on virtual threads, which cost a few KB each rather than a full OS thread (Java 21+).
+        VIRTUAL,
+        // A small, fixed set of selector threads serving every connection without blocking.
+        NIO
+    }
+
+    // Holds the mode the server runs in
+    private ServerMode serverMode;
+    // Holds the number of event loop threads used in NIO mode
+    private int eventLoops;
+    // Holds the maximum number of messages queued for a single connection
+    private int queueCapacity;
+    // Holds what happens to messages sent to a connection whose queue is full
+    private OutboundQueue.OverflowPolicy overflowPolicy;
+    // Holds whether bad words only count as whole words, rather than anywhere in a message (e.g "wad" in "waddup")
+    private boolean wholeWordsOnly;
+    // Holds how long, in milliseconds, messages to a connection are held back to be written together. 0 writes them straight away
+    private int flushInterval;
+    // Holds how many characters may be held back for a connection before they are written regardless of the interval
+    private int flushThreshold;
+    // Holds the servers to link to ("local" for every other default port, or "<host>:<port>"). Empty if the server is not federated
+    private List<String> federationPeers;
+    // Holds how many of the latest messages in each room are shown to users joining it
+    private int recentMessages;
+    // Holds the directory the history log is kept in, under a folder for the server's port. Null if no history is kept
+    private String historyDirectory;
+    // Holds the size of each segment of the history log, in MB
+    private int historySegmentSize;
+    // Holds how many MB of history are kept before the oldest segments are deleted
+    private int historyRetainedSize;
+    // Holds how many hours of history are kept before the oldest segments are deleted
+    private int historyMaxAge;
+    // Holds the port metrics are served on to this machine only. 0 if they are only shown with /stats
+    private int metricsPort;
+    // Holds what happens to messages sent faster than their limit allows
+    private RateLimiter.Policy rateLimitPolicy;
+    // Holds how many messages of each kind a single connection may send per second, and in a single burst
+    private final Map<RateLimiter.Category, RateLimiter.Limit> rateLimits;
+    // Holds the directory bans are kept in, in a file named after the server's port. Null if bans are not kept
+    private String banDirectory;
+    // Holds how many minutes a user is banned for once they reach their maximum warnings. 0 if they are only disconnected
+    private int autoBanMinutes;
+    // Holds the least important messages the console shows the admin
+    private AdminLog.Level consoleLevel;
+    // Holds the file every message to the admin is logged to. Null if nothing is logged
+    private String logFile;
+    // Holds the size of the log file, in MB, at which it is rotated
+    private int logFileSize;
+    // Holds whether the list of bad words is reloaded whenever its text file changes
+    private boolean watchingBadWords;
+    // Holds the deflate level output to clients who ask for compression is compressed at. 0 if compression is turned off
+    private int compressionLevel;
+    // Holds the most users admitted at once, after which new clients are redirected. 0 if there is no limit
+    private int maxPopulation;
+    // Holds how long, in milliseconds, connections are given to be written and closed when the server shuts down
+    private int drainTimeout;
+
+    public ServerSettings() {
+        // Initialise the fields to their default values
+        this.serverMode = ServerMode.THREADS;
+        this.eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+        this.queueCapacity = 1024;
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.SUMMARISE;
+        this.wholeWordsOnly = false;
+        this.flushInterval = 0;
+        this.flushThreshold = 16384;
+        this.federationPeers = new ArrayList<>();
+        this.recentMessages = 20;
+        this.historyDirectory = "history";
+        this.historySegmentSize = 16;
+        this.historyRetainedSize = 256;
+        this.historyMaxAge = 168;
+        this.metricsPort = 0;
+        this.rateLimitPolicy = RateLimiter.Policy.DROP;
+        this.rateLimits = new EnumMap<>(RateLimiter.Category.class);
+        this.rateLimits.put(RateLimiter.Category.CHAT, new RateLimiter.Limit(5, 10));
+        this.rateLimits.put(RateLimiter.Category.PRIVATE_MESSAGE, new RateLimiter.Limit(2, 5));
+        this.rateLimits.put(RateLimiter.Category.POPULATION, new RateLimiter.Limit(0.2, 2));
+        this.rateLimits.put(RateLimiter.Category.COMMAND, new RateLimiter.Limit(2, 10));
+        this.banDirectory = "bans";
+        this.autoBanMinutes = 10;
+        this.consoleLevel = AdminLog.Level.CHAT;
+        this.logFile = null;
+        this.logFileSize = 16;
+        this.watchingBadWords = false;
+        this.compressionLevel = 1;
+        this.maxPopulation = 0;
+        this.drainTimeout = 5000;
+    }
+
+    public ServerMode getServerMode() {
+        return this.serverMode;
+    }
+
+    public void setServerMode(String serverMode) {
+        // Throws an IllegalArgumentException if the mode is not recognised.
+        this.serverMode = ServerMode.valueOf(serverMode.toUpperCase());
+    }
+
+    public int getEventLoops() {
+        return this.eventLoops;
+    }
+
+    public void setEventLoops(String eventLoops) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not a positive integer.
+        int loops = Integer.parseInt(eventLoops);
+        if (loops < 1) {
+            throw new NumberFormatException("At least one event loop is required.");
+        }
+        this.eventLoops = loops;
+    }
+
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    public void setQueueCapacity(String queueCapacity) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not a positive integer.
+        int capacity = Integer.parseInt(queueCapacity);
+        if (capacity < 1) {
+            throw new NumberFormatException("The queue must hold at least one message.");
+        }
+        this.queueCapacity = capacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        // Throws an IllegalArgumentException if the policy is not recognised.
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+    }
+
+    public int getFlushInterval() {
+        return this.flushInterval;
+    }
+
+    public void setFlushInterval(String flushInterval) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not an integer from 0 to 1000.
+        int interval = Integer.parseInt(flushInterval);
+        if (interval < 0 || interval > 1000) {
+            throw new NumberFormatException("The flush interval must be between 0 and 1000 milliseconds.");
+        }
+        this.flushInterval = interval;
+    }
+
+    public int getFlushThreshold() {
+        return this.flushThreshold;
+    }
+
+    public void setFlushThreshold(String flushThreshold) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not a positive integer.
+        int threshold = Integer.parseInt(flushThreshold);
+        if (threshold < 1) {
+            throw new NumberFormatException("The flush threshold must be at least one character.");
+        }
+        this.flushThreshold = threshold;
+    }
+
+    public List<String> getFederationPeers() {
+        return this.federationPeers;
+    }
+
+    public void setFederationPeers(String federationPeers) {
+        // Throws an IllegalArgumentException if a peer, separated by commas, is neither "local" nor "<host>:<port>".
+        List<String> peers = new ArrayList<>();
+        for (String peer : federationPeers.split(",")) {
+            if (!peer.equalsIgnoreCase("local")) {
+                int separator = peer.lastIndexOf(':');
+                if (separator < 1) {
+                    throw new IllegalArgumentException("Unknown peer: " + peer);
+                }
+                int port = Integer.parseInt(peer.substring(separator + 1));
+                if (port < 1 || port + Federation.LINK_PORT_OFFSET > 65535) {
+                    throw new NumberFormatException("Port outside of range: " + port);
+                }
+            }
+            peers.add(peer);
+        }
+        this.federationPeers = peers;
+    }
+
+    public int getRecentMessages() {
+        return this.recentMessages;
+    }
+
+    public void setRecentMessages(String recentMessages) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not an integer from 0 to 1000.
+        int messages = Integer.parseInt(recentMessages);
+        if (messages < 0 || messages > 1000) {
+            throw new NumberFormatException("Between 0 and 1000 recent messages can be kept.");
+        }
+        this.recentMessages = messages;
+    }
+
+    public String getHistoryDirectory() {
+        return this.historyDirectory;
+    }
+
+    public void setHistoryDirectory(String historyDirectory) {
+        // "off" keeps no history at all.
+        this.historyDirectory = historyDirectory.equalsIgnoreCase("off") ? null : historyDirectory;
+    }
+
+    public int getHistorySegmentSize() {
+        return this.historySegmentSize;
+    }
+
+    public void setHistorySegmentSize(String historySegmentSize) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not an integer from 2 to 1024.
+        // Segments of at least 2 MB always fit the longest record (see HistoryLog).
+        int size = Integer.parseInt(historySegmentSize);
+        if (size < 2 || size > 1024) {
+            throw new NumberFormatException("History segments must be between 2 and 1024 MB.");
+        }
+        this.historySegmentSize = size;
+    }
+
+    public int getHistoryRetainedSize() {
+        return this.historyRetainedSize;
+    }
+
+    public void setHistoryRetainedSize(String historyRetainedSize) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not a positive integer.
+        int size = Integer.parseInt(historyRetainedSize);
+        if (size < 1) {
+            throw new NumberFormatException("At least 1 MB of history must be kept.");
+        }
+        this.historyRetainedSize = size;
+    }
+
+    public int getHistoryMaxAge() {
+        return this.historyMaxAge;
+    }
+
+    public void setHistoryMaxAge(String historyMaxAge) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the value is not a positive integer.
+        int hours = Integer.parseInt(historyMaxAge);
+        if (hours < 1) {
+            throw new NumberFormatException("At least an hour of history must be kept.");
+        }
+        this.historyMaxAge = hours;
+    }
+
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
+    public void setMetricsPort(String metricsPort) {
+        // "off" serves no metrics. Throws a NumberFormatException (an IllegalArgumentException) if the value is not a legal port.
+        if (metricsPort.equalsIgnoreCase("off")) {
+            this.metricsPort = 0;
+            return;
+        }
+        int port = Integer.parseInt(metricsPort);
+        if (port < 1 || port > 65535) {
+            throw new NumberFormatException("Port outside of range: " + port);
+        }
+        this.metricsPort = port;
+    }
+
+    public RateLimiter.Policy getRateLimitPolicy() {
+        return this.rateLimitPolicy;
+    }
+
+    public void setRateLimitPolicy(String rateLimitPolicy) {
+        // Throws an IllegalArgumentException if the policy is not recognised.
+        this.rateLimitPolicy = RateLimiter.Policy.valueOf(rateLimitPolicy.toUpperCase());
+    }
+
+    public RateLimiter.Limit getRateLimit(RateLimiter.Category category) {
+        return this.rateLimits.get(category);
+    }
+
+    public void setRateLimit(RateLimiter.Category category, String limit) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the limit is not "<messages per second>[:<burst>]".
+        this.rateLimits.put(category, RateLimiter.Limit.parse(limit));
+    }
+
+    public String getBanDirectory() {
+        return this.banDirectory;
+    }
+
+    public void setBanDirectory(String banDirectory) {
+        // "off" keeps bans in memory only, so they are lifted by a restart.
+        this.banDirectory = banDirectory.equalsIgnoreCase("off") ? null : banDirectory;
+    }
+
+    public int getAutoBanMinutes() {
+        return this.autoBanMinutes;
+    }
+
+    public void setAutoBanMinutes(String autoBanMinutes) {
+        // "off" only disconnects users who reach their maximum warnings. Throws a NumberFormatException if the value is below 1.
+        if (autoBanMinutes.equalsIgnoreCase("off")) {
+            this.autoBanMinutes = 0;
+            return;
+        }
+        int minutes = Integer.parseInt(autoBanMinutes);
+        if (minutes < 1) {
+            throw new NumberFormatException("Bans must last at least a minute.");
+        }
+        this.autoBanMinutes = minutes;
+    }
+
+    public AdminLog.Level getConsoleLevel() {
+        return this.consoleLevel;
+    }
+
+    public void setConsoleLevel(String consoleLevel) {
+        // Throws an IllegalArgumentException if the level is not recognised.
+        this.consoleLevel = AdminLog.Level.valueOf(consoleLevel.toUpperCase());
+    }
+
+    public String getLogFile() {
+        return this.logFile;
+    }
+
+    public void setLogFile(String logFile) {
+        // "off" logs nothing (default).
+        this.logFile = logFile.equalsIgnoreCase("off") ? null : logFile;
+    }
+
+    public int getLogFileSize() {
+        return this.logFileSize;
+    }
+
+    public void setLogFileSize(String logFileSize) {
+        // Throws a NumberFormatException (an IllegalArgumentException) if the size is not between 1 and 1024 MB.
+        int size = Integer.parseInt(logFileSize);
+        if (size < 1 || size > 1024) {
+            throw new NumberFormatException("Log files must be between 1 and 1024 MB.");
+        }
+        this.logFileSize = size;
+    }
+
+    public boolean isWatchingBadWords() {
+        return this.watchingBadWords;
+    }
+
+    public void setWatchingBadWords(String watchingBadWords) {
+        // Throws an IllegalArgumentException if the value is neither "on" nor "off".
+        switch (watchingBadWords.toLowerCase()) {
+            case "on":
+                this.watchingBadWords = true;
+                break;
+            case "off":
+                this.watchingBadWords = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown value: " + watchingBadWords);
+        }
+    }
+
+    public int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    public void setCompressionLevel(String compressionLevel) {
+        // "off" refuses compression to every client. Throws a NumberFormatException if the level is not between 1 and 9.
+        if (compressionLevel.equalsIgnoreCase("off")) {
+            this.compressionLevel = 0;
+            return;
+        }
+        int level = Integer.parseInt(compressionLevel);
+        if (level < 1 || level > 9) {
+            throw new NumberFormatException("Compression levels are between 1 (fastest) and 9 (smallest).");
+        }
+        this.compressionLevel = level;
+    }
+
+    public int getMaxPopulation() {
+        return this.maxPopulation;
+    }
+
+    public void setMaxPopulation(String maxPopulation) {
+        // "off" admits any number of users. Throws a NumberFormatException if the value is not a positive integer.
+        if (maxPopulation.equalsIgnoreCase("off")) {
+            this.maxPopulation = 0;
+            return;
+        }
+        int population = Integer.parseInt(maxPopulation);
+        if (population < 1) {
+            throw new NumberFormatException("The capacity must be at least 1 user.");
+        }
+        this.maxPopulation = population;
+    }
+
+    public int getDrainTimeout() {
+        return this.drainTimeout;
+    }
+
+    public void setDrainTimeout(String drainTimeout) {
+        // Throws a NumberFormatException if the value is not an integer from 0 to 600000 milliseconds.
+        int timeout = Integer.parseInt(drainTimeout);
+        if (timeout < 0 || timeout > 600000) {
+            throw new NumberFormatException("The drain timeout must be between 0 and 600000 milliseconds.");
+        }
+        this.drainTimeout = timeout;
+    }
+
+    public boolean isWholeWordsOnly() {
+        return this.wholeWordsOnly;
+    }
+
+    public void setBadWordMatching(String badWordMatching) {
+        // Throws an IllegalArgumentException if the value is neither "substring" nor "word".
+        switch (badWordMatching.toLowerCase()) {
+            case "substring":
+                this.wholeWordsOnly = false;
+                break;
+            case "word":
+                this.wholeWordsOnly = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown matching: " + badWordMatching);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+    /* A token bucket kept in a single AtomicLong, so taking a token never locks and never allocates.
+     * Rather than counting tokens, the bucket holds the time at which it will next be full (the generic cell rate..-
+     * -.. algorithm). Each token taken moves that time on by the interval between tokens, and a token can be taken as..-
+     * -.. long as the bucket would then be full again within the time it takes to refill the whole burst.
+     * Taking a token is a single compare-and-set, retried only if another thread took one at the same moment.
+     */
+
+    // Holds how many nanoseconds it takes for a single token to be refilled.
+    private final long interval;
+    // Holds how many nanoseconds it takes for the whole burst to be refilled.
+    private final long capacity;
+    // Holds the System.nanoTime() at which the bucket will be full again. Anything in the past means it is full.
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double tokensPerSecond, int burst) {
+        this.interval = Math.max(1, (long) (1e9 / tokensPerSecond));
+        this.capacity = this.interval * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryTake(long now) {
+        // Takes a token if there is one. Returns false, taking nothing, if the bucket is empty.
+        while (true) {
+            long fullAt = this.fullAt.get();
+            long nextFullAt = Math.max(fullAt, now) + this.interval;
+            if (nextFullAt - now > this.capacity) {
+                return false;
+            }
+            if (this.fullAt.compareAndSet(fullAt, nextFullAt)) {
+                return true;
+            }
+        }
+    }
+
+    public long reserve(long now) {
+        // Takes a token, even if the bucket is empty. Returns how many nanoseconds to wait until the token would have been there.
+        while (true) {
+            long fullAt = this.fullAt.get();
+            long nextFullAt = Math.max(fullAt, now) + this.interval;
+            if (this.fullAt.compareAndSet(fullAt, nextFullAt)) {
+                return Math.max(0, nextFullAt - now - this.capacity);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BenchmarkRunner {
+    /* A small benchmark harness, measuring the time and memory each operation takes, much like JMH's average time mode..-
+     * -.. with its GC profiler.
+     * Each benchmark is warmed up, so the JIT has compiled it, then measured over several iterations. The time of each iteration..-
+     * -.. is divided by the number of operations run in it, and the mean and standard deviation over the iterations is reported.
+     * Allocation is measured per thread, so it only counts what the operation allocates on the thread running it.
+     * Results can also be appended to a CSV file, so that they can be compared over time.
+     */
+
+    // A single operation to be measured. Whatever it returns is kept, so the JIT can not remove the work that made it.
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    // Holds the result of the last operation. Volatile, so writing to it can never be optimised away.
+    private static volatile Object sink;
+
+    // Holds the stream results are printed to. The server prints to System.out, which is silenced while benchmarking.
+    private final PrintStream output;
+    private final long warmupMillis;
+    private final long iterationMillis;
+    private final int iterations;
+    // Only benchmarks whose name contains this are run. Empty runs every benchmark.
+    private final String filter;
+    // Holds the file results are appended to, or null if they are only printed.
+    private final String csvFile;
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final List<GarbageCollectorMXBean> garbageCollectors;
+
+    public BenchmarkRunner(PrintStream output, long warmupMillis, long iterationMillis, int iterations, String filter, String csvFile) {
+        this.output = output;
+        this.warmupMillis = warmupMillis;
+        this.iterationMillis = iterationMillis;
+        this.iterations = iterations;
+        this.filter = filter;
+        this.csvFile = csvFile;
+        this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        this.garbageCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+        this.output.printf("%-28s %-10s %14s %12s %12s %8s %8s%n", "Benchmark", "Parameter", "ns/op", "error", "B/op", "GCs", "GC ms");
+    }
+
+    public void run(String benchmark, String parameter, Operation operation) throws Exception {
+        if (!benchmark.contains(this.filter)) {
+            return;
+        }
+        // Run in batches, so that reading the clock and the allocation counter costs nothing next to the operations.
+        int batchSize = calibrate(operation);
+        long warmupEnd = System.nanoTime() + this.warmupMillis * 1_000_000L;
+        while (System.nanoTime() < warmupEnd) {
+            runBatch(operation, batchSize);
+        }
+        List<Double> nanosPerOperation = new ArrayList<>();
+        long operations = 0;
+        long allocatedBytes = 0;
+        long gcCount = getGcCount();
+        long gcMillis = getGcMillis();
+        for (int i = 0; i < this.iterations; i++) {
+            long iterationOperations = 0;
+            long allocatedBefore = this.threadBean.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long end = start + this.iterationMillis * 1_000_000L;
+            long now;
+            do {
+                runBatch(operation, batchSize);
+                iterationOperations += batchSize;
+            } while ((now = System.nanoTime()) < end);
+            allocatedBytes += this.threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            operations += iterationOperations;
+            nanosPerOperation.add((double) (now - start) / iterationOperations);
+        }
+        report(benchmark, parameter, nanosPerOperation, (double) allocatedBytes / operations, getGcCount() - gcCount,
+                getGcMillis() - gcMillis);
+    }
+
+    public void note(String benchmark, String text) {
+        // Prints a line about a benchmark which is not a time, e.g how much it saved, if the benchmark is being run.
+        if (benchmark.contains(this.filter)) {
+            this.output.printf("%-28s %s%n", benchmark, text);
+        }
+    }
+
+    private int calibrate(Operation operation) throws Exception {
+        // Finds a batch size taking roughly a millisecond.
+        int batchSize = 1;
+        long elapsed;
+        do {
+            batchSize *= 2;
+            long start = System.nanoTime();
+            runBatch(operation, batchSize);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 1_000_000L && batchSize < (1 << 24));
+        return batchSize;
+    }
+
+    private static void runBatch(Operation operation, int batchSize) throws Exception {
+        Object result = null;
+        for (int i = 0; i < batchSize; i++) {
+            result = operation.run();
+        }
+        sink = result;
+    }
+
+    private long getGcCount() {
+        return this.garbageCollectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private long getGcMillis() {
+        return this.garbageCollectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    private void report(String benchmark, String parameter, List<Double> nanosPerOperation, double bytesPerOperation,
+                        long gcCount, long gcMillis) throws IOException {
+        double mean = nanosPerOperation.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double variance = nanosPerOperation.stream().mapToDouble(value -> (value - mean) * (value - mean)).sum()
+                / Math.max(1, nanosPerOperation.size() - 1);
+        double error = Math.sqrt(variance);
+        this.output.printf("%-28s %-10s %14.1f %12.1f %12.1f %8d %8d%n", benchmark, parameter, mean, error, bytesPerOperation,
+                gcCount, gcMillis);
+        if (this.csvFile == null) {
+            return;
+        }
+        try (PrintWriter csv = new PrintWriter(new FileWriter(this.csvFile, true))) {
+            csv.printf("%s,%s,%s,%.1f,%.1f,%.1f,%d,%d%n", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME),
+                    benchmark, parameter, mean, error, bytesPerOperation, gcCount, gcMillis);
+        }
+    }
+
+}
@@ -0,0 +1,543 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+    /* Drives a running server with thousands of simulated users, end to end through its sockets, and reports how quickly..-
+     * -.. their messages are delivered. Only servers on this machine can be loaded.
+     *     javac -d out *.java benchmarks/*.java
+     *     java -cp out LoadGenerator [-ccp <port>] [-users <n>] [-rate <messages per user per second>] [-mix <chat:pm:command>]
+     *         [-rooms <n>] [-framing <binary|text>] [-duration <seconds>] [-warmup <seconds>] [-ramp <users per second>]
+     *         [-results <file>] [-maxusers | -shutdown]
+     * The users connect and make the name handshake, spread over the given number of rooms, then send chat messages,..-
+     * -.. private messages to random users and commands in the given proportions, at the given rate in total.
+     * Every chat and private message carries the time it was due to be sent, and its delay is recorded by every user..-
+     * -.. receiving it. The due time is used rather than the time it was sent, so a generator falling behind shows up..-
+     * -.. as delay rather than hiding it.
+     * -maxusers sends nothing. Users are connected until one fails or the number of users is reached, and the number..-
+     * -.. connected at once is reported.
+     * -shutdown sends nothing either. Once the users are connected, the server is to be shut down by its admin, and..-
+     * -.. how many users were told before being closed, and how long after the first notice each was closed, is reported.
+     * The run ends once every user is closed, or after -duration seconds.
+     * Results are printed, and appended to the results file as a line of JSON, so that builds can be compared.
+     */
+
+    // Sent in every timed message, followed by the time it was due to be sent.
+    private static final String MARKER = "lg ";
+    // Start of every simulated user's name, which is followed by the user's index.
+    private static final String NAME_PREFIX = "lg";
+    // Answered with a line per room. /history is not sent, as the messages it replays can not be told apart from new ones.
+    private static final String COMMAND = "/rooms";
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int CONNECTOR_THREADS = 8;
+    private static final int READER_THREADS = 2;
+
+    private static String address = "127.0.0.1";
+    private static int port = 14001;
+    private static int userCount = 1000;
+    private static double rate = 1;
+    private static int[] mix = {90, 5, 5};
+    private static int roomCount = 1;
+    private static boolean binaryFraming = true;
+    private static int durationSeconds = 30;
+    private static int warmupSeconds = 5;
+    private static int rampRate = 500;
+    private static String resultsFile = null;
+    private static boolean maxUsers = false;
+    private static boolean shutdown = false;
+
+    private final InetSocketAddress serverAddress;
+    private final List<SimulatedUser> users;
+    // Holds each user's ID on the server, learned from the message announcing them, or 0 until then.
+    private final AtomicIntegerArray userIDs;
+    private final AtomicIntegerArray roomMembers;
+    private final List<UserReader> readers;
+    private final LatencyHistogram handshakeLatency;
+    private final LatencyHistogram chatLatency;
+    private final LatencyHistogram privateMessageLatency;
+    // Holds how long after the first shutdown notice each user was closed, with -shutdown.
+    private final LatencyHistogram closeLatency;
+    private final AtomicInteger connectedUsers;
+    private final AtomicInteger peakConnectedUsers;
+    private final AtomicInteger failedUsers;
+    private final AtomicInteger droppedUsers;
+    private final AtomicReference<String> firstFailure;
+    private final AtomicLong receivedMessages;
+    private final AtomicLong skippedMessages;
+    // Holds the number of users told the server is shutting down, and the System.nanoTime() the first was told at.
+    private final AtomicInteger noticedUsers;
+    private final AtomicLong firstNoticeAt;
+    private final AtomicLong lastCloseAt;
+    // Counted from the start of the measurement.
+    private long chatMessagesSent;
+    private long privateMessagesSent;
+    private long commandsSent;
+    private long stalledMessages;
+    private long expectedDeliveries;
+    private long maxSendLagNanos;
+    // Messages due before this time are not recorded. Long.MAX_VALUE until the warmup is over.
+    private volatile long measurementStart;
+
+    private LoadGenerator(InetSocketAddress serverAddress) {
+        this.serverAddress = serverAddress;
+        this.users = new ArrayList<>(userCount);
+        this.userIDs = new AtomicIntegerArray(userCount);
+        this.roomMembers = new AtomicIntegerArray(roomCount);
+        this.readers = new ArrayList<>(READER_THREADS);
+        this.handshakeLatency = new LatencyHistogram();
+        this.chatLatency = new LatencyHistogram();
+        this.privateMessageLatency = new LatencyHistogram();
+        this.closeLatency = new LatencyHistogram();
+        this.connectedUsers = new AtomicInteger(0);
+        this.peakConnectedUsers = new AtomicInteger(0);
+        this.failedUsers = new AtomicInteger(0);
+        this.droppedUsers = new AtomicInteger(0);
+        this.firstFailure = new AtomicReference<>(null);
+        this.receivedMessages = new AtomicLong(0);
+        this.skippedMessages = new AtomicLong(0);
+        this.noticedUsers = new AtomicInteger(0);
+        this.firstNoticeAt = new AtomicLong(Long.MAX_VALUE);
+        this.lastCloseAt = new AtomicLong(0);
+        this.measurementStart = Long.MAX_VALUE;
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkArgs(args, 0);
+        InetAddress serverAddress = InetAddress.getByName(address);
+        if (!(serverAddress.isLoopbackAddress() || serverAddress.isAnyLocalAddress())) {
+            System.out.println("The load generator only connects to servers on this machine.");
+            return;
+        }
+        LoadGenerator loadGenerator = new LoadGenerator(new InetSocketAddress(serverAddress, port));
+        loadGenerator.run();
+    }
+
+    private static void checkArgs(String[] args, int index) {
+        // Same format as the client's arguments, apart from -maxusers and -shutdown, which take no value.
+        if (index >= args.length) {
+            return;
+        }
+        switch (args[index]) {
+            case "-maxusers":
+                maxUsers = true;
+                checkArgs(args, index + 1);
+                return;
+            case "-shutdown":
+                shutdown = true;
+                checkArgs(args, index + 1);
+                return;
+            case "-cca":
+                address = args[index + 1];
+                break;
+            case "-ccp":
+                port = Integer.parseInt(args[index + 1]);
+                break;
+            case "-users":
+                userCount = Integer.parseInt(args[index + 1]);
+                break;
+            case "-rate":
+                rate = Double.parseDouble(args[index + 1]);
+                break;
+            case "-mix":
+                String[] weights = args[index + 1].split(":");
+                mix = new int[]{Integer.parseInt(weights[0]), Integer.parseInt(weights[1]), Integer.parseInt(weights[2])};
+                break;
+            case "-rooms":
+                roomCount = Math.max(1, Integer.parseInt(args[index + 1]));
+                break;
+            case "-framing":
+                binaryFraming = !args[index + 1].equalsIgnoreCase("text");
+                break;
+            case "-duration":
+                durationSeconds = Integer.parseInt(args[index + 1]);
+                break;
+            case "-warmup":
+                warmupSeconds = Integer.parseInt(args[index + 1]);
+                break;
+            case "-ramp":
+                rampRate = Math.max(1, Integer.parseInt(args[index + 1]));
+                break;
+            case "-results":
+                resultsFile = args[index + 1];
+                break;
+            default:
+                System.out.println("Unknown argument: " + args[index]);
+                checkArgs(args, index + 1);
+                return;
+        }
+        checkArgs(args, index + 2);
+    }
+
+    private void run() throws Exception {
+        for (int i = 0; i < READER_THREADS; i++) {
+            UserReader reader = new UserReader();
+            this.readers.add(reader);
+            Thread thread = new Thread(reader, "lg_reader-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        for (int i = 0; i < userCount; i++) {
+            this.users.add(new SimulatedUser(this, i, NAME_PREFIX + i, i % roomCount, binaryFraming));
+        }
+        long rampStart = System.nanoTime();
+        connectUsers();
+        double rampSeconds = (System.nanoTime() - rampStart) / 1e9;
+        System.out.printf("Connected %d of %d users in %.1f s, %d failed.%n", this.connectedUsers.get(), userCount, rampSeconds,
+                this.failedUsers.get());
+        if (maxUsers) {
+            // Holds the users for a few seconds, to see whether the server keeps them.
+            Thread.sleep(5000);
+        } else if (shutdown) {
+            waitForShutdown();
+        } else if (this.connectedUsers.get() > 0) {
+            sendMessages();
+            waitForDeliveries();
+        }
+        report(rampSeconds);
+        this.users.forEach(SimulatedUser::close);
+    }
+
+    private void connectUsers() throws InterruptedException {
+        /* Connects the users at the ramp rate, from a few threads so a slow handshake does not hold up the rest.
+         * With -maxusers, stops at the first user failing to connect.
+         */
+        AtomicInteger nextUser = new AtomicInteger(0);
+        long start = System.nanoTime();
+        List<Thread> connectors = new ArrayList<>();
+        for (int i = 0; i < CONNECTOR_THREADS; i++) {
+            Thread connector = new Thread(() -> {
+                int index;
+                while ((index = nextUser.getAndIncrement()) < userCount && !(maxUsers && this.failedUsers.get() > 0)) {
+                    long due = start + (long) (index * (1e9 / rampRate));
+                    long delay;
+                    while ((delay = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    connectUser(this.users.get(index));
+                }
+            }, "lg_connector-" + i);
+            connectors.add(connector);
+            connector.start();
+        }
+        long nextReport = start + 5_000_000_000L;
+        for (Thread connector : connectors) {
+            while (connector.isAlive()) {
+                connector.join(500);
+                if (System.nanoTime() >= nextReport) {
+                    System.out.printf("%3d s: %d users connected, %d failed%n", (System.nanoTime() - start) / 1_000_000_000L,
+                            this.connectedUsers.get(), this.failedUsers.get());
+                    nextReport += 5_000_000_000L;
+                }
+            }
+        }
+    }
+
+    private void connectUser(SimulatedUser user) {
+        long start = System.nanoTime();
+        try {
+            user.connect(this.serverAddress, CONNECT_TIMEOUT_MILLIS);
+            this.handshakeLatency.record(System.nanoTime() - start);
+            if (roomCount > 1) {
+                user.send("/join " + NAME_PREFIX + "room" + user.getRoom());
+            }
+            this.roomMembers.incrementAndGet(user.getRoom());
+            this.peakConnectedUsers.accumulateAndGet(this.connectedUsers.incrementAndGet(), Math::max);
+            this.readers.get(user.getIndex() % READER_THREADS).add(user);
+        } catch (IOException exception) {
+            this.failedUsers.incrementAndGet();
+            this.firstFailure.compareAndSet(null, user.getName() + ": " + exception);
+        }
+    }
+
+    private void sendMessages() {
+        /* Sends messages from the users in turn, each at the time it is due, until the warmup and the measurement are over.
+         * Whatever is due is sent at once, so the rate holds even when the thread is woken late.
+         */
+        double intervalNanos = 1e9 / (rate * userCount);
+        long start = System.nanoTime();
+        long warmupEnd = start + warmupSeconds * 1_000_000_000L;
+        long end = warmupEnd + durationSeconds * 1_000_000_000L;
+        long nextReport = start + 5_000_000_000L;
+        long sent = 0;
+        int nextUser = 0;
+        while (true) {
+            long due = start + (long) (sent * intervalNanos);
+            if (due >= end) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (due > now) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+            if (this.measurementStart == Long.MAX_VALUE && due >= warmupEnd) {
+                this.measurementStart = warmupEnd;
+            }
+            if (now >= nextReport) {
+                printProgress(now - start);
+                nextReport += 5_000_000_000L;
+            }
+            sent++;
+            SimulatedUser user = nextConnectedUser(nextUser);
+            if (user == null) {
+                return;
+            }
+            nextUser = user.getIndex() + 1;
+            sendMessage(user, due, due >= warmupEnd);
+            if (due >= warmupEnd) {
+                this.maxSendLagNanos = Math.max(this.maxSendLagNanos, now - due);
+            }
+        }
+    }
+
+    private SimulatedUser nextConnectedUser(int from) {
+        // Returns the first connected user from the given index, wrapping around, or null if none are left.
+        for (int i = 0; i < userCount; i++) {
+            SimulatedUser user = this.users.get((from + i) % userCount);
+            if (user.isConnected()) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private void sendMessage(SimulatedUser user, long due, boolean measured) {
+        /* Sends a chat message, private message or command, picked at random in the proportions of the mix.
+         * A private message whose target's ID has not been seen yet is sent as a chat message instead, so the rate holds.
+         */
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(mix[0] + mix[1] + mix[2]);
+        String timedText = MARKER + due;
+        boolean sent;
+        if (pick >= mix[0] + mix[1]) {
+            sent = user.send(COMMAND);
+            this.commandsSent += (sent && measured) ? 1 : 0;
+        } else {
+            SimulatedUser target = (pick < mix[0]) ? null : nextConnectedUser(random.nextInt(userCount));
+            int targetID = (target == null || target == user) ? 0 : this.userIDs.get(target.getIndex());
+            if (targetID == 0) {
+                sent = user.send(timedText);
+                if (sent && measured) {
+                    this.chatMessagesSent++;
+                    this.expectedDeliveries += this.roomMembers.get(user.getRoom());
+                }
+            } else {
+                sent = user.send("/pm " + targetID + " " + timedText);
+                if (sent && measured) {
+                    this.privateMessagesSent++;
+                    // Delivered to the target, and echoed back to the sender.
+                    this.expectedDeliveries += 2;
+                }
+            }
+        }
+        this.stalledMessages += (!sent && measured) ? 1 : 0;
+    }
+
+    private void waitForDeliveries() throws InterruptedException {
+        // Waits for messages to stop arriving, for up to 10 seconds after the last one was sent.
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        long received;
+        do {
+            received = this.receivedMessages.get();
+            Thread.sleep(500);
+        } while (this.receivedMessages.get() != received && System.nanoTime() < deadline);
+    }
+
+    private void waitForShutdown() throws InterruptedException {
+        // Waits for the admin to shut the server down, until every user has been closed or the duration has passed.
+        System.out.println("Waiting for the server to be shut down (e.g with /servershutdown)...");
+        long deadline = System.nanoTime() + durationSeconds * 1_000_000_000L;
+        while (this.connectedUsers.get() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(100);
+        }
+    }
+
+    public void handleMessage(SimulatedUser user, String message, long now) {
+        // Called by the reader threads with each message a user receives.
+        this.receivedMessages.incrementAndGet();
+        int markerIndex = message.lastIndexOf(": " + MARKER);
+        if (markerIndex >= 0) {
+            recordDelivery(message, markerIndex + 2 + MARKER.length(), now);
+        } else if (message.contains(ChatServer.SHUTDOWN_NOTICE)) {
+            this.noticedUsers.incrementAndGet();
+            this.firstNoticeAt.accumulateAndGet(now, Math::min);
+        } else if (message.contains(" has connected! ")) {
+            learnUserID(message);
+        } else if (message.contains(" message(s) were skipped")) {
+            String count = message.substring(message.lastIndexOf(' ', message.indexOf(" message(s)") - 1) + 1, message.indexOf(" message(s)"));
+            this.skippedMessages.addAndGet(parseNumber(count));
+        }
+    }
+
+    private void recordDelivery(String message, int timeIndex, long now) {
+        long due = parseNumber(message.substring(timeIndex).trim());
+        if (due < this.measurementStart) {
+            // Sent during the warmup, or replayed from an earlier run.
+            return;
+        }
+        if (message.contains("[PM]")) {
+            this.privateMessageLatency.record(now - due);
+        } else {
+            this.chatLatency.record(now - due);
+        }
+    }
+
+    private void learnUserID(String message) {
+        // Reads the index and ID of a simulated user from e.g "[SERVER]: lg12(345) has connected! Online users: 13".
+        String identity = message.substring(message.lastIndexOf(' ', message.indexOf(" has connected! ") - 1) + 1,
+                message.indexOf(" has connected! "));
+        int open = identity.indexOf('(');
+        if (!identity.startsWith(NAME_PREFIX) || open < 0 || !identity.endsWith(")")) {
+            return;
+        }
+        long index = parseNumber(identity.substring(NAME_PREFIX.length(), open));
+        long id = parseNumber(identity.substring(open + 1, identity.length() - 1));
+        if (index >= 0 && index < userCount && id > 0 && id <= Integer.MAX_VALUE) {
+            this.userIDs.set((int) index, (int) id);
+        }
+    }
+
+    private static long parseNumber(String text) {
+        // Returns -1 for anything which is not a number, as messages from other users may look like ours.
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    public void userDropped(SimulatedUser user) {
+        // Called once for each user whose connection is lost before the end of the run.
+        long now = System.nanoTime();
+        long firstNoticeAt = this.firstNoticeAt.get();
+        if (firstNoticeAt != Long.MAX_VALUE) {
+            this.closeLatency.record(Math.max(0, now - firstNoticeAt));
+            this.lastCloseAt.accumulateAndGet(now, Math::max);
+        }
+        this.droppedUsers.incrementAndGet();
+        this.connectedUsers.decrementAndGet();
+        this.roomMembers.decrementAndGet(user.getRoom());
+    }
+
+    private void printProgress(long elapsedNanos) {
+        System.out.printf("%3d s: %d users, %d received, chat p99 %.2f ms%n", elapsedNanos / 1_000_000_000L, this.connectedUsers.get(),
+                this.receivedMessages.get(), this.chatLatency.getPercentile(99) / 1e6);
+    }
+
+    private void report(double rampSeconds) throws IOException {
+        long delivered = this.chatLatency.getCount() + this.privateMessageLatency.getCount();
+        long sent = this.chatMessagesSent + this.privateMessagesSent + this.commandsSent;
+        String mode = maxUsers ? "maxusers" : (shutdown ? "shutdown" : "load");
+        long drainNanos = (this.lastCloseAt.get() == 0) ? 0 : this.lastCloseAt.get() - this.firstNoticeAt.get();
+        System.out.printf("Mode %s, %s framing, %d users in %d room(s).%n", mode,
+                binaryFraming ? "binary" : "text", userCount, roomCount);
+        System.out.printf("Users: %d peak, %d connected, %d failed, %d dropped.%n", this.peakConnectedUsers.get(),
+                this.connectedUsers.get(), this.failedUsers.get(), this.droppedUsers.get());
+        if (this.firstFailure.get() != null) {
+            System.out.println("First failure: " + this.firstFailure.get());
+        }
+        printLatency("Handshake", this.handshakeLatency);
+        if (shutdown) {
+            System.out.printf("Told of the shutdown: %d of %d users. All closed %.1f ms after the first was told.%n",
+                    this.noticedUsers.get(), this.peakConnectedUsers.get(), drainNanos / 1e6);
+            printLatency("Closed after", this.closeLatency);
+        } else if (!maxUsers) {
+            System.out.printf("Sent %d messages (%d chat, %d private, %d commands), %.0f/s, %d stalled.%n", sent, this.chatMessagesSent,
+                    this.privateMessagesSent, this.commandsSent, (double) sent / durationSeconds, this.stalledMessages);
+            System.out.printf("Delivered %d of %d expected, %.0f/s, %d skipped by the server. Sending fell behind by up to %.1f ms.%n",
+                    delivered, this.expectedDeliveries, (double) delivered / durationSeconds, this.skippedMessages.get(),
+                    this.maxSendLagNanos / 1e6);
+            printLatency("Chat", this.chatLatency);
+            printLatency("Private message", this.privateMessageLatency);
+        }
+        if (resultsFile == null) {
+            return;
+        }
+        try (PrintWriter results = new PrintWriter(new FileWriter(resultsFile, true))) {
+            results.println(String.format(Locale.ROOT, "{\"time\":\"%s\",\"mode\":\"%s\",\"port\":%d,\"framing\":\"%s\",\"users\":%d,"
+                            + "\"rooms\":%d,\"rate\":%s,\"mix\":\"%d:%d:%d\",\"duration\":%d,\"rampSeconds\":%.2f,\"peakUsers\":%d,"
+                            + "\"connectedUsers\":%d,\"failedUsers\":%d,\"droppedUsers\":%d,\"sent\":%d,\"sentPerSecond\":%.1f,"
+                            + "\"stalled\":%d,\"expected\":%d,\"delivered\":%d,\"deliveredPerSecond\":%.1f,\"skipped\":%d,"
+                            + "\"maxSendLagMillis\":%.3f,\"handshake\":%s,\"chat\":%s,\"privateMessage\":%s,\"noticed\":%d,"
+                            + "\"drainMillis\":%.3f,\"closedAfterNotice\":%s}",
+                    LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME), mode, port,
+                    binaryFraming ? "binary" : "text", userCount, roomCount, rate, mix[0], mix[1], mix[2], durationSeconds, rampSeconds,
+                    this.peakConnectedUsers.get(), this.connectedUsers.get(), this.failedUsers.get(), this.droppedUsers.get(), sent,
+                    (double) sent / durationSeconds, this.stalledMessages, this.expectedDeliveries, delivered,
+                    (double) delivered / durationSeconds, this.skippedMessages.get(), this.maxSendLagNanos / 1e6,
+                    toJson(this.handshakeLatency), toJson(this.chatLatency), toJson(this.privateMessageLatency),
+                    this.noticedUsers.get(), drainNanos / 1e6, toJson(this.closeLatency)));
+        }
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%-16s %8d samples, p50 %8.3f ms, p99 %8.3f ms, p99.9 %8.3f ms, max %8.3f ms%n", name + ":",
+                histogram.getCount(), histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    private static String toJson(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "{\"count\":%d,\"p50Millis\":%.3f,\"p99Millis\":%.3f,\"p999Millis\":%.3f,\"maxMillis\":%.3f}",
+                histogram.getCount(), histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    private class UserReader implements Runnable {
+        // Reads from its share of the users. Users are handed over through a queue, as only this thread may use its selector.
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SimulatedUser> newUsers;
+
+        private UserReader() throws IOException {
+            this.selector = Selector.open();
+            this.newUsers = new ConcurrentLinkedQueue<>();
+        }
+
+        private void add(SimulatedUser user) {
+            this.newUsers.add(user);
+            this.selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    SimulatedUser user;
+                    while ((user = this.newUsers.poll()) != null) {
+                        try {
+                            user.register(this.selector);
+                        } catch (ClosedChannelException exception) {
+                            // The user was dropped before it was handed over.
+                        }
+                    }
+                    this.selector.select();
+                    for (SelectionKey key : this.selector.selectedKeys()) {
+                        if (!((SimulatedUser) key.attachment()).read()) {
+                            key.cancel();
+                        }
+                    }
+                    this.selector.selectedKeys().clear();
+                }
+            } catch (IOException exception) {
+                System.out.println("Reader stopped: " + exception);
+            }
+        }
+    }
+
+}
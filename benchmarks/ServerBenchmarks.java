@@ -0,0 +1,315 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+public class ServerBenchmarks {
+    /* Benchmarks of the server's hot paths, run against the real classes rather than copies of them.
+     * Build and run from the root of the project, as the bad word check reads bad_words.txt from there:
+     *     javac -d out *.java benchmarks/*.java
+     *     java -cp out ServerBenchmarks [-quick] [-only <benchmark>] [-csv <file>]
+     * -quick runs shorter iterations, -only only runs benchmarks whose name contains the given text, and -csv appends..-
+     * -.. the results to a file, so that they can be tracked over time.
+     * The compression benchmarks also print how many bytes each kind of compression saves on a typical stream of messages.
+     * Connections are made without sockets. Their writers run on the sending thread, taking and encoding every message..-
+     * -.. as a real writer would, but not writing it anywhere, so a broadcast is measured with all of its allocation.
+     * Private parts of the server are reached through reflection, which adds a few nanoseconds to those benchmarks.
+     */
+
+    private static final String CLEAN_MESSAGE = "hey everyone, how is it going today? anyone up for a game later on?";
+
+    private static String onlyBenchmark = "";
+    private static String csvFile = null;
+    private static boolean quick = false;
+
+    public static void main(String[] args) throws Exception {
+        checkArgs(args, 0);
+        // The server prints every message to the admin, which would otherwise be measured as well.
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        BenchmarkRunner runner = quick
+                ? new BenchmarkRunner(console, 300, 200, 3, onlyBenchmark, csvFile)
+                : new BenchmarkRunner(console, 2000, 1000, 5, onlyBenchmark, csvFile);
+        ChatServer server = createServer();
+        benchmarkBroadcasts(runner, server);
+        benchmarkInput(runner, server);
+        benchmarkNames(runner, server);
+        benchmarkAdminCommands(runner, server);
+        benchmarkBot(runner);
+        benchmarkHistory(runner);
+        benchmarkCompression(runner);
+        System.setOut(console);
+    }
+
+    private static void checkArgs(String[] args, int index) {
+        // Same format as the server's arguments, apart from -quick, which takes no value.
+        if (index >= args.length) {
+            return;
+        }
+        switch (args[index]) {
+            case "-quick":
+                quick = true;
+                checkArgs(args, index + 1);
+                return;
+            case "-only":
+                onlyBenchmark = args[index + 1];
+                break;
+            case "-csv":
+                csvFile = args[index + 1];
+                break;
+            default:
+                System.out.println("Unknown argument: " + args[index]);
+                checkArgs(args, index + 1);
+                return;
+        }
+        checkArgs(args, index + 2);
+    }
+
+    private static ChatServer createServer() throws Exception {
+        // Makes a server which is never started, with the bad words loaded as the server loads them.
+        Constructor<ChatServer> constructor = ChatServer.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        ChatServer server = constructor.newInstance();
+        setStaticField("badWordMatcher", new BadWordDictionary(Path.of("bad_words.txt")).load(false));
+        return server;
+    }
+
+    private static void setStaticField(String name, Object value) throws ReflectiveOperationException {
+        Field field = ChatServer.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    private static Connection createConnection(ChatServer server, String name) {
+        // Makes a connection without a socket, whose writer takes and encodes its messages on the sending thread.
+        Connection connection = new Connection(null, null, name, null, null, server);
+        connection.setOutputScheduler(() -> {
+            OutboundQueue outboundQueue = connection.getOutboundQueue();
+            do {
+                MessageFrame message;
+                while ((message = outboundQueue.poll()) != null) {
+                    message.encode(connection.usesBinaryFraming());
+                }
+            } while (outboundQueue.finishDraining());
+        });
+        return connection;
+    }
+
+    private static ChatRoom createRoom(ChatServer server, int members) {
+        ChatRoom room = new ChatRoom("bench", server.getSettings().getRecentMessages());
+        for (int i = 0; i < members; i++) {
+            Connection connection = createConnection(server, "user" + i);
+            room.add(connection);
+            connection.setRoom(room);
+        }
+        return room;
+    }
+
+    private static void benchmarkBroadcasts(BenchmarkRunner runner, ChatServer server) throws Exception {
+        // A chat message sent to every member of a room.
+        ServerOutputHandler serverOutputHandler = server.getServerOutputHandler();
+        for (int members : new int[]{10, 1000, 10000}) {
+            ChatRoom room = createRoom(server, members);
+            Connection source = room.getMembers().iterator().next();
+            runner.run("roomBroadcast", String.valueOf(members), () -> {
+                serverOutputHandler.roomBroadcast(source, room, CLEAN_MESSAGE);
+                return room;
+            });
+        }
+    }
+
+    private static void benchmarkInput(BenchmarkRunner runner, ChatServer server) throws Exception {
+        // A line from a client, parsed, checked for bad words and sent to a room of 10, then the bad word check on its own.
+        ChatRoom room = createRoom(server, 10);
+        ClientInputHandler inputHandler = new ClientInputHandler(room.getMembers().iterator().next());
+        runner.run("handleLine", "chat", () -> inputHandler.handleLine(CLEAN_MESSAGE));
+        runner.run("handleLine", "command", () -> inputHandler.handleLine("/pm 99999 are you there?"));
+        BadWordMatcher badWordMatcher = ChatServer.getBadWordMatcher();
+        String badWord = badWordMatcher.getWords().stream().filter(word -> !BadWordMatcher.isPhrase(word)).findFirst().orElseThrow();
+        String badMessage = "well that was a " + badWord + " thing to say";
+        runner.run("badWords", "clean", () -> badWordMatcher.findMatches(CLEAN_MESSAGE, false));
+        runner.run("badWords", "bad", () -> badWordMatcher.findMatches(badMessage, false));
+        runner.run("badWords", "clean-word", () -> badWordMatcher.findMatches(CLEAN_MESSAGE, true));
+    }
+
+    private static void benchmarkNames(BenchmarkRunner runner, ChatServer server) throws Exception {
+        // Checking a name when a client connects, which reserves it, and checking a room name.
+        ConnectionRegistry registry = server.getConnectionRegistry();
+        runner.run("reserveName", "free", () -> {
+            boolean reserved = server.reserveName("Bench_User");
+            registry.releaseName("Bench_User");
+            return reserved;
+        });
+        runner.run("isLegalRoomName", "legal", () -> RoomRegistry.isLegalName("board-games_2"));
+    }
+
+    private static void benchmarkAdminCommands(BenchmarkRunner runner, ChatServer server) throws Exception {
+        // Commands typed by the admin, with no users connected, so the parsing is what is measured.
+        Class<?> inputHandlerClass = Class.forName("ChatServer$ServerInputHandler");
+        Constructor<?> constructor = inputHandlerClass.getDeclaredConstructor(ChatServer.class);
+        constructor.setAccessible(true);
+        Object inputHandler = constructor.newInstance(server);
+        Method handleServerInput = inputHandlerClass.getDeclaredMethod("handleServerInput", String.class);
+        handleServerInput.setAccessible(true);
+        runner.run("handleServerInput", "/queues", () -> handleServerInput.invoke(inputHandler, "/queues"));
+        runner.run("handleServerInput", "/warn", () -> handleServerInput.invoke(inputHandler, "/warn 99999 2 spamming the chat"));
+        runner.run("handleServerInput", "unknown", () -> handleServerInput.invoke(inputHandler, "/nosuchcommand"));
+    }
+
+    private static void benchmarkBot(BenchmarkRunner runner) throws Exception {
+        // The bot reads every chat message, and nearly all of them are not meant for it.
+        Constructor<ChatBot> constructor = ChatBot.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        ChatBot bot = constructor.newInstance();
+        Method processServerInput = ChatBot.class.getDeclaredMethod("processServerInput", String.class);
+        processServerInput.setAccessible(true);
+        runner.run("processServerInput", "chat", () -> processServerInput.invoke(bot, "[3] alice: " + CLEAN_MESSAGE));
+        // Answering a command, through a bot which only counts its replies so no socket is involved.
+        int[] replies = new int[1];
+        BotCommands.Bot countingBot = new BotCommands.Bot() {
+            @Override
+            public void broadcast(String message) {
+                replies[0]++;
+            }
+
+            @Override
+            public String getServerDetails() {
+                return "Name of the host: localhost";
+            }
+        };
+        runner.run("botCommand", "hello", () -> {
+            BotCommands.handle(countingBot, "[3] alice: bot hello");
+            return replies[0];
+        });
+    }
+
+    private static void benchmarkHistory(BenchmarkRunner runner) throws Exception {
+        /* Appending to the history log at the rate its writer can sustain, and adding to a room's recent messages.
+         * Appends wait while the writer is far behind, as they would otherwise only measure records being dropped.
+         */
+        Path directory = Files.createTempDirectory("history-benchmark");
+        HistoryLog historyLog = HistoryLog.open(directory, 16L * 1024L * 1024L, 64L * 1024L * 1024L, 3_600_000L,
+                new ServerOutputHandler());
+        runner.run("historyAppend", "sustained", () -> {
+            while (historyLog.getQueuedRecords() > 50000) {
+                Thread.onSpinWait();
+            }
+            historyLog.append(MessageFrame.Type.CHAT, "lobby", "3", "alice", "", CLEAN_MESSAGE);
+            return historyLog;
+        });
+        historyLog.close();
+        RecentMessages recentMessages = new RecentMessages(20);
+        MessageFrame message = new MessageFrame(MessageFrame.Type.CHAT, "[3] alice: " + CLEAN_MESSAGE);
+        runner.run("recentMessages", "add", () -> {
+            recentMessages.add(message);
+            return recentMessages;
+        });
+        runner.run("recentMessages", "latest20", () -> recentMessages.getLatest(20));
+    }
+
+    private static List<byte[]> createMessageStream(int count) {
+        // A typical stream of messages to a user in a busy room, as lines of text: mostly chat, with joins, leaves and PMs.
+        String[] words = {"hey", "everyone", "how", "is", "it", "going", "today", "anyone", "up", "for", "a", "game", "later",
+                "lol", "yeah", "no", "way", "that", "was", "great", "see", "you", "tomorrow", "what", "time", "works", "ok"};
+        Random random = new Random(42);
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int user = random.nextInt(200);
+            String text;
+            int kind = random.nextInt(20);
+            if (kind == 0) {
+                text = ServerOutputHandler.formatServerMessage("user" + user + "(" + user + ") joined lobby. Users in the room: "
+                        + (50 + random.nextInt(100)));
+            } else if (kind == 1) {
+                text = ServerOutputHandler.formatServerMessage("user" + user + "(" + user + ") just disconnected.");
+            } else {
+                StringBuilder sentence = new StringBuilder();
+                for (int word = 3 + random.nextInt(12); word > 0; word--) {
+                    sentence.append(words[random.nextInt(words.length)]).append(word > 1 ? " " : "");
+                }
+                text = (kind == 2) ? "\033[0;33m[PM]\033[0m user" + user + " -> bench: " + sentence
+                        : "[" + user + "] user" + user + ": " + sentence;
+            }
+            messages.add(new MessageFrame(MessageFrame.Type.CHAT, text).encode(false));
+        }
+        return messages;
+    }
+
+    private static void benchmarkCompression(BenchmarkRunner runner) throws Exception {
+        /* The server's cost of compressing each message to a client who asked for compression, with and without the..-
+         * -.. dictionary, sync flushed after every message (a quiet room) or every 16 (a busy one), and the client's cost..-
+         * -.. of inflating them. Each is also noted with how much of the stream it saves.
+         */
+        List<byte[]> messages = createMessageStream(4096);
+        long uncompressed = messages.stream().mapToLong(message -> message.length).sum();
+        String[][] cases = {{"deflate/1", "1", "1"}, {"dict/1", "1", "1"}, {"deflate/16", "1", "16"}, {"dict/16", "1", "16"},
+                {"dict-l6/16", "6", "16"}};
+        for (String[] compressionCase : cases) {
+            String parameter = compressionCase[0];
+            String request = parameter.startsWith("dict") ? MessageCompressor.DICTIONARY_REQUEST : MessageCompressor.REQUEST;
+            int level = Integer.parseInt(compressionCase[1]);
+            int batch = Integer.parseInt(compressionCase[2]);
+            // The first messages are counted on their own too, as that is where the dictionary makes a difference.
+            long compressed = 0;
+            long firstUncompressed = 0;
+            long firstCompressed = 0;
+            MessageCompressor counted = new MessageCompressor(level, request, null);
+            for (int i = 0; i < messages.size(); i++) {
+                counted.add(messages.get(i));
+                if ((i + 1) % batch == 0) {
+                    compressed += counted.finishBatch().length;
+                    if (i < 32) {
+                        firstUncompressed = messages.subList(0, i + 1).stream().mapToLong(message -> message.length).sum();
+                        firstCompressed = compressed;
+                    }
+                }
+            }
+            counted.close();
+            runner.note("compress", String.format("%-10s %d bytes in %d messages compressed to %d (%.1f%% saved, %.1f bytes per message),"
+                            + " the first 32 to %d (%.1f%% saved)", parameter, uncompressed, messages.size(), compressed,
+                    100.0 * (uncompressed - compressed) / uncompressed, (double) compressed / messages.size(), firstCompressed,
+                    100.0 * (firstUncompressed - firstCompressed) / firstUncompressed));
+            // Each operation is one message, so batches of 16 spread the cost of a flush over 16 operations.
+            MessageCompressor compressor = new MessageCompressor(level, request, null);
+            int[] next = {0};
+            runner.run("compress", parameter, () -> {
+                int index = next[0]++ & (messages.size() - 1);
+                compressor.add(messages.get(index));
+                return ((index + 1) % batch == 0) ? compressor.finishBatch() : compressor;
+            });
+            compressor.close();
+        }
+        // The client's side of the stream, flushed after every message, inflated a message at a time as Client reads it.
+        for (String request : new String[]{MessageCompressor.REQUEST, MessageCompressor.DICTIONARY_REQUEST}) {
+            MessageCompressor compressor = new MessageCompressor(1, request, null);
+            List<byte[]> batches = new ArrayList<>();
+            messages.forEach(message -> {
+                compressor.add(message);
+                batches.add(compressor.finishBatch());
+            });
+            compressor.close();
+            Inflater[] inflater = {MessageCompressor.createInflater(request)};
+            byte[] output = new byte[8192];
+            int[] next = {0};
+            runner.run("inflate", request.equals(MessageCompressor.REQUEST) ? "deflate/1" : "dict/1", () -> {
+                if (next[0] == batches.size()) {
+                    // The stream is started again, as each message is only understood after the ones before it.
+                    inflater[0].end();
+                    inflater[0] = MessageCompressor.createInflater(request);
+                    next[0] = 0;
+                }
+                inflater[0].setInput(batches.get(next[0]++));
+                return inflater[0].inflate(output);
+            });
+            inflater[0].end();
+        }
+    }
+
+}
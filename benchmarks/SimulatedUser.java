@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SimulatedUser {
+    /* A single user of the load generator, speaking to the server exactly as Client does.
+     * The handshake is made on a blocking channel, reading each line with MessageFrame.readHandshakeLine() as Client does,..-
+     * -.. so nothing sent after it is read ahead. The channel is then made non-blocking and read by a selector, so a few..-
+     * -.. threads can read from thousands of users.
+     * Messages are sent as Client.sendMessage() sends them. A message the socket can not take at once is kept and..-
+     * -.. finished before anything else is sent, and anything sent in the meantime is counted as stalled rather than queued.
+     * The load generator is told once if the connection is lost, whether it was noticed when reading or when sending.
+     */
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final LoadGenerator loadGenerator;
+    private final int index;
+    private final String name;
+    private final int room;
+    private final boolean binaryFraming;
+    private final AtomicBoolean connected;
+    private SocketChannel channel;
+    // Holds what has been read but not yet handled. Grows to fit a whole frame if needed.
+    private ByteBuffer readBuffer;
+    // Holds the rest of a message the socket could not take at once, or null.
+    private ByteBuffer pendingOutput;
+
+    public SimulatedUser(LoadGenerator loadGenerator, int index, String name, int room, boolean binaryFraming) {
+        this.loadGenerator = loadGenerator;
+        this.index = index;
+        this.name = name;
+        this.room = room;
+        this.binaryFraming = binaryFraming;
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.connected = new AtomicBoolean(false);
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getRoom() {
+        return this.room;
+    }
+
+    public boolean isConnected() {
+        return this.connected.get();
+    }
+
+    public void connect(InetSocketAddress address, int timeoutMillis) throws IOException {
+        // Connects and makes the name handshake, throwing an IOException if either fails or takes longer than the timeout.
+        this.channel = SocketChannel.open();
+        try {
+            Socket socket = this.channel.socket();
+            socket.connect(address, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = socket.getOutputStream();
+            MessageFrame.readHandshakeLine(inputStream);
+            if (this.binaryFraming) {
+                writeHandshakeLine(outputStream, MessageFrame.BINARY_REQUEST);
+                expectHandshakeLine(inputStream, MessageFrame.BINARY_ACCEPTED);
+            }
+            writeHandshakeLine(outputStream, getName());
+            expectHandshakeLine(inputStream, ChatServer.NAME_ACCEPTED);
+            this.channel.configureBlocking(false);
+            this.connected.set(true);
+        } catch (IOException exception) {
+            this.channel.close();
+            throw exception;
+        }
+    }
+
+    private static void writeHandshakeLine(OutputStream outputStream, String line) throws IOException {
+        outputStream.write((line + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+        outputStream.flush();
+    }
+
+    private static void expectHandshakeLine(InputStream inputStream, String expected) throws IOException {
+        String line = MessageFrame.readHandshakeLine(inputStream);
+        if (!line.equals(expected)) {
+            throw new ProtocolException("Handshake failed: " + line);
+        }
+    }
+
+    public boolean send(String message) {
+        /* Sends a line as Client.sendMessage() would. Returns false if the message was not sent because the socket..-
+         * -.. has not yet taken the previous one.
+         */
+        if (!isConnected() || !flushPendingOutput()) {
+            return false;
+        }
+        MessageFrame frame = this.binaryFraming ? MessageFrame.fromTypedLine(message) : new MessageFrame(MessageFrame.Type.CHAT, message);
+        ByteBuffer output = ByteBuffer.wrap(frame.encode(this.binaryFraming));
+        try {
+            this.channel.write(output);
+        } catch (IOException exception) {
+            drop();
+            return false;
+        }
+        if (output.hasRemaining()) {
+            this.pendingOutput = output;
+        }
+        return true;
+    }
+
+    private boolean flushPendingOutput() {
+        if (this.pendingOutput == null) {
+            return true;
+        }
+        try {
+            this.channel.write(this.pendingOutput);
+        } catch (IOException exception) {
+            drop();
+            return false;
+        }
+        if (this.pendingOutput.hasRemaining()) {
+            return false;
+        }
+        this.pendingOutput = null;
+        return true;
+    }
+
+    public boolean read() {
+        // Reads whatever has arrived and hands each whole message to the load generator. Returns false once the server has closed the connection.
+        try {
+            if (!this.readBuffer.hasRemaining()) {
+                this.readBuffer = ByteBuffer.allocate(this.readBuffer.capacity() * 2).put(this.readBuffer.flip());
+            }
+            if (this.channel.read(this.readBuffer) < 0) {
+                drop();
+                return false;
+            }
+            this.readBuffer.flip();
+            long now = System.nanoTime();
+            String message;
+            while ((message = nextMessage()) != null) {
+                this.loadGenerator.handleMessage(this, message, now);
+            }
+            this.readBuffer.compact();
+            return true;
+        } catch (IOException exception) {
+            drop();
+            return false;
+        }
+    }
+
+    private String nextMessage() throws ProtocolException {
+        // Takes the next whole frame, or line of text, from the read buffer. Returns null if it has not all arrived yet.
+        if (this.binaryFraming) {
+            MessageFrame frame = MessageFrame.decode(this.readBuffer);
+            return (frame == null) ? null : frame.getPayload();
+        }
+        int start = this.readBuffer.position();
+        for (int i = start; i < this.readBuffer.limit(); i++) {
+            if (this.readBuffer.get(i) == '\n') {
+                int end = (i > start && this.readBuffer.get(i - 1) == '\r') ? i - 1 : i;
+                byte[] line = new byte[end - start];
+                this.readBuffer.get(line).position(i + 1);
+                return new String(line, Charset.defaultCharset());
+            }
+        }
+        return null;
+    }
+
+    public void register(Selector selector) throws IOException {
+        this.channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    private void drop() {
+        // Closes a connection which was lost, telling the load generator unless it has already been told.
+        if (this.connected.getAndSet(false)) {
+            this.loadGenerator.userDropped(this);
+        }
+        close();
+    }
+
+    public void close() {
+        this.connected.set(false);
+        try {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        } catch (IOException exception) {
+            // Nothing more can be done with the connection.
+        }
+    }
+
+}